@@ -0,0 +1,124 @@
+import com.nathcat.RSA.KeyPair;
+import com.nathcat.RSA.RSA;
+import com.nathcat.messagecat_database_entities.ChatInvite;
+import com.nathcat.messagecat_database_entities.User;
+import com.nathcat.messagecat_server.ClusterBus;
+import com.nathcat.messagecat_server.ListenRule;
+import com.nathcat.messagecat_server.ListenRuleIndex;
+import com.nathcat.messagecat_server.RequestType;
+import com.nathcat.messagecat_server.TriggerDispatcher;
+import com.nathcat.messagecat_server.TriggerLog;
+import com.nathcat.messagecat_server.TriggerQueue;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.net.ServerSocket;
+import java.util.List;
+
+/**
+ * Checks that requests are forwarded between the servers of a cluster and delivered to the listen rules of the server
+ * which receives them. Starts two cluster buses on this machine, listens for chat invites on one, and sends chat
+ * invites through the other. A chat invite carries the chat's KeyPair, which the receiving server must be able to
+ * read, and the connection must stay open afterwards so that later requests are still forwarded.
+ *
+ * Exits with status 1 if the check fails.
+ */
+public class ClusterCheck {
+    /**
+     * How long to wait for the buses to connect and for a request to be delivered, in milliseconds
+     */
+    private static final long TIMEOUT = 10000;
+
+    public static void main(String[] args) throws Exception {
+        int senderPort = FreePort();
+        int receiverPort = FreePort();
+        User user = new User(5, "user", null, "User", null, null);
+
+        // The receiving server has a client listening for chat invites sent to it
+        ListenRuleIndex receiverRules = new ListenRuleIndex();
+        TriggerLog log = new TriggerLog(1000, 3600000);
+        TriggerDispatcher dispatcher = new TriggerDispatcher(256, TriggerDispatcher.OverflowPolicy.DropOldest, 32, 0, log, 1);
+        ListenRule rule = new ListenRule(RequestType.SendChatInvite, "RecipientID", user.UserID);
+        rule.setId(receiverRules.NextId());
+        rule.Bind(null, new TriggerQueue(null, null, dispatcher), user);
+        Check("the rule is added", receiverRules.Add(rule));
+
+        ClusterBus sender = new ClusterBus(new ListenRuleIndex(), null, senderPort, "127.0.0.1", "secret", List.of("127.0.0.1:" + receiverPort), 100, 100);
+        ClusterBus receiver = new ClusterBus(receiverRules, dispatcher, receiverPort, "127.0.0.1", "secret", List.of("127.0.0.1:" + senderPort), 100, 100);
+        receiver.Start();
+        sender.Start();
+
+        // Send chat invites until the receiver's summary has reached the sender and the first one is forwarded
+        KeyPair keyPair = RSA.GenerateRSAKeyPair();
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (Forwarded(sender) == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+            Publish(sender, 1, user, keyPair);
+        }
+
+        Check("the chat invite is forwarded", Forwarded(sender) > 0);
+        JSONObject first = WaitForTrigger(log, user, -1, deadline);
+        Check("the chat invite is delivered", first != null);
+        Check("the chat invite carries its key pair", first.get("keyPair") instanceof KeyPair && ((KeyPair) first.get("keyPair")).pub != null);
+
+        // The connection must survive the key pair, so the next invite is delivered too
+        Publish(sender, 2, user, keyPair);
+        JSONObject second = WaitForTrigger(log, user, ((Number) first.get("offset")).longValue(), System.currentTimeMillis() + TIMEOUT);
+        Check("the next chat invite is delivered", second != null && ((ChatInvite) second.get("data")).ChatInviteID == 2);
+
+        System.out.println("All checks passed");
+        System.exit(0);
+    }
+
+    private static int FreePort() throws Exception {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Send a chat invite through a bus, as ConnectionHandler.SendChatInvite does
+     */
+    private static void Publish(ClusterBus bus, int chatInviteID, User recipient, KeyPair keyPair) {
+        ChatInvite chatInvite = new ChatInvite(chatInviteID, 1, 2, recipient.UserID, System.currentTimeMillis(), keyPair.hashCode());
+        JSONObject request = new JSONObject();
+        request.put("type", RequestType.SendChatInvite);
+        request.put("data", chatInvite);
+        request.put("keyPair", keyPair);
+        bus.Publish(RequestType.SendChatInvite, chatInvite, request);
+    }
+
+    private static long Forwarded(ClusterBus bus) {
+        return ((Number) bus.GetMetrics().get("forwarded")).longValue();
+    }
+
+    /**
+     * Wait for a trigger to be logged for a user after an offset, or -1 for the first
+     * @return The first trigger logged after the offset, or null if none was logged before the deadline
+     */
+    private static JSONObject WaitForTrigger(TriggerLog log, User user, long offset, long deadline) throws InterruptedException {
+        while (System.currentTimeMillis() < deadline) {
+            JSONArray triggers = (JSONArray) log.Replay(user.UserID, log.epoch, offset).get("triggers");
+            if (!triggers.isEmpty()) {
+                return (JSONObject) triggers.get(0);
+            }
+
+            Thread.sleep(50);
+        }
+
+        return null;
+    }
+
+    private static void Check(String description, boolean passed) {
+        if (!passed) {
+            Fail(description);
+        }
+
+        System.out.println("Passed: " + description);
+    }
+
+    private static void Fail(String description) {
+        System.out.println("Failed: " + description);
+        System.exit(1);
+    }
+}
@@ -0,0 +1,114 @@
+import com.nathcat.messagecat_database_entities.*;
+import com.nathcat.messagecat_server.RequestType;
+import com.nathcat.messagecat_server.WireCodec;
+import org.json.simple.JSONObject;
+
+import java.io.*;
+
+/**
+ * Compares the WireCodec with Java object serialization for some typical requests and responses, measuring the
+ * encoded size and the time to encode and decode each of them.
+ *
+ * Usage: CodecBenchmark [iterations per measurement]
+ */
+public class CodecBenchmark {
+    private interface Codec {
+        byte[] Encode(Object obj) throws Exception;
+        Object Decode(byte[] bytes) throws Exception;
+    }
+
+    private static final Codec javaSerialization = new Codec() {
+        @Override
+        public byte[] Encode(Object obj) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream oos = new ObjectOutputStream(bytes);
+            oos.writeObject(obj);
+            oos.close();
+            return bytes.toByteArray();
+        }
+
+        @Override
+        public Object Decode(byte[] bytes) throws IOException, ClassNotFoundException {
+            return new ObjectInputStream(new ByteArrayInputStream(bytes)).readObject();
+        }
+    };
+
+    private static final Codec wireCodec = new Codec() {
+        @Override
+        public byte[] Encode(Object obj) throws IOException {
+            return WireCodec.Encode(obj);
+        }
+
+        @Override
+        public Object Decode(byte[] bytes) throws IOException {
+            return WireCodec.Decode(bytes);
+        }
+    };
+
+    private static Object sink;
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+
+        JSONObject authenticate = new JSONObject();
+        authenticate.put("type", RequestType.Authenticate);
+        authenticate.put("data", new User(-1, "nathcat", "password", null, null, null));
+
+        JSONObject sendMessage = new JSONObject();
+        sendMessage.put("type", RequestType.SendMessage);
+        sendMessage.put("data", new Message(12, 345, System.currentTimeMillis(), "Hello, how are you doing today?"));
+
+        Friendship[] friendships = new Friendship[20];
+        for (int i = 0; i < friendships.length; i++) {
+            // Distinct strings, as they would be when read from the database
+            friendships[i] = new Friendship(i, 12, 100 + i, "Mon Jan " + (10 + i) + " 12:00:00 GMT 2024");
+        }
+
+        Object[][] cases = {
+                {"Authenticate request", authenticate},
+                {"SendMessage request", sendMessage},
+                {"User response", new User(12, "nathcat", "password", "Nathcat", "Mon Jan 01 12:00:00 GMT 2024", "default.png")},
+                {"Friendship[20] response", friendships}
+        };
+
+        System.out.printf("%-25s %10s %10s %14s %14s %14s %14s%n", "", "Java (B)", "Wire (B)",
+                "Java enc (ns)", "Wire enc (ns)", "Java dec (ns)", "Wire dec (ns)");
+
+        for (Object[] c : cases) {
+            Object obj = c[1];
+            byte[] java = javaSerialization.Encode(obj);
+            byte[] wire = wireCodec.Encode(obj);
+
+            // Run each measurement twice and keep the second, so the JIT has compiled the loop
+            MeasureEncode(javaSerialization, obj, iterations);
+            double javaEncode = MeasureEncode(javaSerialization, obj, iterations);
+            MeasureEncode(wireCodec, obj, iterations);
+            double wireEncode = MeasureEncode(wireCodec, obj, iterations);
+            MeasureDecode(javaSerialization, java, iterations);
+            double javaDecode = MeasureDecode(javaSerialization, java, iterations);
+            MeasureDecode(wireCodec, wire, iterations);
+            double wireDecode = MeasureDecode(wireCodec, wire, iterations);
+
+            System.out.printf("%-25s %10d %10d %14.0f %14.0f %14.0f %14.0f%n", c[0], java.length, wire.length,
+                    javaEncode, wireEncode, javaDecode, wireDecode);
+        }
+    }
+
+    private static double MeasureEncode(Codec codec, Object obj, int iterations) throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink = codec.Encode(obj);
+        }
+
+        return (System.nanoTime() - start) / (double) iterations;
+    }
+
+    private static double MeasureDecode(Codec codec, byte[] bytes, int iterations) throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink = codec.Decode(bytes);
+        }
+
+        return (System.nanoTime() - start) / (double) iterations;
+    }
+}
@@ -0,0 +1,108 @@
+import com.nathcat.RSA.*;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures how many connections per second the server can accept and complete the handshake for.
+ * Run this against a running server once before and once after a change to compare the two.
+ *
+ * Usage: ConnectionBenchmark [host] [port] [connections] [client threads] [multiplex]
+ *
+ * Passing "multiplex" as the last argument makes the clients ask for listen rule triggers on the main connection,
+ * which skips the listen rule socket.
+ */
+public class ConnectionBenchmark {
+    public static void main(String[] args) throws Exception {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 1234;
+        int connections = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        int threadCount = args.length > 3 ? Integer.parseInt(args[3]) : 8;
+        boolean multiplex = args.length > 4 && args[4].contentEquals("multiplex");
+
+        // Generating a key pair is expensive, so every simulated client shares the same one
+        KeyPair keyPair = RSA.GenerateRSAKeyPair();
+
+        long[] latencies = new long[connections];
+        AtomicInteger next = new AtomicInteger(0);
+        AtomicInteger failed = new AtomicInteger(0);
+
+        Thread[] threads = new Thread[threadCount];
+        long start = System.nanoTime();
+
+        for (int t = 0; t < threadCount; t++) {
+            threads[t] = new Thread(() -> {
+                int i;
+                while ((i = next.getAndIncrement()) < connections) {
+                    long connStart = System.nanoTime();
+                    try {
+                        Connect(host, port, keyPair, multiplex);
+                    } catch (Exception e) {
+                        failed.incrementAndGet();
+                    }
+
+                    latencies[i] = System.nanoTime() - connStart;
+                }
+            });
+            threads[t].start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        Arrays.sort(latencies);
+
+        System.out.println("Connections: " + connections + " (" + failed.get() + " failed) using " + threadCount + " client threads");
+        System.out.printf("Total time: %.2f s%n", seconds);
+        System.out.printf("Throughput: %.1f connections/s%n", connections / seconds);
+        System.out.printf("Handshake latency p50: %.1f ms, p99: %.1f ms, max: %.1f ms%n",
+                latencies[connections / 2] / 1e6,
+                latencies[(int) (connections * 0.99)] / 1e6,
+                latencies[connections - 1] / 1e6);
+    }
+
+    /**
+     * Perform the full connection process described in "docs/Connecting a client.md", then disconnect
+     */
+    private static void Connect(String host, int port, KeyPair keyPair, boolean multiplex) throws Exception {
+        Socket mainSock = new Socket(host, port);
+        ObjectOutputStream oos = new ObjectOutputStream(mainSock.getOutputStream());
+        ObjectInputStream ois = new ObjectInputStream(mainSock.getInputStream());
+
+        ois.readObject();
+
+        if (multiplex) {
+            JSONArray features = new JSONArray();
+            features.add("multiplex");
+
+            JSONObject hello = new JSONObject();
+            hello.put("keyPair", new KeyPair(keyPair.pub, null));
+            hello.put("features", features);
+            oos.writeObject(hello);
+            oos.flush();
+
+            keyPair.decrypt((EncryptedObject) ois.readObject());
+            mainSock.close();
+            return;
+        }
+
+        oos.writeObject(new KeyPair(keyPair.pub, null));
+        oos.flush();
+
+        keyPair.decrypt((EncryptedObject) ois.readObject());
+        int lrSockPort = (int) keyPair.decrypt((EncryptedObject) ois.readObject());
+
+        Socket lrSock = new Socket(host, lrSockPort);
+        new ObjectInputStream(lrSock.getInputStream());
+
+        lrSock.close();
+        mainSock.close();
+    }
+}
@@ -0,0 +1,165 @@
+import com.nathcat.messagecat_database_entities.ChatInvite;
+import com.nathcat.messagecat_database_entities.FriendRequest;
+import com.nathcat.messagecat_database_entities.Message;
+import com.nathcat.messagecat_server.ListenRule;
+import com.nathcat.messagecat_server.ListenRuleIndex;
+import com.nathcat.messagecat_server.RequestType;
+import com.nathcat.messagecat_server.TriggerQueue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares finding the listen rules triggered by a request with the ListenRuleIndex against the linear scan it
+ * replaced, which called CheckRequest on every rule on the server. The scan is measured both with CheckRequest, which
+ * reads the field with the getter compiled for the rule, and with the reflection CheckRequest used before that.
+ *
+ * Usage: ListenRuleBenchmark [rules] [events per measurement]
+ */
+public class ListenRuleBenchmark {
+    private static int sink;
+
+    public static void main(String[] args) throws Exception {
+        int ruleCount = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int events = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+        // A typical mix of rules: most clients listen for messages in each of their chats, and for friend requests and
+        // chat invites sent to them
+        int chatCount = ruleCount / 10;
+        int userCount = ruleCount / 5;
+        Random random = new Random(42);
+
+        List<ListenRule> list = new ArrayList<>();
+        ListenRuleIndex index = new ListenRuleIndex();
+
+        // The index only holds rules bound to a session, the queue is never sent to
+        TriggerQueue queue = new TriggerQueue(null, null, null);
+        for (int i = 0; i < ruleCount; i++) {
+            ListenRule rule;
+            switch (i % 10) {
+                case 0:
+                    rule = new ListenRule(RequestType.SendFriendRequest, "RecipientID", random.nextInt(userCount));
+                    break;
+
+                case 1:
+                    rule = new ListenRule(RequestType.SendChatInvite, "RecipientID", random.nextInt(userCount));
+                    break;
+
+                default:
+                    rule = new ListenRule(RequestType.SendMessage, "ChatID", random.nextInt(chatCount));
+                    break;
+            }
+
+            rule.setId(i);
+            rule.Bind(null, queue, null);
+            list.add(rule);
+            index.Add(rule);
+        }
+
+        Object[][] cases = {
+                {"SendMessage", RequestType.SendMessage},
+                {"SendFriendRequest", RequestType.SendFriendRequest},
+                {"SendChatInvite", RequestType.SendChatInvite}
+        };
+
+        System.out.println(ruleCount + " rules registered");
+        System.out.printf("%-20s %22s %20s %20s %10s%n", "Event", "Reflection scan (ns)", "Linear scan (ns)", "Index (ns)", "Matches");
+
+        for (Object[] c : cases) {
+            RequestType type = (RequestType) c[1];
+            Object[] data = new Object[events];
+            for (int i = 0; i < events; i++) {
+                switch (type) {
+                    case SendMessage:
+                        data[i] = new Message(1, random.nextInt(chatCount), i, "Hello");
+                        break;
+
+                    case SendFriendRequest:
+                        data[i] = new FriendRequest(i, 1, random.nextInt(userCount), i);
+                        break;
+
+                    default:
+                        data[i] = new ChatInvite(i, 1, 1, random.nextInt(userCount), i, 0);
+                        break;
+                }
+            }
+
+            // Run each measurement twice and keep the second, so the JIT has compiled the loop
+            MeasureReflectionScan(list, type, data);
+            double reflection = MeasureReflectionScan(list, type, data);
+            MeasureScan(list, type, data);
+            double scan = MeasureScan(list, type, data);
+            MeasureIndex(index, type, data);
+            double indexed = MeasureIndex(index, type, data);
+
+            int matches = 0;
+            for (Object d : data) {
+                matches += index.Match(type, d).size();
+            }
+
+            System.out.printf("%-20s %22.0f %20.0f %20.0f %10.2f%n", c[0], reflection, scan, indexed, matches / (double) events);
+        }
+    }
+
+    /**
+     * The CheckRequest algorithm from before rules were compiled, which looked the field up by reflection for every check
+     */
+    private static boolean ReflectionCheckRequest(ListenRule rule, RequestType type, Object data) throws NoSuchFieldException, IllegalAccessException {
+        if (rule.getFieldNameToMatch() == null) {
+            return type == rule.getListenForType();
+        }
+
+        if (rule.getObjectToMatch() != null) {
+            return type == rule.getListenForType() && data.getClass().getField(rule.getFieldNameToMatch()).get(data).equals(rule.getObjectToMatch());
+        }
+        else {
+            boolean contains = false;
+            for (Object toMatch : rule.getObjectsToMatch()) {
+                if (data.getClass().getField(rule.getFieldNameToMatch()).get(data).equals(toMatch)) {
+                    contains = true;
+                    break;
+                }
+            }
+
+            return type == rule.getListenForType() && contains;
+        }
+    }
+
+    private static double MeasureReflectionScan(List<ListenRule> rules, RequestType type, Object[] data) throws Exception {
+        long start = System.nanoTime();
+        for (Object d : data) {
+            for (ListenRule rule : rules) {
+                try {
+                    if (ReflectionCheckRequest(rule, type, d)) {
+                        sink++;
+                    }
+                } catch (NoSuchFieldException ignored) {}
+            }
+        }
+
+        return (System.nanoTime() - start) / (double) data.length;
+    }
+
+    private static double MeasureScan(List<ListenRule> rules, RequestType type, Object[] data) throws Exception {
+        long start = System.nanoTime();
+        for (Object d : data) {
+            for (ListenRule rule : rules) {
+                if (rule.CheckRequest(type, d)) {
+                    sink++;
+                }
+            }
+        }
+
+        return (System.nanoTime() - start) / (double) data.length;
+    }
+
+    private static double MeasureIndex(ListenRuleIndex index, RequestType type, Object[] data) {
+        long start = System.nanoTime();
+        for (Object d : data) {
+            sink += index.Match(type, d).size();
+        }
+
+        return (System.nanoTime() - start) / (double) data.length;
+    }
+}
@@ -0,0 +1,148 @@
+import com.nathcat.RSA.*;
+import com.nathcat.messagecat_database_entities.Chat;
+import com.nathcat.messagecat_server.Frame;
+import com.nathcat.messagecat_server.FrameType;
+import com.nathcat.messagecat_server.RequestType;
+import org.json.simple.JSONObject;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load test for the NIO transport ("transport": "nio" in Server_Config.json). Opens many concurrent connections,
+ * completes the handshake on each, makes one request on every connection while they are all open and then holds them
+ * open so the server's thread count and memory can be inspected (e.g. with jcmd &lt;pid&gt; Thread.print).
+ *
+ * A single client address can only open around 28k connections to one server port, so to go beyond that pass several
+ * local addresses (e.g. 127.0.0.1,127.0.0.2) and raise the open file limit on both sides.
+ *
+ * Usage: LoadTest [host] [port] [connections] [client threads] [hold seconds] [local addresses]
+ */
+public class LoadTest {
+    public static void main(String[] args) throws Exception {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 1234;
+        int connections = args.length > 2 ? Integer.parseInt(args[2]) : 50000;
+        int threadCount = args.length > 3 ? Integer.parseInt(args[3]) : 32;
+        int holdSeconds = args.length > 4 ? Integer.parseInt(args[4]) : 60;
+        String[] localAddresses = args.length > 5 ? args[5].split(",") : new String[0];
+
+        // Generating a key pair is expensive, so every simulated client shares the same one
+        KeyPair keyPair = RSA.GenerateRSAKeyPair();
+
+        SocketChannel[] channels = new SocketChannel[connections];
+        DataInputStream[] inputs = new DataInputStream[connections];
+        KeyPair[] serverKeys = new KeyPair[connections];
+        long[] latencies = new long[connections];
+        AtomicInteger failed = new AtomicInteger(0);
+
+        // Connect and complete the handshake on every connection
+        long start = System.nanoTime();
+        RunOnThreads(threadCount, connections, i -> {
+            SocketChannel channel = SocketChannel.open();
+            if (localAddresses.length != 0) {
+                channel.bind(new InetSocketAddress(localAddresses[i % localAddresses.length], 0));
+            }
+
+            channel.connect(new InetSocketAddress(host, port));
+            DataInputStream in = new DataInputStream(channel.socket().getInputStream());
+
+            serverKeys[i] = (KeyPair) ReadFrame(in);
+            WriteFrame(channel, new KeyPair(keyPair.pub, null));
+            keyPair.decrypt((EncryptedObject) ReadFrame(in));
+
+            channels[i] = channel;
+            inputs[i] = in;
+        }, failed);
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println("Connected: " + (connections - failed.get()) + " of " + connections);
+        System.out.printf("Handshakes: %.2f s (%.1f connections/s)%n", seconds, connections / seconds);
+
+        // Make one request on every open connection
+        JSONObject request = new JSONObject();
+        request.put("type", RequestType.GetChat);
+        request.put("data", new Chat(1, null, null, -1));
+
+        failed.set(0);
+        start = System.nanoTime();
+        RunOnThreads(threadCount, connections, i -> {
+            if (channels[i] == null) {
+                throw new IOException("Not connected");
+            }
+
+            long requestStart = System.nanoTime();
+            WriteFrame(channels[i], serverKeys[i].encrypt(request));
+            keyPair.decrypt((EncryptedObject) ReadFrame(inputs[i]));
+            latencies[i] = System.nanoTime() - requestStart;
+        }, failed);
+
+        seconds = (System.nanoTime() - start) / 1e9;
+        Arrays.sort(latencies);
+        System.out.println("Requests: " + (connections - failed.get()) + " of " + connections + " succeeded");
+        System.out.printf("Requests: %.2f s (%.1f requests/s)%n", seconds, connections / seconds);
+        System.out.printf("Request latency p50: %.1f ms, p99: %.1f ms, max: %.1f ms%n",
+                latencies[connections / 2] / 1e6,
+                latencies[(int) (connections * 0.99)] / 1e6,
+                latencies[connections - 1] / 1e6);
+
+        System.out.println("Holding connections open for " + holdSeconds + " s");
+        Thread.sleep(holdSeconds * 1000L);
+
+        for (SocketChannel channel : channels) {
+            if (channel != null) {
+                channel.close();
+            }
+        }
+    }
+
+    private interface Task {
+        void run(int i) throws Exception;
+    }
+
+    /**
+     * Run a task for every index from 0 to count - 1, spread across a number of threads
+     */
+    private static void RunOnThreads(int threadCount, int count, Task task, AtomicInteger failed) throws InterruptedException {
+        AtomicInteger next = new AtomicInteger(0);
+        Thread[] threads = new Thread[threadCount];
+
+        for (int t = 0; t < threadCount; t++) {
+            threads[t] = new Thread(() -> {
+                int i;
+                while ((i = next.getAndIncrement()) < count) {
+                    try {
+                        task.run(i);
+                    } catch (Exception e) {
+                        failed.incrementAndGet();
+                    }
+                }
+            });
+            threads[t].start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    private static void WriteFrame(SocketChannel channel, Object obj) throws IOException {
+        ByteBuffer frame = Frame.Encode(FrameType.Message, obj);
+        while (frame.hasRemaining()) {
+            channel.write(frame);
+        }
+    }
+
+    private static Object ReadFrame(DataInputStream in) throws IOException, ClassNotFoundException {
+        int length = in.readInt();
+        in.readByte();
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return Frame.Decode(payload);
+    }
+}
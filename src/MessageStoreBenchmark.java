@@ -0,0 +1,147 @@
+import com.nathcat.messagecat_database.MessageLog;
+import com.nathcat.messagecat_database.MessageQueue;
+import com.nathcat.messagecat_database_entities.Message;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.util.HashMap;
+
+/**
+ * Compares the cost of saving a message by rewriting the whole message store, as SendMessage used to, with appending
+ * it to the message store's log. Rewriting the store costs more the more chats it holds, while appending to the log
+ * does not. It then compares the durabilities of the log with several threads writing at once, which is where group
+ * commit pays off. The files are written to a temporary directory, not the server's data directory.
+ *
+ * Usage: MessageStoreBenchmark [messages per measurement] [writer threads]
+ */
+public class MessageStoreBenchmark {
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int threadCount = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        File directory = Files.createTempDirectory("MessageStoreBenchmark").toFile();
+        File dataFile = new File(directory, "MessageStore.bin");
+        File logFile = new File(directory, "MessageStore.log");
+
+        System.out.printf("%-15s %20s %20s%n", "Stored chats", "Rewrite (msgs/s)", "Log (msgs/s)");
+        for (int stored : new int[] {1, 100, 1000, 10000}) {
+            // Run each measurement twice and keep the second, so the JIT has compiled the loop
+            MeasureRewrite(dataFile, stored, messages);
+            double rewrite = MeasureRewrite(dataFile, stored, messages);
+            MeasureLog(logFile, messages);
+            double log = MeasureLog(logFile, messages);
+
+            System.out.printf("%-15d %20.0f %20.0f%n", stored, rewrite, log);
+        }
+
+        System.out.println();
+        System.out.println("Log durability, " + threadCount + " writer threads");
+        System.out.printf("%-15s %20s %20s%n", "Durability", "Msgs/s", "Msgs per force");
+        for (MessageLog.Durability durability : MessageLog.Durability.values()) {
+            MeasureDurability(logFile, durability, threadCount, messages);
+            double[] result = MeasureDurability(logFile, durability, threadCount, messages);
+
+            System.out.printf("%-15s %20.0f %20.1f%n", durability, result[0], result[1]);
+        }
+
+        dataFile.delete();
+        logFile.delete();
+        directory.delete();
+    }
+
+    /**
+     * Create a store of chats whose message queues are full
+     */
+    private static HashMap<Integer, MessageQueue> CreateStore(int chats) {
+        HashMap<Integer, MessageQueue> data = new HashMap<>();
+        for (int chatID = 0; chatID < chats; chatID++) {
+            MessageQueue queue = new MessageQueue(chatID);
+            for (int i = 0; i < 10; i++) {
+                queue.Push(CreateMessage(chatID));
+            }
+
+            data.put(chatID, queue);
+        }
+
+        return data;
+    }
+
+    private static Message CreateMessage(int chatID) {
+        return new Message(1, chatID, System.currentTimeMillis(), "A message of a typical length for a chat");
+    }
+
+    private static double MeasureRewrite(File dataFile, int stored, int messages) throws IOException {
+        HashMap<Integer, MessageQueue> data = CreateStore(stored);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            data.get(0).Push(CreateMessage(0));
+            try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(dataFile))) {
+                oos.writeObject(data);
+            }
+        }
+
+        return messages / ((System.nanoTime() - start) / 1e9);
+    }
+
+    private static double MeasureLog(File logFile, int messages) throws IOException {
+        MessageLog log = new MessageLog(logFile);
+        log.Truncate();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            log.Append(i, MessageLog.PUSH, 0, CreateMessage(0));
+        }
+
+        double rate = messages / ((System.nanoTime() - start) / 1e9);
+        log.Close();
+        return rate;
+    }
+
+    /**
+     * Measure the rate at which several threads can write messages to the log and have them committed, appending in
+     * turn and committing concurrently as the message store does
+     * @return The messages written per second and the mean number of messages per force
+     */
+    private static double[] MeasureDurability(File logFile, MessageLog.Durability durability, int threadCount, int messages) throws IOException, InterruptedException {
+        MessageLog log = new MessageLog(logFile, durability, MessageLog.DEFAULT_GROUP_COMMIT_SIZE, MessageLog.DEFAULT_GROUP_COMMIT_WINDOW);
+        log.Truncate();
+        long[] sequence = {-1};
+        Thread[] threads = new Thread[threadCount];
+
+        for (int t = 0; t < threadCount; t++) {
+            threads[t] = new Thread(() -> {
+                try {
+                    for (int i = 0; i < messages; i++) {
+                        long written;
+                        synchronized (sequence) {
+                            written = ++sequence[0];
+                            log.Append(written, MessageLog.PUSH, 0, CreateMessage(0));
+                        }
+
+                        log.Commit(written);
+                    }
+
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+        }
+
+        long start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        double rate = (double) messages * threadCount / ((System.nanoTime() - start) / 1e9);
+        double perForce = log.GetSyncs() == 0 ? 0 : (double) log.GetSyncedRecords() / log.GetSyncs();
+        log.Close();
+        return new double[] {rate, perForce};
+    }
+}
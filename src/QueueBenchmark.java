@@ -0,0 +1,146 @@
+import com.nathcat.messagecat_server.Queue;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the ring buffer Queue with the linked list queue it replaced. The linked list queue walked the whole list
+ * on every push, so its cost grows with the number of queued objects, while the ring buffer's does not.
+ *
+ * Usage: QueueBenchmark [operations per measurement] [threads for the concurrent test]
+ */
+public class QueueBenchmark {
+    /**
+     * The push and pop algorithm of the old linked list queue
+     */
+    private static class LinkedListQueue {
+        private static class Node {
+            public final Object data;
+            public Node nextNode;
+
+            public Node(Object data) {
+                this.data = data;
+            }
+        }
+
+        private Node startNode = null;
+
+        public void Push(Object data) {
+            if (this.startNode == null) {
+                this.startNode = new Node(data);
+                return;
+            }
+
+            Node currentNode = this.startNode;
+            while (currentNode.nextNode != null) {
+                currentNode = currentNode.nextNode;
+            }
+
+            currentNode.nextNode = new Node(data);
+        }
+
+        public Object Pop() {
+            if (this.startNode == null) {
+                return null;
+            }
+
+            Object data = this.startNode.data;
+            this.startNode = this.startNode.nextNode;
+            return data;
+        }
+    }
+
+    private static final Object item = new Object();
+
+    public static void main(String[] args) throws InterruptedException {
+        int operations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int threadCount = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+
+        System.out.println("Single thread, push + pop with a steady number of queued objects");
+        System.out.printf("%-10s %20s %20s%n", "Depth", "Linked list (ops/s)", "Ring buffer (ops/s)");
+
+        for (int depth : new int[] {0, 10, 100, 1000, 10000}) {
+            // Run each measurement twice and keep the second, so the JIT has compiled the loop
+            MeasureLinkedList(depth, operations);
+            double linkedList = MeasureLinkedList(depth, operations);
+            MeasureRingBuffer(depth, operations);
+            double ringBuffer = MeasureRingBuffer(depth, operations);
+
+            System.out.printf("%-10d %20.0f %20.0f%n", depth, linkedList, ringBuffer);
+        }
+
+        // The linked list queue is not safe to share between threads, so only the ring buffer is measured here
+        System.out.println();
+        System.out.println("Ring buffer, " + threadCount + " producers and " + threadCount + " consumers");
+        MeasureConcurrent(threadCount, operations);
+        System.out.printf("%.0f ops/s%n", MeasureConcurrent(threadCount, operations));
+    }
+
+    private static double MeasureLinkedList(int depth, int operations) {
+        LinkedListQueue queue = new LinkedListQueue();
+        for (int i = 0; i < depth; i++) {
+            queue.Push(item);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < operations; i++) {
+            queue.Push(item);
+            queue.Pop();
+        }
+
+        return operations / ((System.nanoTime() - start) / 1e9);
+    }
+
+    private static double MeasureRingBuffer(int depth, int operations) {
+        Queue queue = new Queue(depth + 1);
+        for (int i = 0; i < depth; i++) {
+            queue.Push(item);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < operations; i++) {
+            queue.Push(item);
+            queue.Pop();
+        }
+
+        return operations / ((System.nanoTime() - start) / 1e9);
+    }
+
+    private static double MeasureConcurrent(int threadCount, int operations) throws InterruptedException {
+        Queue queue = new Queue(Queue.DEFAULT_CAPACITY);
+        AtomicLong popped = new AtomicLong(0);
+        long total = (long) operations * threadCount;
+        Thread[] threads = new Thread[threadCount * 2];
+
+        for (int t = 0; t < threadCount; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < operations; i++) {
+                    while (!queue.Offer(item)) {
+                        Thread.yield();
+                    }
+                }
+            });
+
+            threads[threadCount + t] = new Thread(() -> {
+                while (popped.get() < total) {
+                    if (queue.Pop() != null) {
+                        popped.incrementAndGet();
+                    }
+                    else {
+                        Thread.yield();
+                    }
+                }
+            });
+        }
+
+        long start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        return total / ((System.nanoTime() - start) / 1e9);
+    }
+}
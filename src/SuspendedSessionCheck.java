@@ -0,0 +1,83 @@
+import com.nathcat.messagecat_database_entities.FriendRequest;
+import com.nathcat.messagecat_database_entities.User;
+import com.nathcat.messagecat_server.ListenRule;
+import com.nathcat.messagecat_server.ListenRuleIndex;
+import com.nathcat.messagecat_server.RequestType;
+import com.nathcat.messagecat_server.TriggerDispatcher;
+import com.nathcat.messagecat_server.TriggerLog;
+import com.nathcat.messagecat_server.TriggerQueue;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.util.List;
+
+/**
+ * Checks that a request which triggers the listen rules of a session while its client is disconnected can be
+ * replayed once the client resumes the session. Follows the steps the server takes: the session's rules are suspended
+ * when the connection drops, a request triggers them, and they are resumed on a new connection, after which the
+ * client's ReplayTriggers request must return the request.
+ *
+ * Exits with status 1 if the check fails.
+ */
+public class SuspendedSessionCheck {
+    public static void main(String[] args) {
+        ListenRuleIndex index = new ListenRuleIndex();
+        TriggerLog log = new TriggerLog(1000, 3600000);
+        TriggerDispatcher dispatcher = new TriggerDispatcher(256, TriggerDispatcher.OverflowPolicy.DropOldest, 32, 0, log, 1);
+        User user = new User(5, "user", null, "User", null, null);
+
+        // The client connects and listens for friend requests sent to it
+        TriggerQueue first = new TriggerQueue(null, null, dispatcher);
+        ListenRule rule = new ListenRule(RequestType.SendFriendRequest, "RecipientID", user.UserID);
+        try {
+            rule.setId(index.NextId());
+            rule.Bind(null, first, user);
+            Check("the rule is added", index.Add(rule));
+
+        } catch (Exception e) {
+            Fail("the rule could not be added (" + e + ")");
+        }
+
+        // The connection drops, and the session's rules are suspended for its resumption ticket
+        List<ListenRule> suspended = index.Suspend(first);
+        first.Close();
+        index.RemoveSession(first);
+        Check("the rule is suspended", suspended.size() == 1 && index.Size() == 1);
+
+        // Another client sends the user a friend request while it is disconnected
+        FriendRequest friendRequest = new FriendRequest(1, 2, user.UserID, System.currentTimeMillis());
+        JSONObject request = new JSONObject();
+        request.put("type", RequestType.SendFriendRequest);
+        request.put("data", friendRequest);
+        dispatcher.Dispatch(index.Match(RequestType.SendFriendRequest, friendRequest), request);
+
+        // The client reconnects with its ticket and replays what it missed
+        TriggerQueue second = new TriggerQueue(null, null, dispatcher);
+        Check("the rule is resumed", index.Resume(suspended, second).size() == 1);
+
+        JSONObject replay = log.Replay(user.UserID, log.epoch, -1);
+        JSONArray triggers = (JSONArray) replay.get("triggers");
+        Check("the request is replayed", triggers.size() == 1 && friendRequest.equals(((JSONObject) triggers.get(0)).get("data")));
+
+        // A session which cannot be resumed has its rules removed
+        index.Suspend(second);
+        second.Close();
+        index.RemoveSuspended(suspended);
+        Check("the expired rule is removed", index.Size() == 0);
+
+        System.out.println("All checks passed");
+    }
+
+    private static void Check(String description, boolean passed) {
+        if (!passed) {
+            Fail(description);
+        }
+
+        System.out.println("Passed: " + description);
+    }
+
+    private static void Fail(String description) {
+        System.out.println("Failed: " + description);
+        System.exit(1);
+    }
+}
@@ -0,0 +1,155 @@
+package com.nathcat.messagecat_database;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records client connections in the MySQL database in the background. Connections are buffered in memory and written
+ * as a single multi-row insert once a full batch has built up or the flush interval has passed, so the thread which
+ * accepts connections never waits on the database. If the buffer is full the connection is dropped and counted
+ * rather than recorded.
+ *
+ * @author Nathan "Nathcat" Baines
+ */
+public class ConnectionLogger extends Thread {
+    private final MySQLHandler mySQLHandler;         // The handler to write connections to
+    private final BlockingQueue<String[]> buffer;    // Connections waiting to be written, as {ip, timestamp}
+    private final int batchSize;                     // The maximum number of connections in one insert
+    private final long flushInterval;                // The longest time in milliseconds a connection waits to be written
+
+    // Metrics
+    private final AtomicLong written = new AtomicLong(0);
+    private final AtomicLong dropped = new AtomicLong(0);
+    private final AtomicLong failed = new AtomicLong(0);
+
+    /**
+     * Constructor method
+     * @param mySQLHandler The handler to write connections to
+     * @param capacity The maximum number of connections which may wait to be written
+     * @param batchSize The maximum number of connections in one insert
+     * @param flushInterval The longest time in milliseconds a connection waits to be written
+     */
+    public ConnectionLogger(MySQLHandler mySQLHandler, int capacity, int batchSize, long flushInterval) {
+        this.mySQLHandler = mySQLHandler;
+        this.buffer = new ArrayBlockingQueue<>(capacity);
+        this.batchSize = batchSize;
+        this.flushInterval = flushInterval;
+        this.setDaemon(true);
+    }
+
+    /**
+     * Buffer a connection to be written to the database, this never blocks
+     * @param ip The IP address of the client
+     * @param timestamp The timestamp of the connection
+     * @return False if the buffer is full and the connection has been dropped
+     */
+    public boolean Log(String ip, String timestamp) {
+        if (!this.buffer.offer(new String[] {ip, timestamp})) {
+            this.dropped.incrementAndGet();
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Write every buffered connection to the database immediately, used when the server is shutting down
+     */
+    public void Flush() {
+        List<String[]> batch = new ArrayList<>();
+        while (this.buffer.drainTo(batch, this.batchSize) > 0) {
+            this.Write(batch);
+            batch.clear();
+        }
+    }
+
+    /**
+     * Get the number of connections waiting to be written
+     * @return The number of buffered connections
+     */
+    public int GetPending() {
+        return this.buffer.size();
+    }
+
+    /**
+     * Get the number of connections which have been written
+     * @return The number of connections written
+     */
+    public long GetWritten() {
+        return this.written.get();
+    }
+
+    /**
+     * Get the number of connections dropped because the buffer was full
+     * @return The number of connections dropped
+     */
+    public long GetDropped() {
+        return this.dropped.get();
+    }
+
+    /**
+     * Get the number of connections lost because their insert failed
+     * @return The number of connections lost
+     */
+    public long GetFailed() {
+        return this.failed.get();
+    }
+
+    /**
+     * Write a batch of connections to the database
+     * @param batch The connections to write
+     */
+    private synchronized void Write(List<String[]> batch) {
+        try {
+            this.mySQLHandler.AddConnections(batch);
+            this.written.addAndGet(batch.size());
+
+        } catch (SQLException e) {
+            this.failed.addAndGet(batch.size());
+            this.DebugLog(e.getMessage() + " when writing " + batch.size() + " connections.");
+        }
+    }
+
+    @Override
+    public void run() {
+        List<String[]> batch = new ArrayList<>(this.batchSize);
+
+        while (true) {
+            try {
+                // Wait for the first connection of the batch, then give the rest of the batch until the flush
+                // interval has passed to arrive
+                batch.add(this.buffer.take());
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.flushInterval);
+
+                while (batch.size() < this.batchSize) {
+                    if (this.buffer.drainTo(batch, this.batchSize - batch.size()) > 0) {
+                        continue;
+                    }
+
+                    String[] connection = this.buffer.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (connection == null) {
+                        break;
+                    }
+
+                    batch.add(connection);
+                }
+
+                this.Write(batch);
+                batch.clear();
+
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                return;
+            }
+        }
+    }
+
+    private void DebugLog(String message) {
+        System.out.println("Database (ConnectionLogger): " + message);
+    }
+}
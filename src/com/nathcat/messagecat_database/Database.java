@@ -6,6 +6,7 @@ import org.json.simple.parser.ParseException;
 
 import java.io.IOException;
 import java.sql.SQLException;
+import java.util.function.Consumer;
 
 /**
  * Wrapper which combines the different database systems into one unit.
@@ -17,16 +18,32 @@ public class Database {
     protected MessageStore messageStore = null;   // MessageStore instance
     protected KeyStore keyStore = null;           // KeyStore instance
     private final ExpirationManager expirationManager;  // The expiration manager
+    private final ConnectionLogger connectionLogger;    // Writes connection records in the background
 
     /**
      * Default constructor
      */
     public Database() {
+        this(10000, 100, 1000, MessageStore.DEFAULT_SNAPSHOT_INTERVAL, MessageLog.Durability.Group, MessageLog.DEFAULT_GROUP_COMMIT_SIZE, MessageLog.DEFAULT_GROUP_COMMIT_WINDOW);
+    }
+
+    /**
+     * Constructor method
+     * @param connectionLogCapacity The maximum number of connection records which may wait to be written
+     * @param connectionLogBatchSize The maximum number of connection records written in one insert
+     * @param connectionLogInterval The longest time in milliseconds a connection record waits to be written
+     * @param messageSnapshotInterval The number of changes to the message store logged between snapshots
+     * @param messageDurability When changes to the message store are forced to the disk
+     * @param messageGroupCommitSize The most changes to the message store forced together by a group commit
+     * @param messageGroupCommitWindow The longest time in milliseconds a change to the message store waits to be forced
+     *                                 by a group commit
+     */
+    public Database(int connectionLogCapacity, int connectionLogBatchSize, long connectionLogInterval, int messageSnapshotInterval, MessageLog.Durability messageDurability, int messageGroupCommitSize, long messageGroupCommitWindow) {
         // Try to create instances of the three database systems
         try {
             this.mySQLHandler = new MySQLHandler();
             this.keyStore = new KeyStore();
-            this.messageStore = new MessageStore();
+            this.messageStore = new MessageStore(messageSnapshotInterval, messageDurability, messageGroupCommitSize, messageGroupCommitWindow);
 
         } catch (ParseException | SQLException | IOException e) {
             e.printStackTrace();
@@ -39,9 +56,15 @@ public class Database {
         expirationManager = new ExpirationManager(this);
         expirationManager.setDaemon(true);
         expirationManager.start();
+
+        // Start the connection logger
+        connectionLogger = new ConnectionLogger(this.mySQLHandler, connectionLogCapacity, connectionLogBatchSize, connectionLogInterval);
+        connectionLogger.start();
     }
 
     /**
+     * Write a snapshot of the message store and the key store. Changes to both are already saved as they are made, so
+     * this is only needed to shorten the message store's log.
      * @see MessageStore#WriteToFile()
      * @see KeyStore#WriteToFile()
      */
@@ -81,6 +104,19 @@ public class Database {
         }
     }
 
+    /**
+     * @see com.nathcat.messagecat_database.MySQLHandler#GetUsersByID(int[])
+     */
+    public User[] GetUsersByID(int[] UserIDs) {
+        try {
+            return this.mySQLHandler.GetUsersByID(UserIDs);
+
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
     /**
      * @see com.nathcat.messagecat_database.MySQLHandler#GetUserByDisplayName(String)
      */
@@ -94,6 +130,20 @@ public class Database {
         }
     }
 
+    /**
+     * @see com.nathcat.messagecat_database.MySQLHandler#SearchUsersByDisplayName(String, String, int, int, Consumer)
+     */
+    public Result SearchUsersByDisplayName(String DisplayName, String AfterDisplayName, int AfterUserID, int Limit, Consumer<User> consumer) {
+        try {
+            this.mySQLHandler.SearchUsersByDisplayName(DisplayName, AfterDisplayName, AfterUserID, Limit, consumer);
+            return Result.SUCCESS;
+
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return Result.FAILED;
+        }
+    }
+
     /**
      * @see com.nathcat.messagecat_database.MySQLHandler#GetFriendshipByID(int)
      */
@@ -185,6 +235,19 @@ public class Database {
         }
     }
 
+    /**
+     * @see com.nathcat.messagecat_database.MySQLHandler#GetChatsByID(int[])
+     */
+    public Chat[] GetChatsByID(int[] ChatIDs) {
+        try {
+            return this.mySQLHandler.GetChatsByID(ChatIDs);
+
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
     /**
      * @see com.nathcat.messagecat_database.MySQLHandler#GetChatByPublicKeyID(int) 
      */
@@ -318,16 +381,28 @@ public class Database {
     }
 
     /**
-     * @see com.nathcat.messagecat_database.MySQLHandler#AddConnection(String, String)
+     * Record a connection, the record is written to the database in the background
+     * @see com.nathcat.messagecat_database.ConnectionLogger#Log(String, String)
+     * @return FAILED if the record was dropped because too many records are waiting to be written
      */
     public Result AddConnection(String ip, String timestamp) {
-        try {
-            this.mySQLHandler.AddConnection(ip, timestamp);
-            return Result.SUCCESS;
+        return this.connectionLogger.Log(ip, timestamp) ? Result.SUCCESS : Result.FAILED;
+    }
 
-        } catch (SQLException e){
-            return Result.FAILED;
-        }
+    /**
+     * Get the logger which writes connection records, for its metrics
+     * @return The connection logger
+     */
+    public ConnectionLogger GetConnectionLogger() {
+        return this.connectionLogger;
+    }
+
+    /**
+     * Get the message store, for its metrics
+     * @return The message store
+     */
+    public MessageStore GetMessageStore() {
+        return this.messageStore;
     }
 
     /**
@@ -337,6 +412,13 @@ public class Database {
         return this.messageStore.GetMessageQueue(ChatID);
     }
 
+    /**
+     * @see com.nathcat.messagecat_database.MessageStore#Push(Message)
+     */
+    public Result PushMessage(Message message) {
+        return this.messageStore.Push(message);
+    }
+
     /**
      * @see com.nathcat.messagecat_database.MessageStore#AddMessageQueue(MessageQueue)
      */
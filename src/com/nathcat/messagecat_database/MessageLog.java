@@ -0,0 +1,608 @@
+package com.nathcat.messagecat_database;
+
+import com.nathcat.messagecat_database_entities.Message;
+import com.nathcat.messagecat_server.WireCodec;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the changes made to the MessageStore since its last snapshot, so that storing a message only
+ * writes the message rather than the whole store. The log is replayed on top of the snapshot when the store is loaded.
+ *
+ * Each record is framed as follows:
+ *  - int: the length of the payload in bytes
+ *  - int: the CRC32 of the payload
+ *  - payload: long sequence number, byte record type, int chat ID, then for PUSH records the message encoded with
+ *    WireCodec
+ *
+ * A record which is cut short or fails its CRC, such as one being written when the server stopped, ends the log, and
+ * it is removed along with anything after it.
+ *
+ * How soon a record is forced to the disk after it is written depends on the log's durability, see Durability. A
+ * record which has been written but not forced survives the server stopping, but not the machine losing power. If
+ * forcing the log fails, every record which has not been forced is removed from it, so that it is never replayed, and
+ * committing it fails.
+ *
+ * @author Nathan "Nathcat" Baines
+ */
+public class MessageLog {
+    /**
+     * A message was pushed to a chat's queue
+     */
+    public static final byte PUSH = 0;
+
+    /**
+     * A chat's queue was added
+     */
+    public static final byte ADD_QUEUE = 1;
+
+    /**
+     * A chat's queue was removed
+     */
+    public static final byte REMOVE_QUEUE = 2;
+
+    /**
+     * The most records forced together by a group commit when no size is given
+     */
+    public static final int DEFAULT_GROUP_COMMIT_SIZE = 64;
+
+    /**
+     * The longest time in milliseconds a record waits to be forced by a group commit when no window is given
+     */
+    public static final long DEFAULT_GROUP_COMMIT_WINDOW = 2;
+
+    /**
+     * When records are forced to the disk
+     */
+    public enum Durability {
+        /**
+         * Force each record as it is written, so writers take turns waiting for the disk
+         */
+        Sync,
+        /**
+         * Force the records of concurrent writers together, once enough records are waiting or the oldest has waited
+         * for the group commit window. Each writer waits until its record has been forced.
+         */
+        Group,
+        /**
+         * Never force records, the operating system writes them to the disk in its own time
+         */
+        Async
+    }
+
+    /**
+     * The length of the frame header before the payload
+     */
+    private static final int HEADER_LENGTH = 8;
+
+    /**
+     * The largest payload a record may have, anything larger is treated as corruption
+     */
+    private static final int MAX_PAYLOAD_LENGTH = 16 * 1024 * 1024;
+
+    /**
+     * Applies a record read from the log
+     */
+    public interface Replayer {
+        void Apply(long sequence, byte type, int chatID, Message message);
+    }
+
+    private final FileChannel channel;
+
+    public final Durability durability;
+
+    /**
+     * The most records forced together by a group commit
+     */
+    private final int groupCommitSize;
+
+    /**
+     * The longest time in milliseconds a record waits to be forced by a group commit
+     */
+    private final long groupCommitWindow;
+
+    /**
+     * The number of records in the log, changed while holding writeLock
+     */
+    private volatile int records = 0;
+
+    /**
+     * Held while a record is written, and while the records which failed to be forced are removed
+     */
+    private final Object writeLock = new Object();
+
+    /**
+     * Guards the commit state below, and is notified when it changes
+     */
+    private final Object commitLock = new Object();
+
+    /**
+     * The sequence number of the last record written
+     */
+    private long written = -1;
+
+    /**
+     * The position in the file after the last record written
+     */
+    private long writtenPosition = 0;
+
+    /**
+     * The sequence number of the last record forced, every record before it has been forced too unless it failed
+     */
+    private long committed = -1;
+
+    /**
+     * The position in the file after the last record forced
+     */
+    private long committedPosition = 0;
+
+    /**
+     * The ranges of sequence numbers of the records which failed to be forced and were removed, from the first to the
+     * last of each range. Emptied when the log is truncated.
+     */
+    private final TreeMap<Long, Long> failures = new TreeMap<>();
+
+    /**
+     * The number of records written since the last force
+     */
+    private int uncommitted = 0;
+
+    private boolean closed = false;
+
+    // Metrics
+    private final LongAdder syncs = new LongAdder();
+    private final LongAdder syncedRecords = new LongAdder();
+    private final LongAdder failedSyncs = new LongAdder();
+    private final AtomicInteger maxBatchSize = new AtomicInteger(0);
+
+    /**
+     * Constructor method, opens the log file or creates it if it does not exist. Records are never forced.
+     * @param file The log file
+     * @throws IOException Thrown if the file cannot be opened
+     */
+    public MessageLog(File file) throws IOException {
+        this(file, Durability.Async, DEFAULT_GROUP_COMMIT_SIZE, DEFAULT_GROUP_COMMIT_WINDOW);
+    }
+
+    /**
+     * Constructor method, opens the log file or creates it if it does not exist
+     * @param file The log file
+     * @param durability When records are forced to the disk
+     * @param groupCommitSize The most records forced together by a group commit
+     * @param groupCommitWindow The longest time in milliseconds a record waits to be forced by a group commit
+     * @throws IOException Thrown if the file cannot be opened
+     */
+    public MessageLog(File file, Durability durability, int groupCommitSize, long groupCommitWindow) throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.durability = durability;
+        this.groupCommitSize = groupCommitSize;
+        this.groupCommitWindow = groupCommitWindow;
+
+        if (durability == Durability.Group) {
+            Thread committer = new Thread(this::RunCommitter, "MessageLogCommitter");
+            committer.setDaemon(true);
+            committer.start();
+        }
+    }
+
+    /**
+     * Read the log from the start and apply its records, then remove any incomplete or corrupt record at the end so
+     * that new records are appended after the last good one. Must be called before anything is appended.
+     * @param replayer Applies each record
+     * @return The sequence number of the last record, or -1 if the log is empty
+     * @throws IOException Thrown if the log cannot be read
+     */
+    public long Replay(Replayer replayer) throws IOException {
+        long position = 0;
+        long size = this.channel.size();
+        long lastSequence = -1;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+
+        while (position + HEADER_LENGTH <= size) {
+            header.clear();
+            ReadFully(this.channel, header, position);
+            header.flip();
+            int length = header.getInt();
+            int crc = header.getInt();
+
+            if (length < 13 || length > MAX_PAYLOAD_LENGTH || position + HEADER_LENGTH + length > size) {
+                break;
+            }
+
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            ReadFully(this.channel, payload, position + HEADER_LENGTH);
+            if (Checksum(payload.array(), length) != crc) {
+                break;
+            }
+
+            payload.flip();
+            long sequence = payload.getLong();
+            byte type = payload.get();
+            int chatID = payload.getInt();
+            Message message = null;
+            if (type == PUSH) {
+                byte[] encoded = new byte[payload.remaining()];
+                payload.get(encoded);
+                try {
+                    message = (Message) WireCodec.Decode(encoded);
+
+                } catch (IOException | ClassCastException e) {
+                    break;
+                }
+            }
+
+            replayer.Apply(sequence, type, chatID, message);
+            lastSequence = sequence;
+            this.records++;
+            position += HEADER_LENGTH + length;
+        }
+
+        if (position < size) {
+            System.out.println("MessageLog: Removing " + (size - position) + " bytes of incomplete records from the end of the log");
+            this.channel.truncate(position);
+        }
+
+        this.channel.position(position);
+
+        synchronized (this.commitLock) {
+            this.written = lastSequence;
+            this.committed = lastSequence;
+            this.writtenPosition = position;
+            this.committedPosition = position;
+        }
+
+        return lastSequence;
+    }
+
+    /**
+     * Append a record to the log. With Sync durability the record has been forced when this returns, otherwise call
+     * Commit to wait for it to be forced.
+     * @param sequence The sequence number of the record, which must be greater than that of every earlier record
+     * @param type The type of the record
+     * @param chatID The ID of the chat the record is about
+     * @param message The message pushed, for PUSH records
+     * @throws IOException Thrown if the record cannot be written
+     */
+    public void Append(long sequence, byte type, int chatID, Message message) throws IOException {
+        byte[] encoded = message == null ? new byte[0] : WireCodec.Encode(message);
+        int length = 13 + encoded.length;
+
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH + length);
+        frame.putInt(length);
+        frame.putInt(0);
+        frame.putLong(sequence);
+        frame.put(type);
+        frame.putInt(chatID);
+        frame.put(encoded);
+        frame.putInt(4, Checksum(frame.array(), HEADER_LENGTH, length));
+        frame.flip();
+
+        synchronized (this.writeLock) {
+            long start = this.channel.position();
+            try {
+                while (frame.hasRemaining()) {
+                    this.channel.write(frame);
+                }
+
+                if (this.durability == Durability.Sync) {
+                    this.Force(1);
+                }
+
+            } catch (IOException e) {
+                // Do not leave part of a record behind for the next record to be appended after
+                this.channel.truncate(start);
+                this.channel.position(start);
+                throw e;
+            }
+
+            this.records++;
+
+            synchronized (this.commitLock) {
+                this.written = sequence;
+                this.writtenPosition = this.channel.position();
+                if (this.durability == Durability.Group) {
+                    this.uncommitted++;
+                    this.commitLock.notifyAll();
+                }
+                else {
+                    this.committed = sequence;
+                    this.committedPosition = this.writtenPosition;
+                }
+            }
+        }
+    }
+
+    /**
+     * Wait until a record has been forced to the disk. Returns straight away unless the log has Group durability. Once
+     * this has returned for a record, it returns straight away for every record before it too.
+     * @param sequence The sequence number of the record
+     * @return Whether the record was forced, false if forcing it failed and it was removed from the log, or the log was
+     *         closed first
+     */
+    public boolean Commit(long sequence) {
+        boolean interrupted = false;
+
+        synchronized (this.commitLock) {
+            try {
+                while (true) {
+                    // Checked first, as records forced after the failure may have later sequence numbers
+                    Map.Entry<Long, Long> failure = this.failures.floorEntry(sequence);
+                    if (failure != null && failure.getValue() >= sequence) {
+                        return false;
+                    }
+
+                    if (this.committed >= sequence) {
+                        return true;
+                    }
+
+                    if (this.closed) {
+                        return false;
+                    }
+
+                    try {
+                        this.commitLock.wait();
+
+                    } catch (InterruptedException e) {
+                        // The outcome is not known yet, so keep waiting for it
+                        interrupted = true;
+                    }
+                }
+
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * Force the records written since the last force to the disk whenever there are enough of them or the oldest has
+     * waited for the group commit window, run on the committer thread
+     */
+    private void RunCommitter() {
+        while (true) {
+            long target;
+            long targetPosition;
+            int batch;
+
+            synchronized (this.commitLock) {
+                try {
+                    while (this.uncommitted == 0 && !this.closed) {
+                        this.commitLock.wait();
+                    }
+
+                    // Give concurrent writers the rest of the window to join the batch
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.groupCommitWindow);
+                    long remaining;
+                    while (this.uncommitted < this.groupCommitSize && !this.closed && (remaining = deadline - System.nanoTime()) > 0) {
+                        TimeUnit.NANOSECONDS.timedWait(this.commitLock, remaining);
+                    }
+
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                if (this.uncommitted == 0) {
+                    // Closed, or emptied by a snapshot
+                    if (this.closed) {
+                        return;
+                    }
+
+                    continue;
+                }
+
+                target = this.written;
+                targetPosition = this.writtenPosition;
+                batch = this.uncommitted;
+                this.uncommitted = 0;
+            }
+
+            try {
+                this.Force(batch);
+
+            } catch (IOException e) {
+                e.printStackTrace();
+                this.Abandon();
+                continue;
+            }
+
+            synchronized (this.commitLock) {
+                if (target > this.committed) {
+                    this.committed = target;
+                    this.committedPosition = targetPosition;
+                }
+
+                this.commitLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Remove every record which has not been forced, after forcing the log has failed, so that they are not replayed,
+     * and fail the writers waiting for them. Records written after the failed batch are removed too, as they follow it
+     * in the file.
+     */
+    private void Abandon() {
+        synchronized (this.writeLock) {
+            synchronized (this.commitLock) {
+                if (this.written > this.committed) {
+                    this.failures.put(this.committed + 1, this.written);
+                    this.records -= (int) (this.written - this.committed);
+
+                    try {
+                        this.channel.truncate(this.committedPosition);
+                        this.channel.position(this.committedPosition);
+
+                    } catch (IOException e) {
+                        // The records may still be replayed, but their writers are told they failed either way
+                        e.printStackTrace();
+                    }
+
+                    this.written = this.committed;
+                    this.writtenPosition = this.committedPosition;
+                }
+
+                this.uncommitted = 0;
+                this.commitLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Force the log to the disk and record the batch in the metrics
+     * @param batch The number of records being forced
+     */
+    private void Force(int batch) throws IOException {
+        try {
+            this.channel.force(false);
+
+        } catch (IOException e) {
+            this.failedSyncs.increment();
+            throw e;
+        }
+
+        this.syncs.increment();
+        this.syncedRecords.add(batch);
+        this.maxBatchSize.accumulateAndGet(batch, Math::max);
+    }
+
+    /**
+     * Remove every record, called once a snapshot containing them has been written to the disk. Must only be called
+     * once every record has been committed or has failed.
+     * @throws IOException Thrown if the log cannot be truncated
+     */
+    public void Truncate() throws IOException {
+        synchronized (this.writeLock) {
+            this.channel.truncate(0);
+            this.channel.position(0);
+            this.records = 0;
+
+            synchronized (this.commitLock) {
+                this.committed = this.written;
+                this.writtenPosition = 0;
+                this.committedPosition = 0;
+                this.failures.clear();
+                this.uncommitted = 0;
+                this.commitLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Get the number of records in the log
+     * @return The number of records
+     */
+    public int GetRecords() {
+        return this.records;
+    }
+
+    /**
+     * Get the size of the log
+     * @return The size of the log in bytes
+     * @throws IOException Thrown if the size cannot be read
+     */
+    public long GetSize() throws IOException {
+        return this.channel.size();
+    }
+
+    /**
+     * Get the number of times the log has been forced to the disk
+     * @return The number of forces
+     */
+    public long GetSyncs() {
+        return this.syncs.sum();
+    }
+
+    /**
+     * Get the number of records which have been forced to the disk, each force counts the records written since the
+     * last
+     * @return The number of records
+     */
+    public long GetSyncedRecords() {
+        return this.syncedRecords.sum();
+    }
+
+    /**
+     * Get the number of times forcing the log to the disk has failed
+     * @return The number of failures
+     */
+    public long GetFailedSyncs() {
+        return this.failedSyncs.sum();
+    }
+
+    /**
+     * Get the most records forced to the disk at once
+     * @return The largest batch
+     */
+    public int GetMaxBatchSize() {
+        return this.maxBatchSize.get();
+    }
+
+    /**
+     * Close the log file, after forcing it to the disk unless the log has Async durability
+     * @throws IOException Thrown if the file cannot be closed
+     */
+    public void Close() throws IOException {
+        try {
+            if (this.durability != Durability.Async) {
+                this.channel.force(false);
+                synchronized (this.commitLock) {
+                    this.committed = this.written;
+                }
+            }
+
+        } finally {
+            synchronized (this.commitLock) {
+                this.closed = true;
+                this.commitLock.notifyAll();
+            }
+
+            this.channel.close();
+        }
+    }
+
+    /**
+     * Parse a durability from the server config
+     * @param name The name of the durability, "sync", "group" or "async"
+     * @return The durability
+     * @throws IllegalArgumentException Thrown if there is no such durability
+     */
+    public static Durability ParseDurability(String name) {
+        switch (name) {
+            case "sync": return Durability.Sync;
+            case "group": return Durability.Group;
+            case "async": return Durability.Async;
+            default: throw new IllegalArgumentException("Unknown message durability " + name);
+        }
+    }
+
+    private static int Checksum(byte[] bytes, int length) {
+        return Checksum(bytes, 0, length);
+    }
+
+    private static int Checksum(byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+
+    private static void ReadFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new IOException("Unexpected end of log");
+            }
+        }
+    }
+}
@@ -1,56 +1,193 @@
 package com.nathcat.messagecat_database;
 
+import com.nathcat.messagecat_database_entities.Message;
+
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * This class will handle messages.
  *
+ * Changes are appended to a MessageLog as they are made, and the whole store is only written to the data file as a
+ * snapshot once the log has grown to the snapshot interval, after which the log is emptied. When the store is loaded
+ * the log is replayed on top of the snapshot. Each change has a sequence number, and the snapshot records the last
+ * one it contains, so a change is never applied twice if the server stops between writing a snapshot and emptying
+ * the log.
+ *
+ * A change is only made once it has been committed to the log, in the order the changes were logged, so other threads
+ * never read a change which could still be lost. A change which fails to be committed is removed from the log and
+ * never made, so the client can safely retry it.
+ *
  * @author Nathan "Nathcat" Baines
  */
 public class MessageStore {
-    private HashMap<Integer, MessageQueue> data = null;  // Keys are the chat ids, and the values are the message queues
+    /**
+     * The number of changes logged between snapshots when no interval is given
+     */
+    public static final int DEFAULT_SNAPSHOT_INTERVAL = 10000;
+
+    private final File dataFile = new File("Assets/Data/MessageStore.bin");
+    private final File logFile = new File("Assets/Data/MessageStore.log");
+
+    private Map<Integer, MessageQueue> data = null;  // Keys are the chat ids, and the values are the message queues
+
+    /**
+     * The changes made since the last snapshot
+     */
+    private MessageLog log;
+
+    /**
+     * The number of changes logged between snapshots
+     */
+    private final int snapshotInterval;
+
+    /**
+     * A change which has been logged but not yet made
+     */
+    private static class PendingChange {
+        final byte type;
+        final int chatID;
+        final Message message;
+        final MessageQueue queue;
+
+        PendingChange(byte type, int chatID, Message message, MessageQueue queue) {
+            this.type = type;
+            this.chatID = chatID;
+            this.message = message;
+            this.queue = queue;
+        }
+    }
+
+    /**
+     * The sequence number of the last change logged, guarded by this
+     */
+    private long sequence = -1;
+
+    /**
+     * The sequence number of the last change which has been made or has failed, every change before it has been too,
+     * guarded by this
+     */
+    private long applied = -1;
+
+    /**
+     * The changes which have been logged and are waiting to be committed before they are made, by sequence number,
+     * guarded by this
+     */
+    private final TreeMap<Long, PendingChange> pending = new TreeMap<>();
+
+    /**
+     * Set when the log has reached the snapshot interval, new changes wait until the changes being committed have been
+     * made and the snapshot has been written, guarded by this
+     */
+    private boolean snapshotDue = false;
+
+    // Metrics
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder failedWrites = new LongAdder();
+    private final LongAdder writeNanos = new LongAdder();
+    private final AtomicLong maxWriteNanos = new AtomicLong(0);
 
     /**
      * Default constructor
      */
     public MessageStore() throws IOException {
+        this(DEFAULT_SNAPSHOT_INTERVAL, MessageLog.Durability.Group, MessageLog.DEFAULT_GROUP_COMMIT_SIZE, MessageLog.DEFAULT_GROUP_COMMIT_WINDOW);
+    }
+
+    /**
+     * Constructor method
+     * @param snapshotInterval The number of changes logged between snapshots
+     * @param durability When changes are forced to the disk
+     * @param groupCommitSize The most changes forced together by a group commit
+     * @param groupCommitWindow The longest time in milliseconds a change waits to be forced by a group commit
+     */
+    public MessageStore(int snapshotInterval, MessageLog.Durability durability, int groupCommitSize, long groupCommitWindow) throws IOException {
+        this.snapshotInterval = snapshotInterval;
+
         try {
             // Try to read the data file
-            data = this.ReadFromFile();
+            data = new ConcurrentHashMap<>(this.ReadFromFile());
 
         } catch (FileNotFoundException e) {  // Thrown if the file does not exist
             // Create a new empty hash map and create a new file for it
-            data = new HashMap<Integer, MessageQueue>();
-            this.WriteToFile();
+            data = new ConcurrentHashMap<>();
+            this.WriteSnapshot();
 
         } catch (IOException | ClassNotFoundException e) {  // Potentially thrown by I/O operations
             e.printStackTrace();
         }
 
         assert this.data != null;
+
+        // Apply the changes made after the snapshot
+        this.log = new MessageLog(this.logFile, durability, groupCommitSize, groupCommitWindow);
+        long snapshotSequence = this.sequence;
+        long lastSequence = this.log.Replay((sequence, type, chatID, message) -> {
+            if (sequence > snapshotSequence) {
+                this.Apply(type, chatID, message, null);
+            }
+        });
+
+        this.sequence = Math.max(this.sequence, lastSequence);
+        this.applied = this.sequence;
     }
 
     /**
-     * Read data from data file
+     * Read data from data file, and the sequence number of the last change it contains
      * @return The HashMap found in the data file
      * @throws IOException Can be thrown by I/O operations
      * @throws ClassNotFoundException Thrown if the Serialized class cannot be found
      */
     public HashMap<Integer, MessageQueue> ReadFromFile() throws IOException, ClassNotFoundException {
-        ObjectInputStream ois = new ObjectInputStream(new FileInputStream("Assets/Data/MessageStore.bin"));
-        return (HashMap<Integer, MessageQueue>) ois.readObject();
+        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(this.dataFile))) {
+            HashMap<Integer, MessageQueue> data = (HashMap<Integer, MessageQueue>) ois.readObject();
+
+            try {
+                this.sequence = ois.readLong();
+
+            } catch (EOFException e) {
+                // Written before the store had a log
+                this.sequence = -1;
+            }
+
+            return data;
+        }
     }
 
     /**
-     * Write data to data file
+     * Write a snapshot of the whole store to the data file, and empty the log unless changes are waiting to be
+     * committed, as the snapshot does not contain them
      * @throws IOException Can be thrown by I/O operations
      */
-    public void WriteToFile() throws IOException {
-        ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream("Assets/Data/MessageStore.bin"));
-        oos.writeObject(data);
-        oos.flush();
-        oos.close();
+    public synchronized void WriteToFile() throws IOException {
+        this.WriteSnapshot();
+        if (this.log != null && this.pending.isEmpty()) {
+            this.log.Truncate();
+        }
+    }
+
+    /**
+     * Write the store to a temporary file and then move it over the data file, so the data file is never left half
+     * written. The file is forced to the disk before the move, as the log is emptied afterwards.
+     */
+    private void WriteSnapshot() throws IOException {
+        File tempFile = new File(this.dataFile.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tempFile); ObjectOutputStream oos = new ObjectOutputStream(fos)) {
+            // The data file is kept as a HashMap so that it can still be read by older versions
+            oos.writeObject(new HashMap<>(this.data));
+            oos.writeLong(this.applied);
+            oos.flush();
+            fos.getFD().sync();
+        }
+
+        Files.move(tempFile.toPath(), this.dataFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
     }
 
     /**
@@ -62,28 +199,23 @@ public class MessageStore {
         return this.data.get(ChatID);
     }
 
+    /**
+     * Push a message to the back of its chat's message queue and log it
+     * @param message The message
+     * @return Result code, FAILED if the chat has no message queue or the message could not be logged
+     */
+    public Result Push(Message message) {
+        return this.Change(MessageLog.PUSH, message.ChatID, message, null);
+    }
+
     /**
      * Add a message queue
      * @param queue The message queue to add
      * @return Result code
      */
     public Result AddMessageQueue(MessageQueue queue) {
-        // Create a copy of the original data
-        Object dataCopy = this.data.clone();
-        // Add the new queue
-        this.data.put(queue.ChatID, queue);
-
-        // Try to write the new data to the data file
-        try {
-            this.WriteToFile();
-            return Result.SUCCESS;
-
-        } catch (IOException e) {
-            // Revert the data to its original form
-            e.printStackTrace();
-            this.data = (HashMap<Integer, MessageQueue>) dataCopy;
-            return Result.FAILED;
-        }
+        // Only the chat ID is logged, so the queue is restored empty
+        return this.Change(MessageLog.ADD_QUEUE, queue.ChatID, null, queue);
     }
 
     /**
@@ -92,21 +224,158 @@ public class MessageStore {
      * @return Result code
      */
     public Result RemoveMessageQueue(int ChatID) {
-        // Create a copy of the original data
-        Object dataCopy = this.data.clone();
-        // Add the new queue
-        this.data.remove(ChatID);
+        return this.Change(MessageLog.REMOVE_QUEUE, ChatID, null, null);
+    }
 
-        // Try to write the new data to the data file
-        try {
-            this.WriteToFile();
-            return Result.SUCCESS;
+    /**
+     * Log a change, wait for it to be committed to the log, and then make it, writing a snapshot if the log has
+     * reached the snapshot interval
+     * @return Result code, FAILED if the change could not be logged or committed, in which case it has not been made
+     */
+    private Result Change(byte type, int chatID, Message message, MessageQueue queue) {
+        long start = System.nanoTime();
+        long changeSequence;
 
-        } catch (IOException e) {
-            // Revert the data to its original form
-            e.printStackTrace();
-            this.data = (HashMap<Integer, MessageQueue>) dataCopy;
+        synchronized (this) {
+            while (this.snapshotDue) {
+                try {
+                    this.wait();
+
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return Result.FAILED;
+                }
+            }
+
+            if (type == MessageLog.PUSH && !this.data.containsKey(chatID)) {
+                return Result.FAILED;
+            }
+
+            try {
+                this.log.Append(this.sequence + 1, type, chatID, message);
+
+            } catch (IOException e) {
+                e.printStackTrace();
+                this.failedWrites.increment();
+                return Result.FAILED;
+            }
+
+            changeSequence = ++this.sequence;
+            this.pending.put(changeSequence, new PendingChange(type, chatID, message, queue));
+            this.snapshotDue = this.log.GetRecords() >= this.snapshotInterval;
+        }
+
+        // Wait outside the lock, so that concurrent changes are committed together
+        boolean committed = this.log.Commit(changeSequence);
+
+        synchronized (this) {
+            this.ApplyCommitted(changeSequence);
+        }
+
+        if (!committed) {
+            this.failedWrites.increment();
             return Result.FAILED;
         }
+
+        long elapsed = System.nanoTime() - start;
+        this.writes.increment();
+        this.writeNanos.add(elapsed);
+        this.maxWriteNanos.accumulateAndGet(elapsed, Math::max);
+        return Result.SUCCESS;
+    }
+
+    /**
+     * Get the log the store's changes are written to
+     * @return The log
+     */
+    public MessageLog GetLog() {
+        return this.log;
+    }
+
+    /**
+     * Get the number of changes which have been logged and committed
+     * @return The number of changes
+     */
+    public long GetWrites() {
+        return this.writes.sum();
+    }
+
+    /**
+     * Get the number of changes which could not be logged or committed
+     * @return The number of changes
+     */
+    public long GetFailedWrites() {
+        return this.failedWrites.sum();
+    }
+
+    /**
+     * Get the mean time taken to log and commit a change
+     * @return The mean time in microseconds
+     */
+    public long GetMeanWriteLatency() {
+        long writes = this.writes.sum();
+        return writes == 0 ? 0 : this.writeNanos.sum() / writes / 1000;
+    }
+
+    /**
+     * Get the longest time taken to log and commit a change
+     * @return The longest time in microseconds
+     */
+    public long GetMaxWriteLatency() {
+        return this.maxWriteNanos.get() / 1000;
+    }
+
+    /**
+     * Make the waiting changes up to one whose commit has finished, in the order they were logged, dropping those which
+     * failed to be committed. The log knows the outcome of every change before one whose commit has finished, so this
+     * does not wait. Writes the snapshot once it is due and no changes are waiting. Must be called holding this.
+     * @param upTo The sequence number of the change whose commit has finished
+     */
+    private void ApplyCommitted(long upTo) {
+        while (!this.pending.isEmpty() && this.pending.firstKey() <= upTo) {
+            Map.Entry<Long, PendingChange> entry = this.pending.pollFirstEntry();
+            if (this.log.Commit(entry.getKey())) {
+                PendingChange change = entry.getValue();
+                this.Apply(change.type, change.chatID, change.message, change.queue);
+            }
+
+            this.applied = entry.getKey();
+        }
+
+        if (this.snapshotDue && this.pending.isEmpty()) {
+            try {
+                this.WriteToFile();
+
+            } catch (IOException e) {
+                // The changes are in the log, so the snapshot can wait until the next change
+                e.printStackTrace();
+            }
+
+            this.snapshotDue = false;
+            this.notifyAll();
+        }
+    }
+
+    /**
+     * Make a logged change to the store
+     * @param queue The queue added by an ADD_QUEUE change, or null to add a new empty queue
+     */
+    private void Apply(byte type, int chatID, Message message, MessageQueue queue) {
+        switch (type) {
+            case MessageLog.PUSH:
+                MessageQueue target = this.data.get(chatID);
+                if (target != null) {
+                    target.Push(message);
+                }
+                break;
+
+            case MessageLog.ADD_QUEUE:
+                this.data.put(chatID, queue != null ? queue : new MessageQueue(chatID));
+                break;
+
+            case MessageLog.REMOVE_QUEUE:
+                this.data.remove(chatID);
+                break;
+        }
     }
 }
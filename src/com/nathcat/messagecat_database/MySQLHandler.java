@@ -9,7 +9,10 @@ import org.json.simple.parser.ParseException;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
+import java.util.function.Consumer;
 
 /**
  * This class handles calls to the MySQL database made through the Database class.
@@ -87,6 +90,23 @@ public class MySQLHandler {
         }
     }
 
+    /**
+     * Prepare a query with parameters, whose results are read once from start to end
+     * @param query The query to be prepared
+     * @return The prepared statement
+     * @throws SQLException Thrown by SQL errors.
+     */
+    protected PreparedStatement Prepare(String query) throws SQLException {
+        try {
+            return conn.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+
+        } catch (CommunicationsException e) {
+            // Restart the connection and try again
+            StartConnection();
+            return conn.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        }
+    }
+
     /**
      * Perform an update query on the database (or any query that does not have a result set)
      * @param query The query to be executed
@@ -146,6 +166,31 @@ public class MySQLHandler {
         return result;
     }
 
+    /**
+     * Get several users by their IDs with a single query
+     * @param UserIDs The IDs of the users, must not be empty
+     * @return The users found, in no particular order. IDs with no user are left out.
+     * @throws SQLException Thrown by SQL errors
+     */
+    public User[] GetUsersByID(int[] UserIDs) throws SQLException {
+        ResultSet rs = this.Select("SELECT * FROM `Users` WHERE `UserID` in (" + JoinIDs(UserIDs) + ")");
+
+        List<User> results = new ArrayList<>();
+        while (rs.next()) {
+            results.add(new User(
+                    rs.getInt("UserID"),
+                    rs.getString("Username"),
+                    rs.getString("Password"),
+                    rs.getString("DisplayName"),
+                    rs.getString("DateCreated"),
+                    rs.getString("ProfilePicturePath")
+            ));
+        }
+
+        rs.close();
+        return results.toArray(new User[0]);
+    }
+
     /**
      * Get a user by their username.
      * @param Username The username to search for
@@ -215,6 +260,52 @@ public class MySQLHandler {
         return results;
     }
 
+    /**
+     * Search for users whose display names start with a prefix, one page at a time. Users are ordered by display name
+     * and then ID, and each page starts after the last user of the previous page, so the database does not have to
+     * skip over the earlier pages. Each user is passed to the consumer as its row is read rather than being collected
+     * first, and passwords are never read.
+     * @param DisplayName The prefix to search for
+     * @param AfterDisplayName The display name of the last user of the previous page, or null for the first page
+     * @param AfterUserID The ID of the last user of the previous page
+     * @param Limit The most users to read
+     * @param consumer Receives each user found, in order
+     * @throws SQLException Thrown by SQL errors
+     */
+    public void SearchUsersByDisplayName(String DisplayName, String AfterDisplayName, int AfterUserID, int Limit, Consumer<User> consumer) throws SQLException {
+        // The prefix comes from the client, so wildcards in it must match literally
+        String pattern = DisplayName.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + "%";
+
+        String query = "SELECT `UserID`, `Username`, `DisplayName`, `DateCreated`, `ProfilePicturePath` FROM `Users` WHERE `DisplayName` like ?"
+                + (AfterDisplayName == null ? "" : " AND (`DisplayName` > ? OR (`DisplayName` = ? AND `UserID` > ?))")
+                + " ORDER BY `DisplayName`, `UserID` LIMIT ?";
+
+        try (PreparedStatement stmt = this.Prepare(query)) {
+            int parameter = 1;
+            stmt.setString(parameter++, pattern);
+            if (AfterDisplayName != null) {
+                stmt.setString(parameter++, AfterDisplayName);
+                stmt.setString(parameter++, AfterDisplayName);
+                stmt.setInt(parameter++, AfterUserID);
+            }
+
+            stmt.setInt(parameter, Limit);
+
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    consumer.accept(new User(
+                            rs.getInt("UserID"),
+                            rs.getString("Username"),
+                            null,
+                            rs.getString("DisplayName"),
+                            rs.getString("DateCreated"),
+                            rs.getString("ProfilePicturePath")
+                    ));
+                }
+            }
+        }
+    }
+
     /**
      * Get a friendship record from the database
      * @param FriendshipID The ID of the record
@@ -417,6 +508,29 @@ public class MySQLHandler {
         return result;
     }
 
+    /**
+     * Get several chat records from the database by their IDs with a single query
+     * @param ChatIDs The IDs of the chats, must not be empty
+     * @return The chats found, in no particular order. IDs with no chat are left out.
+     * @throws SQLException Thrown by SQL errors
+     */
+    public Chat[] GetChatsByID(int[] ChatIDs) throws SQLException {
+        ResultSet rs = this.Select("SELECT * FROM `Chats` WHERE `ChatID` in (" + JoinIDs(ChatIDs) + ")");
+
+        List<Chat> results = new ArrayList<>();
+        while (rs.next()) {
+            results.add(new Chat(
+                    rs.getInt("ChatID"),
+                    rs.getString("Name"),
+                    rs.getString("Description"),
+                    rs.getInt("PublicKeyID")
+            ));
+        }
+
+        rs.close();
+        return results.toArray(new Chat[0]);
+    }
+
     /**
      * Get a chat record from the database by the public key id associated with it
      * @param PublicKeyID The public key id to search for
@@ -638,4 +752,35 @@ public class MySQLHandler {
     public void AddConnection(String ip, String timestamp) throws SQLException {
         this.Update("insert into `connections` (`client_ip`, `timestamp`) values ('" + ip + "', '" + timestamp + "');");
     }
+
+    /**
+     * Join IDs into a comma separated list for an "in" clause
+     */
+    private static String JoinIDs(int[] ids) {
+        StringBuilder list = new StringBuilder();
+        for (int i = 0; i < ids.length; i++) {
+            list.append(i == 0 ? "" : ", ").append(ids[i]);
+        }
+
+        return list.toString();
+    }
+
+    /**
+     * Add several connection records to the database with a single insert
+     * @param connections The connections to add, each as {ip, timestamp}
+     * @throws SQLException Thrown by SQL errors
+     */
+    public void AddConnections(List<String[]> connections) throws SQLException {
+        if (connections.isEmpty()) {
+            return;
+        }
+
+        StringBuilder query = new StringBuilder("insert into `connections` (`client_ip`, `timestamp`) values ");
+        for (int i = 0; i < connections.size(); i++) {
+            String[] connection = connections.get(i);
+            query.append(i == 0 ? "" : ", ").append("('").append(connection[0]).append("', '").append(connection[1]).append("')");
+        }
+
+        this.Update(query.append(";").toString());
+    }
 }
@@ -0,0 +1,121 @@
+package com.nathcat.messagecat_server;
+
+import org.json.simple.JSONObject;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the number of concurrent sessions. Connections accepted while the server is at its limit are told to retry
+ * later and closed straight away, before any handshake work is done for them.
+ *
+ * @author Nathan "Nathcat" Baines
+ */
+public class AdmissionController implements MetricsSource {
+    /**
+     * The maximum number of concurrent sessions, including connections waiting in the backlog
+     */
+    private final int maxSessions;
+
+    /**
+     * The time in milliseconds rejected clients are told to wait before reconnecting
+     */
+    private final long retryAfter;
+
+    /**
+     * The number of sessions currently admitted
+     */
+    private final AtomicInteger sessions = new AtomicInteger(0);
+
+    /**
+     * The number of connections which have been rejected
+     */
+    private final AtomicLong rejected = new AtomicLong(0);
+
+    /**
+     * Constructor method
+     * @param maxSessions The maximum number of concurrent sessions
+     * @param retryAfter The time in milliseconds rejected clients are told to wait before reconnecting
+     */
+    public AdmissionController(int maxSessions, long retryAfter) {
+        this.maxSessions = maxSessions;
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * Try to admit a new session
+     * @return True if the session was admitted, in which case Release must be called once it ends
+     */
+    public boolean TryAdmit() {
+        while (true) {
+            int current = this.sessions.get();
+            if (current >= this.maxSessions) {
+                return false;
+            }
+
+            if (this.sessions.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Release an admitted session once it has ended
+     */
+    public void Release() {
+        this.sessions.decrementAndGet();
+    }
+
+    /**
+     * Tell a client the server is busy and close its connection. The client receives a JSONObject in place of the
+     * server's public key:
+     * {
+     *     "status": "busy",
+     *     "retryAfter": long milliseconds
+     * }
+     * @param socket The client's socket
+     * @param framed Whether the client is connected to the NIO transport, and so expects the object in a frame
+     */
+    public void Reject(Socket socket, boolean framed) {
+        this.rejected.incrementAndGet();
+
+        JSONObject response = new JSONObject();
+        response.put("status", "busy");
+        response.put("retryAfter", this.retryAfter);
+
+        try {
+            if (framed) {
+                ByteBuffer frame = Frame.Encode(FrameType.Message, response);
+                while (frame.hasRemaining()) {
+                    socket.getChannel().write(frame);
+                }
+            }
+            else {
+                ObjectOutputStream oos = new ObjectOutputStream(socket.getOutputStream());
+                oos.writeObject(response);
+                oos.flush();
+            }
+
+        } catch (IOException ignored) {
+            // The connection is being closed anyway
+        }
+
+        try {
+            socket.close();
+
+        } catch (IOException ignored) {}
+    }
+
+    @Override
+    public JSONObject GetMetrics() {
+        JSONObject metrics = new JSONObject();
+        metrics.put("sessions", this.sessions.get());
+        metrics.put("maxSessions", this.maxSessions);
+        metrics.put("rejected", this.rejected.get());
+        return metrics;
+    }
+}
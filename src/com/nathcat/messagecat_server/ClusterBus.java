@@ -0,0 +1,523 @@
+package com.nathcat.messagecat_server;
+
+import org.json.simple.JSONObject;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Shares requests which can trigger listen rules between the servers of a cluster, so that a client's listen rules
+ * are triggered by requests handled by any server, not only the one it is connected to.
+ *
+ * Each server connects to every peer in its config and forwards requests to it over that connection. The peer
+ * replies on the same connection with a SubscriptionSummary of its listen rules whenever they change, and requests
+ * which cannot trigger any of its rules are not forwarded to it. Forwarded requests are only delivered to the local
+ * rules of the receiving server, they are never forwarded again, so every server must list every other server as a
+ * peer.
+ *
+ * Connections are only accepted from the hosts of the configured peers, and both ends of a connection prove they know
+ * the cluster secret before anything is deserialized. Objects read from a connection are filtered, only the classes
+ * which make up forwarded requests and summaries may be deserialized.
+ *
+ * @author Nathan "Nathcat" Baines
+ */
+public class ClusterBus implements MetricsSource {
+    /**
+     * How long to wait before reconnecting to a peer after the connection to it fails, in milliseconds
+     */
+    private static final long RECONNECT_DELAY = 1000;
+
+    /**
+     * The most requests written to a peer before the stream is flushed
+     */
+    private static final int MAX_WRITE_BATCH = 64;
+
+    /**
+     * How long each end of a connection waits for the other to authenticate, in milliseconds
+     */
+    private static final int HANDSHAKE_TIMEOUT = 10000;
+
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+    private static final int CHALLENGE_LENGTH = 32;
+
+    /**
+     * The classes which may be read from a connection: forwarded requests, which are JSONObjects holding a
+     * RequestType and entity, and summaries, along with the JDK classes they are made of. The content of a message is
+     * encrypted by the client, so EncryptedObject is allowed too, and a chat invite carries the chat's KeyPair, which
+     * the invitee needs. Everything else is rejected.
+     */
+    private static final ObjectInputFilter FILTER = ObjectInputFilter.Config.createFilter(
+            "maxdepth=16;maxrefs=100000;maxarray=100000;"
+            + "org.json.simple.JSONObject;org.json.simple.JSONArray;"
+            + "com.nathcat.messagecat_server.RequestType;com.nathcat.messagecat_server.SubscriptionSummary;"
+            + "com.nathcat.messagecat_database_entities.*;com.nathcat.RSA.EncryptedObject;"
+            + "com.nathcat.RSA.KeyPair;com.nathcat.RSA.PublicKey;com.nathcat.RSA.PrivateKey;"
+            + "java.util.HashMap;java.util.HashSet;java.util.ArrayList;java.util.Map$Entry;java.util.EnumMap;"
+            + "java.util.EnumSet$SerializationProxy;java.util.RegularEnumSet;java.util.JumboEnumSet;"
+            + "java.lang.Enum;java.lang.Number;java.lang.String;java.lang.Boolean;java.lang.Character;java.lang.Byte;"
+            + "java.lang.Short;java.lang.Integer;java.lang.Long;java.lang.Float;java.lang.Double;java.math.BigInteger;"
+            + "!*");
+
+    private static final SecureRandom random = new SecureRandom();
+
+    /**
+     * A server this server forwards requests to
+     */
+    private class Peer {
+        final String host;
+        final int port;
+
+        /**
+         * Requests waiting to be forwarded to the peer
+         */
+        final BlockingQueue<JSONObject> outbox;
+
+        /**
+         * The peer's listen rules, or null if the peer is not connected or has not sent its summary yet
+         */
+        volatile SubscriptionSummary summary = null;
+
+        Peer(String host, int port, int capacity) {
+            this.host = host;
+            this.port = port;
+            this.outbox = new ArrayBlockingQueue<>(capacity);
+        }
+
+        /**
+         * Keep a connection open to the peer and write the requests in the outbox to it, run on the peer's thread
+         */
+        void Run() {
+            while (true) {
+                try (Socket socket = new Socket()) {
+                    socket.connect(new InetSocketAddress(this.host, this.port));
+                    socket.setTcpNoDelay(true);
+                    if (!ClusterBus.this.Authenticate(socket, false)) {
+                        ClusterBus.this.DebugLog("Peer " + this + " does not know the cluster secret");
+                        ClusterBus.this.rejected.increment();
+                        throw new IOException("Peer failed to authenticate");
+                    }
+
+                    ObjectOutputStream oos = new ObjectOutputStream(socket.getOutputStream());
+                    oos.flush();
+                    ObjectInputStream ois = new ObjectInputStream(socket.getInputStream());
+                    ois.setObjectInputFilter(FILTER);
+
+                    ClusterBus.this.DebugLog("Connected to peer " + this);
+                    ClusterBus.this.peersConnected.incrementAndGet();
+                    StartThread("ClusterPeerReader-" + this, () -> this.ReadSummaries(socket, ois));
+
+                    try {
+                        this.WriteRequests(socket, oos);
+
+                    } finally {
+                        ClusterBus.this.peersConnected.decrementAndGet();
+                        this.summary = null;
+                    }
+
+                } catch (IOException e) {
+                    this.summary = null;
+                }
+
+                try {
+                    Thread.sleep(RECONNECT_DELAY);
+
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Forward the requests in the outbox until the connection fails
+         */
+        private void WriteRequests(Socket socket, ObjectOutputStream oos) throws IOException {
+            List<JSONObject> batch = new ArrayList<>();
+            while (!socket.isClosed()) {
+                JSONObject event;
+                try {
+                    event = this.outbox.poll(RECONNECT_DELAY, TimeUnit.MILLISECONDS);
+
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                if (event == null) {
+                    continue;
+                }
+
+                batch.add(event);
+                this.outbox.drainTo(batch, MAX_WRITE_BATCH - 1);
+                for (JSONObject e : batch) {
+                    oos.writeObject(e);
+                }
+
+                // Forget the objects written, the stream would otherwise keep a reference to every one of them
+                oos.reset();
+                oos.flush();
+                batch.clear();
+            }
+        }
+
+        /**
+         * Read the summaries the peer sends until the connection fails, then close it so the writer reconnects
+         */
+        private void ReadSummaries(Socket socket, ObjectInputStream ois) {
+            try {
+                while (true) {
+                    this.summary = (SubscriptionSummary) ois.readObject();
+                }
+
+            } catch (IOException | ClassNotFoundException | ClassCastException e) {
+                this.summary = null;
+                try {
+                    socket.close();
+
+                } catch (IOException ignored) {}
+            }
+        }
+
+        @Override
+        public String toString() {
+            return this.host + ":" + this.port;
+        }
+    }
+
+    /**
+     * The listen rules of this server, which forwarded requests are matched against
+     */
+    private final ListenRuleIndex listenRules;
+
+    /**
+     * Delivers forwarded requests to the local rules they trigger
+     */
+    private final TriggerDispatcher triggerDispatcher;
+
+    /**
+     * The port peers connect to
+     */
+    private final int port;
+
+    /**
+     * The address the port peers connect to is opened on
+     */
+    private final String bindAddress;
+
+    /**
+     * The key of the HMACs each end of a connection authenticates with
+     */
+    private final SecretKeySpec secret;
+
+    private final List<Peer> peers = new ArrayList<>();
+
+    /**
+     * The streams of the peers connected to this server, which are sent this server's summary
+     */
+    private final Set<ObjectOutputStream> subscribers = ConcurrentHashMap.newKeySet();
+
+    /**
+     * How often to check whether the local listen rules have changed, in milliseconds
+     */
+    private final long summaryInterval;
+
+    /**
+     * The summary most recently sent to the subscribers
+     */
+    private volatile SubscriptionSummary summary;
+
+    // Metrics
+    private final LongAdder published = new LongAdder();
+    private final LongAdder forwarded = new LongAdder();
+    private final LongAdder filtered = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final AtomicInteger peersConnected = new AtomicInteger(0);
+
+    /**
+     * Constructor method
+     * @param listenRules The listen rules of this server
+     * @param triggerDispatcher The server's trigger dispatcher
+     * @param port The port peers connect to
+     * @param bindAddress The address to open the port peers connect to on
+     * @param secret The secret shared by the servers of the cluster
+     * @param peerAddresses The addresses of the other servers in the cluster, as host:port
+     * @param queueCapacity The most requests which may wait to be forwarded to each peer
+     * @param summaryInterval How often to check whether the local listen rules have changed, in milliseconds
+     */
+    public ClusterBus(ListenRuleIndex listenRules, TriggerDispatcher triggerDispatcher, int port, String bindAddress, String secret, List<String> peerAddresses, int queueCapacity, long summaryInterval) {
+        this.listenRules = listenRules;
+        this.triggerDispatcher = triggerDispatcher;
+        this.port = port;
+        this.bindAddress = bindAddress;
+        this.secret = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), HMAC_ALGORITHM);
+        this.summaryInterval = summaryInterval;
+
+        for (String address : peerAddresses) {
+            int separator = address.lastIndexOf(':');
+            this.peers.add(new Peer(address.substring(0, separator), Integer.parseInt(address.substring(separator + 1)), queueCapacity));
+        }
+    }
+
+    /**
+     * Start accepting peers and connecting to them
+     * @throws IOException Thrown if the port peers connect to cannot be opened
+     */
+    public void Start() throws IOException {
+        ServerSocket serverSocket = new ServerSocket(this.port, 50, InetAddress.getByName(this.bindAddress));
+        this.summary = this.listenRules.Summary();
+
+        StartThread("ClusterAccept", () -> this.Accept(serverSocket));
+        StartThread("ClusterSummary", this::ShareSummaries);
+        for (Peer peer : this.peers) {
+            StartThread("ClusterPeer-" + peer, peer::Run);
+        }
+
+        this.DebugLog("Listening for peers on " + this.bindAddress + ":" + this.port + ", peers: " + this.peers);
+    }
+
+    /**
+     * Forward a request to the peers which have listen rules it could trigger, without waiting for it to be sent
+     * @param type The type of the request
+     * @param data The data of the request, which the listen rules are matched against
+     * @param request The request
+     */
+    public void Publish(RequestType type, Object data, JSONObject request) {
+        this.published.increment();
+
+        JSONObject event = null;
+        for (Peer peer : this.peers) {
+            SubscriptionSummary summary = peer.summary;
+            if (summary == null || !summary.Matches(type, data)) {
+                this.filtered.increment();
+                continue;
+            }
+
+            if (event == null) {
+                event = new JSONObject();
+                event.put("type", type);
+                event.put("data", data);
+                event.put("request", request);
+            }
+
+            if (peer.outbox.offer(event)) {
+                this.forwarded.increment();
+            }
+            else {
+                this.dropped.increment();
+            }
+        }
+    }
+
+    /**
+     * Accept connections from peers, run on the accept thread
+     */
+    private void Accept(ServerSocket serverSocket) {
+        while (true) {
+            try {
+                Socket socket = serverSocket.accept();
+                StartThread("ClusterSubscriber-" + socket.getRemoteSocketAddress(), () -> this.Subscribe(socket));
+
+            } catch (IOException e) {
+                this.DebugLog("Failed to accept peer (" + e.getMessage() + ")");
+            }
+        }
+    }
+
+    /**
+     * Send this server's summary to a peer and deliver the requests it forwards, until the connection fails
+     */
+    private void Subscribe(Socket socket) {
+        ObjectOutputStream oos = null;
+        try {
+            if (!this.IsPeer(socket.getInetAddress()) || !this.Authenticate(socket, true)) {
+                this.DebugLog("Rejected connection from " + socket.getRemoteSocketAddress());
+                this.rejected.increment();
+                socket.close();
+                return;
+            }
+
+            socket.setTcpNoDelay(true);
+            oos = new ObjectOutputStream(socket.getOutputStream());
+            synchronized (oos) {
+                // Subscribe before reading the summary, so that a newer summary is always sent after this one
+                this.subscribers.add(oos);
+                oos.writeObject(this.summary);
+                oos.flush();
+            }
+
+            ObjectInputStream ois = new ObjectInputStream(socket.getInputStream());
+            ois.setObjectInputFilter(FILTER);
+
+            while (true) {
+                JSONObject event = (JSONObject) ois.readObject();
+                this.received.increment();
+
+                RequestType type = (RequestType) event.get("type");
+                this.triggerDispatcher.Dispatch(this.listenRules.Match(type, event.get("data")), (JSONObject) event.get("request"));
+            }
+
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            if (oos != null) {
+                this.subscribers.remove(oos);
+            }
+
+            try {
+                socket.close();
+
+            } catch (IOException ignored) {}
+        }
+    }
+
+    /**
+     * Check whether an address is one of the configured peers
+     */
+    private boolean IsPeer(InetAddress address) {
+        for (Peer peer : this.peers) {
+            try {
+                for (InetAddress peerAddress : InetAddress.getAllByName(peer.host)) {
+                    if (peerAddress.equals(address)) {
+                        return true;
+                    }
+                }
+
+            } catch (UnknownHostException ignored) {}
+        }
+
+        return false;
+    }
+
+    /**
+     * Check that the other end of a connection knows the cluster secret, and prove that this server does, without
+     * sending the secret. Each end sends a random challenge and answers the other's with an HMAC of it, which includes
+     * which end is answering so that an answer cannot be sent back to the end which made it.
+     * @param socket The connection, nothing else must have been sent on it
+     * @param accepting Whether this server accepted the connection
+     * @return Whether the other end knows the secret
+     * @throws IOException Thrown if the connection fails
+     */
+    private boolean Authenticate(Socket socket, boolean accepting) throws IOException {
+        socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        OutputStream out = socket.getOutputStream();
+
+        byte[] challenge = new byte[CHALLENGE_LENGTH];
+        random.nextBytes(challenge);
+        out.write(challenge);
+        out.flush();
+
+        byte[] received = new byte[CHALLENGE_LENGTH];
+        in.readFully(received);
+        out.write(this.Answer(received, accepting));
+        out.flush();
+
+        byte[] expected = this.Answer(challenge, !accepting);
+        byte[] answer = new byte[expected.length];
+        in.readFully(answer);
+        socket.setSoTimeout(0);
+
+        return MessageDigest.isEqual(answer, expected);
+    }
+
+    /**
+     * Compute the answer to a challenge
+     * @param challenge The challenge
+     * @param accepting Whether the end answering accepted the connection
+     */
+    private byte[] Answer(byte[] challenge, boolean accepting) throws IOException {
+        try {
+            Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(this.secret);
+            mac.update((byte) (accepting ? 1 : 0));
+            return mac.doFinal(challenge);
+
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to compute HMAC (" + e.getMessage() + ")", e);
+        }
+    }
+
+    /**
+     * Send this server's summary to its subscribers whenever the local listen rules change, run on the summary thread
+     */
+    private void ShareSummaries() {
+        long version = this.listenRules.GetVersion();
+
+        while (true) {
+            try {
+                Thread.sleep(this.summaryInterval);
+
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            long current = this.listenRules.GetVersion();
+            if (current == version) {
+                continue;
+            }
+
+            version = current;
+            this.summary = this.listenRules.Summary();
+
+            for (ObjectOutputStream oos : this.subscribers) {
+                try {
+                    synchronized (oos) {
+                        oos.writeObject(this.summary);
+                        oos.reset();
+                        oos.flush();
+                    }
+
+                } catch (IOException e) {
+                    // The subscriber's thread sees the connection fail and removes it
+                    this.subscribers.remove(oos);
+                }
+            }
+        }
+    }
+
+    private static void StartThread(String name, Runnable runnable) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void DebugLog(String message) {
+        System.out.println("ClusterBus: " + message);
+    }
+
+    @Override
+    public JSONObject GetMetrics() {
+        JSONObject metrics = new JSONObject();
+        metrics.put("published", this.published.sum());
+        metrics.put("forwarded", this.forwarded.sum());
+        metrics.put("filtered", this.filtered.sum());
+        metrics.put("dropped", this.dropped.sum());
+        metrics.put("received", this.received.sum());
+        metrics.put("rejected", this.rejected.sum());
+        metrics.put("peersConnected", this.peersConnected.get());
+        metrics.put("subscribers", this.subscribers.size());
+        return metrics;
+    }
+}
@@ -4,14 +4,30 @@ import com.nathcat.RSA.*;
 import com.nathcat.messagecat_database.MessageQueue;
 import com.nathcat.messagecat_database.Result;
 import com.nathcat.messagecat_database_entities.*;
+import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
 
 /**
  * Maintains a connection with the client device
@@ -19,16 +35,75 @@ import java.util.Objects;
  * @author Nathan "Nathcat" Baines
  */
 public class ConnectionHandler extends Handler {
-    private JSONObject request;
+    /**
+     * Whether this handler belongs to the handler pool. Pooled handlers serve many connections one after another,
+     * other handlers are created for a single connection and finish when it closes.
+     */
+    private final boolean pooled;
+
+    /**
+     * The protocol features accepted during the handshake of the current session
+     */
+    protected final Set<String> features = new HashSet<>();
+
+    /**
+     * Whether requests and responses are encoded with the WireCodec rather than Java serialization, negotiated during
+     * the handshake
+     */
+    protected volatile boolean binaryCodec;
+
+    /**
+     * Whether large payloads are compressed, negotiated during the handshake
+     */
+    protected volatile boolean compression;
+
+    /**
+     * Whether requests carrying an "id" may be handled concurrently with the requests after them, negotiated during the
+     * handshake
+     */
+    protected volatile boolean pipelined;
+
+    /**
+     * Whether several listen rule triggers may be sent to the client as one JSONArray, negotiated during the handshake
+     */
+    protected volatile boolean triggerBatches;
+
+    /**
+     * Limits the number of pipelined requests of the current session which are being handled at once
+     */
+    protected volatile Semaphore inFlight;
+
+    /**
+     * The listen rule triggers waiting to be sent to the current session
+     */
+    protected volatile TriggerQueue triggerQueue;
+
+    /**
+     * The ID of the resumption ticket most recently issued to the current session, or null if it has none
+     */
+    public volatile Long ticketId;
 
     /**
      * Constructor method, assigns private and constant fields
      *
-     * @param socket    The TCP/IP connection socket to be used by this handler
+     * @param socket    The TCP/IP connection socket to be used by this handler, or null if the handler belongs to the
+     *                  pool and will be assigned connections by the QueueManager
      * @param threadNum The Thread number of this handler, used in debug messages
      */
     public ConnectionHandler(Socket socket, int threadNum) throws NoSuchAlgorithmException, IOException {
         super(socket, threadNum, "ConnectionHandler");
+        this.pooled = socket == null;
+    }
+
+    /**
+     * Constructor for handlers which are driven by a transport rather than running as their own thread
+     *
+     * @param threadNum The connection ID of this handler, used in debug messages
+     * @param className The name of the class, used in debug messages
+     */
+    protected ConnectionHandler(int threadNum, String className) {
+        super(null, threadNum, className);
+        this.pooled = false;
     }
 
     /**
@@ -36,51 +111,81 @@ public class ConnectionHandler extends Handler {
      */
     @Override
     public void run() {
+        if (!this.pooled) {
+            this.busy = true;
+            this.HandleConnection();
+            this.server.connections.Unregister(this);
+            return;
+        }
+
         while (true) {
             this.busy = false;
-            this.StopHandler();
 
-            if (this.queueObject == null) {
-                continue;
+            if (!this.StopHandler()) {
+                this.DebugLog("Removed from the pool after being idle");
+                return;
             }
 
             this.busy = true;
-            this.authenticated = false;
             this.DebugLog("Assigned to task");
 
             this.socket = (Socket) ((CloneableObject) this.queueObject).object;
+            this.HandleConnection();
+        }
+    }
 
-            try {
-                this.InitializeIO();
+    /**
+     * Serve the connection in the socket field until it is closed
+     */
+    private void HandleConnection() {
+        this.admitted.set(true);
+        this.triggerQueue = new TriggerQueue(this, this.socket, this.server.triggerDispatcher);
+        this.authenticated = false;
 
-            } catch (IOException e) {
-                this.DebugLog("Failed to initialise I/O (" + e.getMessage() + ").");
-                this.Close();
-                continue;
-            }
+        try {
+            this.InitializeIO();
+
+        } catch (IOException e) {
+            this.DebugLog("Failed to initialise I/O (" + e.getMessage() + ").");
+            this.Close();
+            return;
+        }
 
-            // Perform handshake
-            if (this.DoHandshake()) {
-                // Open listen rule socket
-                try {
-                    ServerSocket ss = new ServerSocket(0);
-                    this.Send(this.clientKeyPair.encrypt(ss.getLocalPort()));
+        // Perform handshake
+        if (this.DoHandshake()) {
+            // Open listen rule socket, unless triggers are to be sent on the main connection
+            if (!this.multiplexed) {
+                try (ServerSocket ss = new ServerSocket(0)) {
+                    this.Send(this.Encrypt(ss.getLocalPort(), PayloadCompressor.OTHER));
                     this.lrSocket = ss.accept();
                     this.lrOos = new ObjectOutputStream(lrSocket.getOutputStream());
 
-                } catch (IOException | PublicKeyException e) {
+                } catch (IOException | PublicKeyException | GeneralSecurityException e) {
                     e.printStackTrace();
                     this.Close();
                     return;
                 }
-
-                // Start connection main loop
-                this.MainLoop();
-            }
-            else {
-                this.DebugLog("Handshake failed!");
-                this.Close();
             }
+
+            this.OpenTriggers();
+
+            // Start connection main loop
+            this.MainLoop();
+        }
+        else {
+            this.DebugLog("Handshake failed!");
+            this.Close();
+        }
+    }
+
+    /**
+     * Start sending listen rule triggers, called once the channel they are sent on is open. Until then they are only
+     * queued, including those of rules resumed from a ticket during the handshake.
+     */
+    protected void OpenTriggers() {
+        TriggerQueue queue = this.triggerQueue;
+        if (queue != null) {
+            queue.Open();
         }
     }
 
@@ -89,9 +194,9 @@ public class ConnectionHandler extends Handler {
      * @return Whether the handshake was successful or not
      */
     private boolean DoHandshake() {
-        // Try to generate an RSA key pair
+        // Try to get an RSA key pair
         try {
-            this.keyPair = RSA.GenerateRSAKeyPair();
+            this.keyPair = this.server.keyPairs.Take();
         } catch (NoSuchAlgorithmException e) {
             this.DebugLog("Failed to generate RSA key pair! (" + e.getMessage() + ")");
             this.queueObject = null;
@@ -110,24 +215,147 @@ public class ConnectionHandler extends Handler {
             handshakeSuccessful = false;
         }
 
-        // Try to receive the client's key pair
+        // Try to receive the client's key pair, and send the connection handler identifier to the client
         try {
-            this.clientKeyPair = (KeyPair) this.Receive();
+            this.Send(this.AcceptClientHello(this.Receive()));
+            this.EnableFeatures();
 
-        } catch (IOException | ClassNotFoundException | NullPointerException e) {
+        } catch (IOException | ClassNotFoundException | PublicKeyException | GeneralSecurityException | ClassCastException | NullPointerException e) {
             this.DebugLog(e.getMessage());
             handshakeSuccessful = false;
         }
 
-        // Send the connection handler identifier to the client
-        try {
-            this.Send(this.clientKeyPair.encrypt(threadNum));
-        } catch (IOException | PublicKeyException | NullPointerException e) {
-            this.DebugLog(e.getMessage());
-            handshakeSuccessful = false;
+        return handshakeSuccessful;
+    }
+
+    /**
+     * Accept the client's half of the handshake, which is either the client's key pair or a hello object containing
+     * the key pair and the protocol features the client would like to use:
+     * {
+     *     "keyPair": KeyPair,
+     *     "features": JSONArray of feature names,
+     *     "ticket": byte[] resumption ticket (optional)
+     * }
+     * @param received The object received from the client
+     * @return The encrypted response to send to the client, the connection handler identifier for a plain key pair,
+     *         or a JSONObject containing the identifier and the accepted features for a hello object
+     * @throws PublicKeyException Thrown if the response cannot be encrypted with the client's key
+     * @throws IOException Thrown if the response cannot be sealed with a resumed session's cipher
+     * @throws GeneralSecurityException Thrown if the session cipher cannot be created or used
+     */
+    protected Object AcceptClientHello(Object received) throws PublicKeyException, IOException, GeneralSecurityException {
+        this.features.clear();
+
+        if (!(received instanceof JSONObject)) {
+            this.clientKeyPair = (KeyPair) received;
+            return this.clientKeyPair.encrypt(this.threadNum);
         }
 
-        return handshakeSuccessful;
+        JSONObject hello = (JSONObject) received;
+        this.clientKeyPair = (KeyPair) hello.get("keyPair");
+
+        JSONArray accepted = new JSONArray();
+        JSONArray requested = (JSONArray) hello.get("features");
+        if (requested != null) {
+            for (Object feature : requested) {
+                if (this.SupportsFeature((String) feature) && this.features.add((String) feature)) {
+                    accepted.add(feature);
+                }
+            }
+        }
+
+        JSONObject response = new JSONObject();
+        response.put("connectionId", this.threadNum);
+        response.put("features", accepted);
+
+        if (hello.get("ticket") != null) {
+            TicketStore.Session session = this.server.tickets.Redeem((byte[]) hello.get("ticket"));
+            response.put("resumed", session != null);
+
+            if (session != null) {
+                // Restore the session, a resumed session always uses the session cipher it had before
+                this.user = session.user;
+                this.authenticated = true;
+                this.sessionCipher = new SessionCipher(session.sessionKey);
+                this.features.add("aes-gcm");
+                if (!accepted.contains("aes-gcm")) {
+                    accepted.add("aes-gcm");
+                }
+
+                // The rules have been logging triggers while the session was suspended, the client can replay them
+                JSONArray listenRuleIds = new JSONArray();
+                for (ListenRule rule : this.server.listenRules.Resume(session.listenRules, this.triggerQueue)) {
+                    rule.handler = this;
+                    listenRuleIds.add(rule.getId());
+                }
+
+                response.put("user", this.user);
+                response.put("listenRules", listenRuleIds);
+                response.put("ticket", this.server.tickets.Issue(this));
+
+                // The client already has the session key, so the response is sealed with it rather than RSA
+                return this.sessionCipher.Seal(response);
+            }
+        }
+
+        if (this.features.contains("aes-gcm")) {
+            // The session key is protected by the client's RSA key, like the rest of the response
+            this.sessionCipher = SessionCipher.Generate();
+            response.put("sessionKey", this.sessionCipher.GetKey());
+        }
+
+        return this.clientKeyPair.encrypt(response);
+    }
+
+    /**
+     * Check whether a protocol feature requested by the client is supported
+     * @param feature The name of the feature
+     * @return Whether the feature is supported
+     */
+    protected boolean SupportsFeature(String feature) {
+        switch (feature) {
+            case "multiplex":
+            case "aes-gcm":
+            case "binary":
+            case "deflate":
+            case "pipeline":
+            case "trigger-batch":
+                return true;
+
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Switch on the features accepted by AcceptClientHello, called once the response to the hello has been sent as
+     * the features only apply to what is sent after it
+     */
+    protected void EnableFeatures() {
+        for (String feature : this.features) {
+            switch (feature) {
+                case "multiplex":
+                    this.multiplexed = true;
+                    break;
+
+                case "binary":
+                    this.binaryCodec = true;
+                    break;
+
+                case "deflate":
+                    this.compression = true;
+                    break;
+
+                case "pipeline":
+                    this.inFlight = new Semaphore(this.server.maxInFlight);
+                    this.pipelined = true;
+                    break;
+
+                case "trigger-batch":
+                    this.triggerBatches = true;
+                    break;
+            }
+        }
     }
 
     /**
@@ -136,64 +364,343 @@ public class ConnectionHandler extends Handler {
     private void MainLoop() {
         while (true) {
             try {
-                JSONObject request = (JSONObject) this.keyPair.decrypt((EncryptedObject) this.Receive());
-                Object response = this.HandleRequest(request);
-                this.Send(this.clientKeyPair.encrypt(response));
+                this.HandleReceived(this.Receive());
 
             } catch (Exception e) {
                 this.DebugLog("Exception in main protocol: " + e.getMessage());
                 this.Close();
+
+                // A pooled handler must not be given a new connection while requests of this one are still running
+                this.AwaitInFlight();
                 return;
             }
         }
     }
 
+    /**
+     * Get the listen rules which deliver their triggers to this handler's current session
+     * @return The listen rules
+     */
+    public List<ListenRule> GetOwnListenRules() {
+        TriggerQueue queue = this.triggerQueue;
+        return queue == null ? new ArrayList<>() : this.server.listenRules.GetSessionRules(queue);
+    }
+
+    /**
+     * Suspend the session's listen rules for its resumption ticket, if it has one, otherwise remove them
+     */
+    @Override
+    protected void EndSession() {
+        TriggerQueue queue = this.triggerQueue;
+        if (this.ticketId != null) {
+            // Always called, even without a queue, so that a redemption of the ticket never sees the handler serving
+            // another session
+            this.server.tickets.Suspend(this, queue);
+            this.ticketId = null;
+        }
+
+        if (queue != null) {
+            // Closing the queue first stops rules being added for the session while its rules are removed
+            queue.Close();
+            this.server.listenRules.RemoveSession(queue);
+            this.triggerQueue = null;
+        }
+
+        this.binaryCodec = false;
+        this.compression = false;
+        this.pipelined = false;
+        this.triggerBatches = false;
+        super.EndSession();
+    }
+
+    /**
+     * Handle an object received from the client and send the response. If pipelining was agreed during the handshake,
+     * requests carrying an "id" are handled on the server's request workers, and their responses are sent as soon as
+     * they are ready, tagged with the same ID, so they may arrive in a different order to the requests.
+     * @param received The encrypted request, as received from the client
+     * @throws Exception Thrown if the request cannot be decrypted or the response cannot be sent
+     */
+    protected void HandleReceived(Object received) throws Exception {
+        if (!this.pipelined) {
+            this.Send(this.ProcessRequest(received));
+            return;
+        }
+
+        JSONObject request = (JSONObject) this.Decrypt(received);
+
+        // Blocks the receiving of further requests while the session has too many in flight
+        this.inFlight.acquire(this.InFlightPermits(request));
+        this.HandlePipelined(request);
+    }
+
+    /**
+     * Get the number of in flight permits a pipelined request takes. Requests which must run alone take every permit,
+     * so they wait for every request before them to finish, and every request after them waits for them to finish.
+     * @param request The decrypted request
+     * @return The number of permits
+     */
+    protected int InFlightPermits(JSONObject request) {
+        return RunsAlone(request) ? this.server.maxInFlight : 1;
+    }
+
+    /**
+     * Handle a pipelined request whose in flight permits have been taken, and release them once the response has been
+     * sent. Requests which run alone are handled on the calling thread, other requests on the server's request workers.
+     * @param request The decrypted request
+     * @throws Exception Thrown if the response to a request which runs alone cannot be sent
+     */
+    protected void HandlePipelined(JSONObject request) throws Exception {
+        Object id = request == null ? null : request.get("id");
+        Semaphore inFlight = this.inFlight;
+
+        if (RunsAlone(request)) {
+            try {
+                this.Send(this.Encrypt(Tag(id, this.HandleRequest(request)), CompressionGroup(request)));
+
+            } finally {
+                inFlight.release(this.server.maxInFlight);
+                this.InFlightReleased();
+            }
+
+            return;
+        }
+
+        this.server.requestWorkers.execute(() -> {
+            try {
+                this.Send(this.Encrypt(Tag(id, this.HandleRequest(request)), CompressionGroup(request)));
+
+            } catch (Exception e) {
+                this.DebugLog("Exception in pipelined request: " + e.getMessage());
+                this.Abort();
+
+            } finally {
+                inFlight.release();
+                this.InFlightReleased();
+            }
+        });
+    }
+
+    /**
+     * Called after a pipelined request has released its in flight permits, on the thread which handled it
+     */
+    protected void InFlightReleased() {}
+
+    /**
+     * Check whether a pipelined request must run alone, which is the case for requests without an ID and requests
+     * which change the session
+     */
+    private static boolean RunsAlone(JSONObject request) {
+        return request == null || request.get("id") == null || ChangesSession((RequestType) request.get("type"));
+    }
+
+    /**
+     * Check whether a type of request changes the state of the session, in which case it cannot be handled
+     * concurrently with other requests
+     * @param type The type of request
+     * @return Whether the request changes the state of the session
+     */
+    private static boolean ChangesSession(RequestType type) {
+        switch (type) {
+            case Authenticate:
+            case AddListenRule:
+            case RemoveListenRule:
+            case GetResumptionTicket:
+                return true;
+
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Tag the response to a pipelined request with the request's ID
+     * @param id The ID of the request, or null if the request had none
+     * @param response The response
+     * @return The tagged response, or the response itself if the request had no ID
+     */
+    private static Object Tag(Object id, Object response) {
+        if (id == null) {
+            return response;
+        }
+
+        JSONObject tagged = new JSONObject();
+        tagged.put("id", id);
+        tagged.put("data", response);
+        return tagged;
+    }
+
+    /**
+     * Wait for the pipelined requests of the session to finish
+     */
+    protected void AwaitInFlight() {
+        Semaphore inFlight = this.inFlight;
+        if (inFlight != null) {
+            inFlight.acquireUninterruptibly(this.server.maxInFlight);
+            inFlight.release(this.server.maxInFlight);
+        }
+    }
+
+    /**
+     * Abort the connection, after a pipelined request failed or when its session is resumed on another connection. The
+     * socket is closed so that the main loop finds the connection closed and ends the session itself.
+     */
+    protected void Abort() {
+        try {
+            this.socket.close();
+
+        } catch (IOException e) {
+            this.DebugLog("Failed to close socket (" + e.getMessage() + ")");
+        }
+    }
+
+    /**
+     * Decrypt and handle a request received from the client
+     * @param received The encrypted request, as received from the client
+     * @return The encrypted response to send to the client
+     * @throws Exception Thrown if the request cannot be decrypted or the response cannot be encrypted
+     */
+    protected Object ProcessRequest(Object received) throws Exception {
+        JSONObject request = (JSONObject) this.Decrypt(received);
+        Object response = this.HandleRequest(request);
+        return this.Encrypt(response, CompressionGroup(request));
+    }
+
+    /**
+     * Get the group the compression metrics of the response to a request are counted in, the type of the request
+     */
+    private static String CompressionGroup(JSONObject request) {
+        Object type = request == null ? null : request.get("type");
+        return type instanceof RequestType ? ((RequestType) type).name() : PayloadCompressor.OTHER;
+    }
+
+    /**
+     * Encrypt an object to send to this handler's client, with the session cipher if one was agreed during the
+     * handshake, and with the client's RSA key otherwise. If the binary codec was agreed, the object is encoded with
+     * it before it is encrypted, and if compression was agreed the encoded object is compressed before it is encrypted.
+     * @param obj The object to encrypt
+     * @param group What the object is, the name of the type of request it answers, or PayloadCompressor.TRIGGERS or
+     *              PayloadCompressor.OTHER, which the compression metrics are grouped by
+     * @return The encrypted object
+     * @throws PublicKeyException Thrown if the object cannot be encrypted with the client's RSA key
+     * @throws IOException Thrown if the object cannot be serialized
+     * @throws GeneralSecurityException Thrown if the object cannot be encrypted with the session cipher
+     */
+    public Object Encrypt(Object obj, String group) throws PublicKeyException, IOException, GeneralSecurityException {
+        if (this.binaryCodec || this.compression) {
+            byte[] encoded = this.binaryCodec ? WireCodec.Encode(obj) : Serialize(obj);
+            if (this.compression) {
+                encoded = this.server.compressor.Compress(encoded, group);
+            }
+
+            return this.sessionCipher != null ? this.sessionCipher.SealBytes(encoded) : this.clientKeyPair.encrypt(encoded);
+        }
+
+        if (this.sessionCipher != null) {
+            return this.sessionCipher.Seal(obj);
+        }
+
+        return this.clientKeyPair.encrypt(obj);
+    }
+
+    /**
+     * Decrypt an object received from this handler's client
+     * @param received The encrypted object
+     * @return The decrypted object
+     * @throws Exception Thrown if the object cannot be decrypted
+     */
+    protected Object Decrypt(Object received) throws Exception {
+        if (this.binaryCodec || this.compression) {
+            byte[] encoded = this.sessionCipher != null
+                    ? this.sessionCipher.OpenBytes((byte[]) received)
+                    : (byte[]) this.keyPair.decrypt((EncryptedObject) received);
+
+            if (this.compression) {
+                encoded = this.server.compressor.Decompress(encoded);
+            }
+
+            return this.binaryCodec ? WireCodec.Decode(encoded) : Deserialize(encoded);
+        }
+
+        if (this.sessionCipher != null) {
+            return this.sessionCipher.Open((byte[]) received);
+        }
+
+        return this.keyPair.decrypt((EncryptedObject) received);
+    }
+
+    /**
+     * Serialize an object with Java serialization
+     * @param obj The object to serialize
+     * @return The serialized object
+     * @throws IOException Thrown if the object cannot be serialized
+     */
+    private static byte[] Serialize(Object obj) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bytes);
+        oos.writeObject(obj);
+        oos.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Deserialize an object serialized with Java serialization
+     * @param bytes The serialized object
+     * @return The object
+     * @throws IOException Thrown if the object cannot be deserialized
+     * @throws ClassNotFoundException Thrown if the serialized class cannot be found
+     */
+    private static Object Deserialize(byte[] bytes) throws IOException, ClassNotFoundException {
+        return new ObjectInputStream(new ByteArrayInputStream(bytes)).readObject();
+    }
+
     /**
      * Handle a JSON request object
      * @param request The JSON request object
      * @return The response object
      */
     private Object HandleRequest(JSONObject request) {
-        this.request = request;
-
         if (request == null) {
             this.Close();
             return null;
         }
 
         switch ((RequestType) request.get("type")) {
-            case Authenticate: return this.Authenticate();
-            case GetUser: return this.GetUser();
-            case GetFriendship: return this.GetFriendship();
-            case GetFriendRequests: return this.GetFriendRequests();
-            case GetChat: return this.GetChat();
-            case GetChatInvite: return this.GetChatInvite();
-            case GetPublicKey: return this.GetPublicKey();
-            case GetMessageQueue: return this.GetMessageQueue();
-            case AddUser: return this.AddUser();
-            case AddChat: return this.AddChat();
-            case AddListenRule: return this.AddListenRule();
-            case RemoveListenRule: return this.RemoveListenRule();
-            case AcceptFriendRequest: return this.AcceptFriendRequest();
-            case DeclineFriendRequest: return this.DeclineFriendRequest();
-            case AcceptChatInvite: return this.AcceptChatInvite();
-            case DeclineChatInvite: return this.DeclineChatInvite();
-            case SendMessage: return this.SendMessage();
-            case SendFriendRequest: return this.SendFriendRequest();
-            case SendChatInvite: return this.SendChatInvite();
+            case Authenticate: return this.Authenticate(request);
+            case GetUser: return this.GetUser(request);
+            case GetFriendship: return this.GetFriendship(request);
+            case GetFriendRequests: return this.GetFriendRequests(request);
+            case GetChat: return this.GetChat(request);
+            case GetChatInvite: return this.GetChatInvite(request);
+            case GetPublicKey: return this.GetPublicKey(request);
+            case GetMessageQueue: return this.GetMessageQueue(request);
+            case AddUser: return this.AddUser(request);
+            case AddChat: return this.AddChat(request);
+            case AddListenRule: return this.AddListenRule(request);
+            case RemoveListenRule: return this.RemoveListenRule(request);
+            case AcceptFriendRequest: return this.AcceptFriendRequest(request);
+            case DeclineFriendRequest: return this.DeclineFriendRequest(request);
+            case AcceptChatInvite: return this.AcceptChatInvite(request);
+            case DeclineChatInvite: return this.DeclineChatInvite(request);
+            case SendMessage: return this.SendMessage(request);
+            case SendFriendRequest: return this.SendFriendRequest(request);
+            case SendChatInvite: return this.SendChatInvite(request);
+            case GetResumptionTicket: return this.GetResumptionTicket();
+            case Batch: return this.Batch(request);
+            case SearchUsers: return this.SearchUsers(request);
+            case ReplayTriggers: return this.ReplayTriggers(request);
 
         }
 
         return null;
     }
 
-    private Object Authenticate() {
+    private Object Authenticate(JSONObject request) {
         if (authenticated) {
             return this.user;
         }
 
         // Get the authentication data from the request
-        User authData = (User) this.request.get("data");
+        User authData = (User) request.get("data");
 
         // Get the corresponding user from the database (by username)
         User user = this.server.db.GetUserByUsername(authData.Username);
@@ -218,16 +725,183 @@ public class ConnectionHandler extends Handler {
         }
     }
 
-    private Object GetUser() {
+    private Object GetResumptionTicket() {
+        // Tickets carry the session key, so they can only be issued to sessions using a session cipher
+        if (!this.authenticated || this.sessionCipher == null) {
+            return "failed";
+        }
+
+        try {
+            return this.server.tickets.Issue(this);
+
+        } catch (IOException | GeneralSecurityException e) {
+            this.DebugLog("Failed to issue resumption ticket (" + e.getMessage() + ")");
+            return "failed";
+        }
+    }
+
+    private Object Batch(JSONObject request) {
+        JSONArray requests = (JSONArray) request.get("data");
+        Object[] responses = new Object[requests.size()];
+
+        int start = 0;
+        while (start < requests.size()) {
+            RequestType type = (RequestType) ((JSONObject) requests.get(start)).get("type");
+
+            if (ChangesSession(type) || type == RequestType.Batch) {
+                responses[start++] = "failed";
+            }
+            else if (!IsRead(type)) {
+                responses[start] = this.HandleRequest((JSONObject) requests.get(start));
+                start++;
+            }
+            else {
+                // Find the run of read requests starting here, none of them depend on each other
+                int end = start + 1;
+                while (end < requests.size() && IsRead((RequestType) ((JSONObject) requests.get(end)).get("type"))) {
+                    end++;
+                }
+
+                this.HandleReads(requests, start, end, responses);
+                start = end;
+            }
+        }
+
+        JSONArray response = new JSONArray();
+        response.addAll(Arrays.asList(responses));
+        return response;
+    }
+
+    /**
+     * Handle a run of read requests from a batch. Lookups of users and chats by ID are folded into a single query
+     * each, and the other requests are handled concurrently on the server's request workers.
+     * @param requests The requests in the batch
+     * @param start The index of the first read request
+     * @param end The index after the last read request
+     * @param responses The responses to the requests in the batch
+     */
+    private void HandleReads(JSONArray requests, int start, int end, Object[] responses) {
+        List<Integer> userIDs = new ArrayList<>();
+        List<Integer> chatIDs = new ArrayList<>();
+        List<Integer> others = new ArrayList<>();
+
+        for (int i = start; i < end; i++) {
+            JSONObject request = (JSONObject) requests.get(i);
+            RequestType type = (RequestType) request.get("type");
+
+            if (this.authenticated && type == RequestType.GetUser && "id".equals(request.get("selector"))) {
+                userIDs.add(i);
+            }
+            else if (this.authenticated && type == RequestType.GetChat) {
+                chatIDs.add(i);
+            }
+            else {
+                others.add(i);
+            }
+        }
+
+        // Start the other requests first so they run while the folded queries are made
+        List<FutureTask<Object>> tasks = new ArrayList<>();
+        for (int i = 0; i < others.size(); i++) {
+            JSONObject request = (JSONObject) requests.get(others.get(i));
+            FutureTask<Object> task = new FutureTask<>(() -> this.HandleRequest(request));
+            tasks.add(task);
+
+            // The last task is run by this thread anyway, so it is not worth handing to a worker
+            if (i < others.size() - 1) {
+                this.server.requestWorkers.execute(task);
+            }
+        }
+
+        if (!userIDs.isEmpty()) {
+            int[] ids = new int[userIDs.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = ((User) ((JSONObject) requests.get(userIDs.get(i))).get("data")).UserID;
+            }
+
+            Map<Integer, User> users = new HashMap<>();
+            User[] found = this.server.db.GetUsersByID(ids);
+            for (User user : found == null ? new User[0] : found) {
+                // Remove the password from the result
+                users.put(user.UserID, new User(user.UserID, user.Username, null, user.DisplayName, user.DateCreated, user.ProfilePicturePath));
+            }
+
+            for (int i = 0; i < ids.length; i++) {
+                responses[userIDs.get(i)] = users.get(ids[i]);
+            }
+        }
+
+        if (!chatIDs.isEmpty()) {
+            int[] ids = new int[chatIDs.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = ((Chat) ((JSONObject) requests.get(chatIDs.get(i))).get("data")).ChatID;
+            }
+
+            Map<Integer, Chat> chats = new HashMap<>();
+            Chat[] found = this.server.db.GetChatsByID(ids);
+            for (Chat chat : found == null ? new Chat[0] : found) {
+                chats.put(chat.ChatID, chat);
+            }
+
+            for (int i = 0; i < ids.length; i++) {
+                responses[chatIDs.get(i)] = chats.get(ids[i]);
+            }
+        }
+
+        for (int i = 0; i < tasks.size(); i++) {
+            FutureTask<Object> task = tasks.get(i);
+
+            // Run the task on this thread if no worker has started it yet, so a busy pool cannot hold up the batch
+            task.run();
+
+            try {
+                responses[others.get(i)] = task.get();
+
+            } catch (ExecutionException e) {
+                this.DebugLog("Exception in batched request: " + e.getCause());
+                responses[others.get(i)] = "failed";
+
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                responses[others.get(i)] = "failed";
+            }
+        }
+    }
+
+    /**
+     * Check whether a type of request only reads data, in which case it can be handled concurrently with other read
+     * requests in a batch
+     * @param type The type of request
+     * @return Whether the request only reads data
+     */
+    private static boolean IsRead(RequestType type) {
+        switch (type) {
+            case GetUser:
+            case GetFriendship:
+            case GetFriendRequests:
+            case GetChat:
+            case GetChatInvite:
+            case GetPublicKey:
+            case GetMessageQueue:
+            case SearchUsers:
+            case ReplayTriggers:
+                return true;
+
+            default:
+                return false;
+        }
+    }
+
+    private Object GetUser(JSONObject request) {
         if (!this.authenticated) {
             return null;
         }
 
         // Get the user from the request and decrypt
-        User requestedUser = (User) this.request.get("data");
+        User requestedUser = (User) request.get("data");
 
         // Get the selector
-        String selector = (String) this.request.get("selector");
+        String selector = (String) request.get("selector");
 
         // Search the database and return the result
         Object result = null;
@@ -267,16 +941,79 @@ public class ConnectionHandler extends Handler {
         return result;
     }
 
-    private Object GetFriendship() {
+    private Object SearchUsers(JSONObject request) {
+        if (!this.authenticated) {
+            return null;
+        }
+
+        // Get the display name prefix from the request
+        User requestedUser = (User) request.get("data");
+
+        // The client may ask for smaller pages than the server's page size, but not larger ones
+        int pageSize = this.server.searchPageSize;
+        if (request.get("pageSize") != null) {
+            pageSize = Math.max(1, Math.min(pageSize, ((Number) request.get("pageSize")).intValue()));
+        }
+
+        // Continue from the last user of the previous page, if there was one
+        String afterDisplayName = null;
+        int afterUserID = 0;
+        if (request.get("cursor") != null) {
+            try {
+                String position = new String(Base64.getUrlDecoder().decode((String) request.get("cursor")), StandardCharsets.UTF_8);
+                int separator = position.indexOf(':');
+                afterUserID = Integer.parseInt(position.substring(0, separator));
+                afterDisplayName = position.substring(separator + 1);
+
+            } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+                return "failed";
+            }
+        }
+
+        // Read one more user than fits in the page to find out whether there is another page after it
+        List<User> users = new ArrayList<>(pageSize + 1);
+        if (this.server.db.SearchUsersByDisplayName(requestedUser.DisplayName, afterDisplayName, afterUserID, pageSize + 1, users::add) == Result.FAILED) {
+            return "failed";
+        }
+
+        JSONObject response = new JSONObject();
+        if (users.size() > pageSize) {
+            users.remove(pageSize);
+            User last = users.get(pageSize - 1);
+            response.put("cursor", Base64.getUrlEncoder().withoutPadding().encodeToString((last.UserID + ":" + last.DisplayName).getBytes(StandardCharsets.UTF_8)));
+        }
+        else {
+            response.put("cursor", null);
+        }
+
+        response.put("users", users.toArray(new User[0]));
+        return response;
+    }
+
+    private Object ReplayTriggers(JSONObject request) {
+        if (!this.authenticated) {
+            return null;
+        }
+
+        if (this.server.triggerDispatcher.log == null) {
+            return "failed";
+        }
+
+        long epoch = request.get("epoch") == null ? -1 : ((Number) request.get("epoch")).longValue();
+        long offset = request.get("offset") == null ? -1 : ((Number) request.get("offset")).longValue();
+        return this.server.triggerDispatcher.log.Replay(this.user.UserID, epoch, offset);
+    }
+
+    private Object GetFriendship(JSONObject request) {
         if (!this.authenticated) {
             return null;
         }
 
         // Get the friendship from the request and decrypt
-        Friendship requestedFriendship = (Friendship) this.request.get("data");
+        Friendship requestedFriendship = (Friendship) request.get("data");
 
         // Get the selector
-        String selector = (String) this.request.get("selector");
+        String selector = (String) request.get("selector");
 
         // Search the database and return the result
         Object result = null;
@@ -298,16 +1035,16 @@ public class ConnectionHandler extends Handler {
         return result;
     }
 
-    private Object GetFriendRequests() {
+    private Object GetFriendRequests(JSONObject request) {
         if (!this.authenticated) {
             return null;
         }
 
         // Get the friend request from the request and decrypt it
-        FriendRequest requestedFriendRequest = (FriendRequest) this.request.get("data");
+        FriendRequest requestedFriendRequest = (FriendRequest) request.get("data");
 
         // Get the selector
-        String selector = (String) this.request.get("selector");
+        String selector = (String) request.get("selector");
 
         // Search the database and return the result
         Object result = null;
@@ -327,28 +1064,28 @@ public class ConnectionHandler extends Handler {
         return result;
     }
 
-    private Object GetChat() {
+    private Object GetChat(JSONObject request) {
         if (!this.authenticated) {
             return null;
         }
 
         // Get the chat from the request and decrypt
-        Chat requestedChat = (Chat) this.request.get("data");
+        Chat requestedChat = (Chat) request.get("data");
 
         // Search the database and return the result
         return this.server.db.GetChatByID(requestedChat.ChatID);
     }
 
-    private Object GetChatInvite() {
+    private Object GetChatInvite(JSONObject request) {
         if (!this.authenticated) {
             return null;
         }
 
         // Get the chat invite from the request and decrypt it
-        ChatInvite requestedChatInvite = (ChatInvite) this.request.get("data");
+        ChatInvite requestedChatInvite = (ChatInvite) request.get("data");
 
         // Get the selector
-        String selector = (String) this.request.get("selector");
+        String selector = (String) request.get("selector");
 
         // Search the database and return the result
         Object result = null;
@@ -371,33 +1108,33 @@ public class ConnectionHandler extends Handler {
         return result;
     }
 
-    private Object GetPublicKey() {
+    private Object GetPublicKey(JSONObject request) {
         if (!this.authenticated) {
             return null;
         }
 
         // Get the public key id from the request
-        int keyID = (int) this.request.get("data");
+        int keyID = (int) request.get("data");
 
         // Get the key pair from the database
         return this.server.db.GetKeyPair(keyID);
     }
 
-    private Object GetMessageQueue() {
+    private Object GetMessageQueue(JSONObject request) {
         if (!this.authenticated) {
             return null;
         }
 
         // Get the chat id from the request
-        int chatID = (int) this.request.get("data");
+        int chatID = (int) request.get("data");
 
         // Get the message queue
         return this.server.db.GetMessageQueue(chatID);
     }
 
-    private Object AddUser() {
+    private Object AddUser(JSONObject request) {
         // Get the user from the request and decrypt
-        User newUser = (User) this.request.get("data");
+        User newUser = (User) request.get("data");
 
         if (!Arrays.equals(this.server.db.GetUserByDisplayName(newUser.DisplayName), new User[0]) || this.server.db.GetUserByUsername(newUser.Username) != null) {
             return null;
@@ -410,16 +1147,16 @@ public class ConnectionHandler extends Handler {
         return this.server.db.GetUserByUsername(newUser.Username);
     }
 
-    private Object AddChat() {
+    private Object AddChat(JSONObject request) {
         if (!this.authenticated) {
             return null;
         }
 
         // Create a new public key
-        KeyPair chatKeyPair = (KeyPair) this.request.get("keyPair");
+        KeyPair chatKeyPair = (KeyPair) request.get("keyPair");
 
         // Get the chat from the request and decrypt
-        Chat newChat = (Chat) this.request.get("data");
+        Chat newChat = (Chat) request.get("data");
         newChat = new Chat(newChat.ChatID, newChat.Name, newChat.Description, chatKeyPair.hashCode());
 
         // Add the chat, public key, and message queue to the database
@@ -435,70 +1172,82 @@ public class ConnectionHandler extends Handler {
         return this.server.db.GetChatByPublicKeyID(chatKeyPair.hashCode());
     }
 
-    private Object AddListenRule() {
+    /**
+     * Queue a request to be sent to the clients whose listen rules it triggers, on this server and the other servers in
+     * the cluster, without waiting for it to be sent
+     * @param type The type of the request
+     * @param data The data of the request, which the listen rules are matched against
+     * @param request The request to send
+     */
+    private void Trigger(RequestType type, Object data, JSONObject request) {
+        this.server.triggerDispatcher.Dispatch(this.server.listenRules.Match(type, data), request);
+
+        if (this.server.cluster != null) {
+            this.server.cluster.Publish(type, data, request);
+        }
+    }
+
+    private Object AddListenRule(JSONObject request) {
         if (!this.authenticated) {
             return null;
         }
 
         // Get the listen rule object from the request
-        ListenRule listenRule = (ListenRule) this.request.get("data");
+        ListenRule listenRule = (ListenRule) request.get("data");
 
-        // Set the listen rule handler
-        if (listenRule.connectionHandlerId == -1) {
-            listenRule.handler = this;
+        // Bind the listen rule to the session it delivers to, the session of another handler if one is given
+        ConnectionHandler handler = listenRule.connectionHandlerId == -1 ? this : (ConnectionHandler) this.server.connections.Get(listenRule.connectionHandlerId);
+        if (handler == null) {
+            return "failed";
         }
-        else {
-            listenRule.handler = (ConnectionHandler) this.server.connectionHandlerPool[listenRule.connectionHandlerId];
+
+        TriggerQueue queue = handler.triggerQueue;
+        if (queue == null) {
+            return "failed";
         }
 
+        listenRule.Bind(handler, queue, handler.user);
+
         try {
-            // Assign an id to the listen rule and add the rule to the list
-            listenRule.setId(this.server.listenRules.size());
-            this.server.listenRules.add(listenRule);
+            // Assign an id to the listen rule and add the rule to the list, which fails if the session has since ended
+            listenRule.setId(this.server.listenRules.NextId());
+            if (!this.server.listenRules.Add(listenRule)) {
+                return "failed";
+            }
+
             // Return the id of the listen rule
             return listenRule.getId();
 
         } catch (ListenRule.IDAlreadySetException e) {
             e.printStackTrace();
             return "failed";
+
+        } catch (NoSuchFieldException e) {
+            // The rule could never be triggered
+            this.DebugLog("Rejected listen rule (" + e.getMessage() + ")");
+            return "failed";
         }
     }
 
-    private Object RemoveListenRule() {
+    private Object RemoveListenRule(JSONObject request) {
         if (!this.authenticated) {
             return null;
         }
 
-        int id = (int) this.request.get("data");
-        boolean found = false;
-        for (int i = 0; i < this.server.listenRules.size(); i++) {
-            if (this.server.listenRules.get(i).getId() == id) {
-                this.server.listenRules.remove(i);
-                found = true;
-                break;
-            }
-        }
-
-        return found ? "done" : "failed";
+        int id = (int) request.get("data");
+        return this.server.listenRules.Remove(id) ? "done" : "failed";
     }
 
-    private Object AcceptFriendRequest() {
+    private Object AcceptFriendRequest(JSONObject request) {
         if (!this.authenticated) {
             return null;
         }
 
         // Get the friend request from the request, since the data contained are all integers we do not need to decrypt
-        FriendRequest fr = (FriendRequest) this.request.get("data");
+        FriendRequest fr = (FriendRequest) request.get("data");
 
-        // Check if this request triggers any listen rules
-        for (ListenRule rule : this.server.listenRules) {
-            try {
-                if (rule.CheckRequest(RequestType.AcceptFriendRequest, fr)) {
-                    this.request.put("triggerID", rule.getId());
-                    rule.handler.LrSend(rule.handler.clientKeyPair.encrypt(this.request));
-                }
-            } catch (IllegalAccessException | NoSuchFieldException | PublicKeyException | IOException ignored) {}
-        }
+        // Send this request to the clients listening for it
+        this.Trigger(RequestType.AcceptFriendRequest, fr, request);
 
         // Check if the two users involved are already friends
         if (this.server.db.GetFriendshipByUserIDAndFriendID(fr.SenderID, fr.RecipientID) != null) {
@@ -522,13 +1271,13 @@ public class ConnectionHandler extends Handler {
         return "done";
     }
 
-    private Object DeclineFriendRequest() {
+    private Object DeclineFriendRequest(JSONObject request) {
         if (!this.authenticated) {
             return null;
         }
 
         // Get the friend request from the request, since the data contained are all integers we do not need to decrypt
-        FriendRequest fr = (FriendRequest) this.request.get("data");
+        FriendRequest fr = (FriendRequest) request.get("data");
 
         // Delete the friend requests from the database
         if (this.server.db.DeleteFriendRequest(fr.FriendRequestID) == Result.FAILED) {
@@ -539,24 +1288,17 @@ public class ConnectionHandler extends Handler {
         return "done";
     }
 
-    private Object AcceptChatInvite() {
+    private Object AcceptChatInvite(JSONObject request) {
         if (!this.authenticated) {
             return null;
         }
 
         // Get the chat invite from the request and the private key from the database
-        ChatInvite ci = (ChatInvite) this.request.get("data");
+        ChatInvite ci = (ChatInvite) request.get("data");
         KeyPair privateKey = this.server.db.GetKeyPair(ci.PrivateKeyID);
 
-        // Check if this request triggers any listen rules
-        for (ListenRule rule : this.server.listenRules) {
-            try {
-                if (rule.CheckRequest(RequestType.AcceptChatInvite, ci)) {
-                    this.request.put("triggerID", rule.getId());
-                    rule.handler.LrSend(rule.handler.clientKeyPair.encrypt(this.request));
-                }
-            } catch (IllegalAccessException | NoSuchFieldException | PublicKeyException | IOException ignored) {}
-        }
+        // Send this request to the clients listening for it
+        this.Trigger(RequestType.AcceptChatInvite, ci, request);
 
         // Delete the chat invite from the database
         if (this.server.db.DeleteChatInvite(ci.ChatInviteID) == Result.FAILED || this.server.db.RemoveKeyPair(ci.PrivateKeyID) == Result.FAILED) {
@@ -566,13 +1308,13 @@ public class ConnectionHandler extends Handler {
         return privateKey;
     }
 
-    private Object DeclineChatInvite() {
+    private Object DeclineChatInvite(JSONObject request) {
         if (!this.authenticated) {
             return null;
         }
 
         // Get the chat invite from the request and the private key from the database
-        ChatInvite ci = (ChatInvite) this.request.get("data");
+        ChatInvite ci = (ChatInvite) request.get("data");
 
         // Delete the chat invite from the database
         if (this.server.db.DeleteChatInvite(ci.ChatInviteID) == Result.FAILED || this.server.db.RemoveKeyPair(ci.PrivateKeyID) == Result.FAILED) {
@@ -582,49 +1324,36 @@ public class ConnectionHandler extends Handler {
         return "done";
     }
 
-    private Object SendMessage() {
+    private Object SendMessage(JSONObject request) {
         if (!this.authenticated) {
             return null;
         }
 
         // Get the message from the database
-        Message message = (Message) this.request.get("data");
+        Message message = (Message) request.get("data");
 
-        // Check if this request triggers any listen rules
-        for (ListenRule rule : this.server.listenRules) {
-            try {
-                if (rule.CheckRequest(RequestType.SendMessage, message)) {
-                    this.request.put("triggerID", rule.getId());
-                    rule.handler.LrSend(rule.handler.clientKeyPair.encrypt(this.request));
-                }
-            } catch (IllegalAccessException | NoSuchFieldException | PublicKeyException | IOException ignored) {}
+        // Add the message to the database, only the message itself is written to the message store's log
+        if (this.server.db.PushMessage(message) == Result.FAILED) {
+            return "failed";
         }
 
-        // Add the message to the database
-        this.server.db.GetMessageQueue(message.ChatID).Push(message);
-        this.server.db.SaveKeyAndMessageStore();
+        // Send this request to the clients listening for it
+        this.Trigger(RequestType.SendMessage, message, request);
 
         // Reply to the client
         return "done";
     }
 
-    private Object SendFriendRequest() {
+    private Object SendFriendRequest(JSONObject request) {
         if (!this.authenticated) {
             return null;
         }
 
         // Get the friend request from the request
-        FriendRequest fr = (FriendRequest) this.request.get("data");
+        FriendRequest fr = (FriendRequest) request.get("data");
 
-        // Check if this request triggers any listen rules
-        for (ListenRule rule : this.server.listenRules) {
-            try {
-                if (rule.CheckRequest(RequestType.SendFriendRequest, fr)) {
-                    this.request.put("triggerID", rule.getId());
-                    rule.handler.LrSend(rule.handler.clientKeyPair.encrypt(this.request));
-                }
-            } catch (IllegalAccessException | NoSuchFieldException | PublicKeyException | IOException ignored) {}
-        }
+        // Send this request to the clients listening for it
+        this.Trigger(RequestType.SendFriendRequest, fr, request);
 
         // Add the request to the database
         if (this.server.db.AddFriendRequest(fr) == Result.FAILED) {
@@ -634,25 +1363,18 @@ public class ConnectionHandler extends Handler {
         return "done";
     }
 
-    private Object SendChatInvite() {
+    private Object SendChatInvite(JSONObject request) {
         if (!this.authenticated) {
             return null;
         }
 
         // Get the chat invite and public key from the request
-        ChatInvite chatInvite = (ChatInvite) this.request.get("data");
-        KeyPair privateKey = (KeyPair) this.request.get("keyPair");
+        ChatInvite chatInvite = (ChatInvite) request.get("data");
+        KeyPair privateKey = (KeyPair) request.get("keyPair");
         chatInvite = new ChatInvite(chatInvite.ChatInviteID, chatInvite.ChatID, chatInvite.SenderID, chatInvite.RecipientID, chatInvite.TimeSent, privateKey.hashCode());
 
-        // Check if this request triggers any listen rules
-        for (ListenRule rule : this.server.listenRules) {
-            try {
-                if (rule.CheckRequest(RequestType.SendChatInvite, chatInvite)) {
-                    this.request.put("triggerID", rule.getId());
-                    rule.handler.LrSend(rule.handler.clientKeyPair.encrypt(this.request));
-                }
-            } catch (IllegalAccessException | NoSuchFieldException | PublicKeyException | IOException ignored) {}
-        }
+        // Send this request to the clients listening for it
+        this.Trigger(RequestType.SendChatInvite, chatInvite, request);
 
         // Add the chat invite and private key to the database
         if (this.server.db.AddKeyPair(privateKey) == Result.FAILED || this.server.db.AddChatInvite(chatInvite) == Result.FAILED) {
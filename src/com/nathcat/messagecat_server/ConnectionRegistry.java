@@ -0,0 +1,64 @@
+package com.nathcat.messagecat_server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Maps connection IDs to the handlers serving them. The ID is the handler's threadNum, which is sent to the client
+ * during the handshake and used by listen rules to refer to another connection.
+ *
+ * @author Nathan "Nathcat" Baines
+ */
+public class ConnectionRegistry {
+    /**
+     * The registered handlers, keyed by their connection ID
+     */
+    private final ConcurrentHashMap<Integer, Handler> handlers = new ConcurrentHashMap<>();
+
+    /**
+     * The next connection ID to be allocated
+     */
+    private final AtomicInteger nextID = new AtomicInteger(0);
+
+    /**
+     * Allocate a new connection ID. IDs are never negative, since -1 is used by listen rules to refer to the
+     * connection which registered them.
+     * @return The new connection ID
+     */
+    public int NextID() {
+        return this.nextID.getAndUpdate(id -> id == Integer.MAX_VALUE ? 0 : id + 1);
+    }
+
+    /**
+     * Register a handler under its connection ID
+     * @param handler The handler to register
+     */
+    public void Register(Handler handler) {
+        this.handlers.put(handler.threadNum, handler);
+    }
+
+    /**
+     * Remove a handler from the registry
+     * @param handler The handler to remove
+     */
+    public void Unregister(Handler handler) {
+        this.handlers.remove(handler.threadNum, handler);
+    }
+
+    /**
+     * Get the handler registered under a connection ID
+     * @param id The connection ID
+     * @return The handler, or null if there is no handler with this ID
+     */
+    public Handler Get(int id) {
+        return this.handlers.get(id);
+    }
+
+    /**
+     * Get the number of registered handlers
+     * @return The number of registered handlers
+     */
+    public int Size() {
+        return this.handlers.size();
+    }
+}
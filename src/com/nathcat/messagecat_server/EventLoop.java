@@ -0,0 +1,117 @@
+package com.nathcat.messagecat_server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A selector thread of the NIO transport, owns the channels of many connections and performs all of their I/O.
+ *
+ * @author Nathan "Nathcat" Baines
+ */
+public class EventLoop extends Thread {
+    /**
+     * The selector watching this loop's channels
+     */
+    private final Selector selector;
+
+    /**
+     * Tasks submitted by other threads, run on this thread between selects
+     */
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Buffer which all of this loop's channels are read into, connections only keep the frames they have not
+     * finished receiving
+     */
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+
+    /**
+     * The loop number, used in debug messages
+     */
+    private final int loopNum;
+
+    /**
+     * Constructor method
+     * @param loopNum The loop number, used in debug messages
+     * @throws IOException Thrown if the selector cannot be opened
+     */
+    public EventLoop(int loopNum) throws IOException {
+        this.loopNum = loopNum;
+        this.selector = Selector.open();
+        this.setDaemon(true);
+    }
+
+    /**
+     * Run a task on this loop's thread
+     * @param task The task to run
+     */
+    public void Execute(Runnable task) {
+        this.tasks.add(task);
+        this.selector.wakeup();
+    }
+
+    /**
+     * Start watching a connection's channel for incoming data
+     * @param handler The handler owning the channel
+     */
+    public void Register(NioConnectionHandler handler) {
+        this.Execute(() -> {
+            try {
+                handler.key = handler.channel.register(this.selector, SelectionKey.OP_READ, handler);
+
+            } catch (IOException e) {
+                handler.DebugLog("Failed to register channel (" + e.getMessage() + ")");
+                handler.Close();
+            }
+        });
+    }
+
+    /**
+     * This method will be executed in a separate thread once Thread.start() method is called on this object
+     */
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                this.selector.select();
+
+            } catch (IOException e) {
+                this.DebugLog("Select failed (" + e.getMessage() + ")");
+                continue;
+            }
+
+            Runnable task;
+            while ((task = this.tasks.poll()) != null) {
+                task.run();
+            }
+
+            Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                NioConnectionHandler handler = (NioConnectionHandler) key.attachment();
+
+                if (key.isValid() && key.isReadable()) {
+                    handler.OnReadable(this.readBuffer);
+                }
+
+                if (key.isValid() && key.isWritable()) {
+                    handler.OnWritable();
+                }
+            }
+        }
+    }
+
+    /**
+     * Output a debug message to the console
+     * @param message The message to output
+     */
+    private void DebugLog(String message) {
+        System.out.println("EventLoop (" + loopNum + "): " + message);
+    }
+}
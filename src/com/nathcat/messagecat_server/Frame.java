@@ -0,0 +1,59 @@
+package com.nathcat.messagecat_server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * Length-prefixed framing used by the NIO transport. Each frame is laid out as
+ * <pre>
+ *     int length     - the number of payload bytes
+ *     byte type      - the ordinal of the FrameType
+ *     byte[] payload - a serialized Java object
+ * </pre>
+ *
+ * @author Nathan "Nathcat" Baines
+ */
+public class Frame {
+    /**
+     * The number of bytes preceding the payload
+     */
+    public static final int HEADER_LENGTH = 5;
+
+    /**
+     * The largest payload a frame may carry, larger frames are treated as a protocol error
+     */
+    public static final int MAX_PAYLOAD_LENGTH = 16 * 1024 * 1024;
+
+    /**
+     * Serialize an object into a complete frame
+     * @param type The type of the frame
+     * @param obj The object to serialize
+     * @return A buffer containing the frame, ready to be written
+     * @throws IOException Thrown if the object cannot be serialized
+     */
+    public static ByteBuffer Encode(FrameType type, Object obj) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bytes);
+        oos.writeObject(obj);
+        oos.close();
+
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH + bytes.size());
+        frame.putInt(bytes.size());
+        frame.put((byte) type.ordinal());
+        frame.put(bytes.toByteArray());
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * Deserialize the payload of a frame
+     * @param payload The payload bytes
+     * @return The object contained in the payload
+     * @throws IOException Thrown if the payload is malformed
+     * @throws ClassNotFoundException Thrown if the serialized class cannot be found
+     */
+    public static Object Decode(byte[] payload) throws IOException, ClassNotFoundException {
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(payload));
+        return ois.readObject();
+    }
+}
@@ -0,0 +1,17 @@
+package com.nathcat.messagecat_server;
+
+/**
+ * Identifies the stream a frame belongs to when several kinds of message share one connection.
+ *
+ * @author Nathan "Nathcat" Baines
+ */
+public enum FrameType {
+    /**
+     * Part of the handshake, or a request / response on the main request stream
+     */
+    Message,
+    /**
+     * A request which triggered one of the client's listen rules, pushed by the server
+     */
+    Trigger
+}
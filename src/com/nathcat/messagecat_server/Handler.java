@@ -6,6 +6,11 @@ import java.io.ObjectOutputStream;
 import java.lang.reflect.Field;
 import java.math.BigInteger;
 import java.net.*;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.nathcat.RSA.*;
 import com.nathcat.messagecat_database_entities.User;
@@ -53,9 +58,15 @@ public class Handler extends Thread {
     public KeyPair clientKeyPair;
 
     /**
-     * Indicates whether the handler is busy
+     * The symmetric cipher used after the handshake, or null if the client uses RSA for every object. The key is
+     * created during the handshake if the client asks for it.
      */
-    public boolean busy = false;
+    public SessionCipher sessionCipher;
+
+    /**
+     * Indicates whether the handler is busy, this is read by other threads so it must be volatile
+     */
+    public volatile boolean busy = false;
 
     /**
      * Parent server object
@@ -67,6 +78,16 @@ public class Handler extends Thread {
      */
     public Object queueObject;
 
+    /**
+     * Hand-off slot between the QueueManager and this handler, the handler is parked on this while it is idle
+     */
+    private final BlockingQueue<Object> taskHandOff = new ArrayBlockingQueue<>(1);
+
+    /**
+     * Whether this handler holds one of the sessions counted by the server's AdmissionController
+     */
+    public final AtomicBoolean admitted = new AtomicBoolean(false);
+
     /**
      * Whether the connection is authenticated or not
      */
@@ -77,6 +98,12 @@ public class Handler extends Thread {
      */
     public User user;
 
+    /**
+     * Whether listen rule triggers are sent on the main connection instead of the listen rule socket, this is
+     * negotiated during the handshake
+     */
+    public boolean multiplexed;
+
     /**
      * A socket specifically for communicating listen rule triggers
      */
@@ -113,15 +140,43 @@ public class Handler extends Thread {
     }
 
     /**
-     * Stop the handler thread using the Thread.wait() method
+     * Park the handler in the QueueManager's free handler pool until it is assigned a new task.
+     * The assigned task is placed in the queueObject field.
+     * @return True if a task was assigned, false if the handler was idle for too long and has been removed from the
+     *         pool, in which case the handler should finish
      */
-    public synchronized void StopHandler() {
-        try {
-            this.wait();
+    public boolean StopHandler() {
+        QueueManager queueManager = this.server.connectionHandlerQueueManager;
+
+        this.queueObject = null;
+        queueManager.Release(this);
+
+        while (this.queueObject == null) {
+            try {
+                this.queueObject = this.taskHandOff.poll(queueManager.idleTimeout, TimeUnit.MILLISECONDS);
+
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                continue;
+            }
 
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+            if (this.queueObject == null && queueManager.Retire(this)) {
+                return false;
+            }
         }
+
+        return true;
+    }
+
+    /**
+     * Assign a task to this handler, waking it immediately. Should only be called by the QueueManager on a handler
+     * it has taken from the free handler pool.
+     * @param task The object to pass to the handler
+     * @return Whether the task was accepted by the handler
+     */
+    public boolean Assign(Object task) {
+        this.busy = true;
+        return this.taskHandOff.offer(task);
     }
 
     /**
@@ -138,17 +193,50 @@ public class Handler extends Thread {
      * @throws IOException Thrown if there is an I/O issue
      */
     public void Send(Object obj) throws IOException {
-        this.oos.writeObject(obj);
-        this.oos.flush();
+        if (this.multiplexed) {
+            obj = new MultiplexedObject(FrameType.Message, obj);
+        }
+
+        // Listen rule triggers may be written to the same stream from other handlers' threads
+        synchronized (this.oos) {
+            this.oos.writeObject(obj);
+            this.oos.flush();
+        }
     }
 
     /**
-     * Send an object via the listen rule socket
+     * Send an object via the listen rule socket, or on the main connection if the connection is multiplexed
      * @param obj The object to send
      */
     public void LrSend(Object obj) throws IOException {
-        lrOos.writeObject(obj);
-        lrOos.flush();
+        ObjectOutputStream out = this.lrOos;
+
+        if (this.multiplexed) {
+            obj = new MultiplexedObject(FrameType.Trigger, obj);
+            out = this.oos;
+        }
+
+        synchronized (out) {
+            out.writeObject(obj);
+            out.flush();
+        }
+    }
+
+    /**
+     * Send several objects via the listen rule socket, or on the main connection if the connection is multiplexed,
+     * flushing the stream once after the last of them
+     * @param objs The objects to send, in order
+     */
+    public void LrSendAll(List<Object> objs) throws IOException {
+        ObjectOutputStream out = this.multiplexed ? this.oos : this.lrOos;
+
+        synchronized (out) {
+            for (Object obj : objs) {
+                out.writeObject(this.multiplexed ? new MultiplexedObject(FrameType.Trigger, obj) : obj);
+            }
+
+            out.flush();
+        }
     }
 
     /**
@@ -167,25 +255,31 @@ public class Handler extends Thread {
     public void Close() {
         try {
             this.socket.close();
-            this.lrSocket.close();
+
+            if (this.lrSocket != null) {
+                this.lrSocket.close();
+            }
 
         } catch (Exception e) {
             this.DebugLog("Failed to close socket (" + e.getMessage() + ")");
         }
 
-        boolean emptyPass = false;
-        while (!emptyPass) {
-            emptyPass = true;
+        this.EndSession();
+    }
 
-            for (int i = 0 ; i < this.server.listenRules.size(); i++) {
-                if (this.server.listenRules.get(i).handler.equals(this)) {
-                    this.server.listenRules.remove(i);
-                    emptyPass = false;
-                    break;
-                }
-            }
+    /**
+     * Reset the session state, called once the connection has been closed
+     */
+    protected void EndSession() {
+        // Give the session back to the admission controller, only once however many times the handler is closed
+        if (this.admitted.getAndSet(false)) {
+            this.server.admission.Release();
         }
 
+        lrSocket = null;
+        lrOos = null;
+        sessionCipher = null;
+        multiplexed = false;
         authenticated = false;
         busy = false;
     }
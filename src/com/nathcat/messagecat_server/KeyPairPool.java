@@ -0,0 +1,130 @@
+package com.nathcat.messagecat_server;
+
+import com.nathcat.RSA.*;
+import org.json.simple.JSONObject;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps a reservoir of freshly generated RSA key pairs ready for handshakes. Generating a key pair is the most
+ * expensive step of setting up a connection, so it is done ahead of time on a dedicated thread pool, and a handshake
+ * only has to take a key pair from the reservoir. Each key pair is handed out once.
+ *
+ * @author Nathan "Nathcat" Baines
+ */
+public class KeyPairPool implements MetricsSource {
+    /**
+     * Key pairs ready to be handed out
+     */
+    private final BlockingQueue<KeyPair> reservoir;
+
+    /**
+     * The threads which refill the reservoir
+     */
+    private final ExecutorService factory;
+
+    /**
+     * Set if the key pair generator is not available, in which case key pairs are generated by the caller so that
+     * the caller sees the error rather than waiting forever
+     */
+    private volatile boolean failed = false;
+
+    // Metrics
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+
+    /**
+     * Constructor method, starts filling the reservoir
+     * @param capacity The number of key pairs to keep ready, if this is 0 key pairs are generated when they are taken
+     * @param threadCount The number of threads which generate key pairs
+     */
+    public KeyPairPool(int capacity, int threadCount) {
+        if (capacity <= 0) {
+            this.reservoir = null;
+            this.factory = null;
+            return;
+        }
+
+        this.reservoir = new ArrayBlockingQueue<>(capacity);
+
+        AtomicInteger threadNum = new AtomicInteger(0);
+        this.factory = Executors.newFixedThreadPool(threadCount, runnable -> {
+            Thread thread = new Thread(runnable, "KeyPairFactory-" + threadNum.getAndIncrement());
+            thread.setDaemon(true);
+            // Handshakes should not have to compete with refilling the reservoir
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+
+        for (int i = 0; i < threadCount; i++) {
+            this.factory.execute(this::Refill);
+        }
+    }
+
+    /**
+     * Keep the reservoir full, run by each of the factory threads
+     */
+    private void Refill() {
+        while (true) {
+            try {
+                // Blocks while the reservoir is full
+                this.reservoir.put(RSA.GenerateRSAKeyPair());
+
+            } catch (NoSuchAlgorithmException e) {
+                System.out.println("KeyPairPool: Failed to generate RSA key pair! (" + e.getMessage() + ")");
+                this.failed = true;
+                return;
+
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Take a key pair to use for a handshake. If the reservoir is empty this waits for the factory to produce one
+     * rather than generating one on the calling thread, which keeps the CPU spent on key generation bounded during a
+     * surge of connections.
+     * @return A key pair which has not been handed out before
+     * @throws NoSuchAlgorithmException Thrown if key pairs cannot be generated
+     */
+    public KeyPair Take() throws NoSuchAlgorithmException {
+        if (this.reservoir == null || this.failed) {
+            return RSA.GenerateRSAKeyPair();
+        }
+
+        KeyPair keyPair = this.reservoir.poll();
+        if (keyPair != null) {
+            this.hits.incrementAndGet();
+            return keyPair;
+        }
+
+        this.misses.incrementAndGet();
+
+        try {
+            return this.reservoir.take();
+
+        } catch (InterruptedException e) {
+            return RSA.GenerateRSAKeyPair();
+        }
+    }
+
+    @Override
+    public JSONObject GetMetrics() {
+        long hits = this.hits.get();
+        long misses = this.misses.get();
+
+        JSONObject metrics = new JSONObject();
+        metrics.put("available", this.reservoir == null ? 0 : this.reservoir.size());
+        metrics.put("hits", hits);
+        metrics.put("misses", misses);
+        metrics.put("hitRate", hits + misses == 0 ? 1.0 : (double) hits / (hits + misses));
+        return metrics;
+    }
+}
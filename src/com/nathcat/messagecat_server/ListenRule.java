@@ -1,7 +1,12 @@
 package com.nathcat.messagecat_server;
 
+import com.nathcat.messagecat_database_entities.User;
+
 import java.io.Serializable;
-import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.Function;
 
 /**
  * A listening rule to be supplied to a client when they want to listen for actions performed
@@ -11,6 +16,9 @@ import java.lang.reflect.Field;
  */
 
 public class ListenRule implements Serializable {
+    // Listen rules are sent by clients, so the serialized form must stay the same as methods are added
+    private static final long serialVersionUID = -1745615876800186568L;
+
     public class IDAlreadySetException extends Exception { }
 
     /**
@@ -40,6 +48,22 @@ public class ListenRule implements Serializable {
     private Object objectToMatch;
     private Object[] objectsToMatch;
 
+    // Filled in by Compile when the rule is registered, these are not sent with the rule
+    private transient volatile Function<Object, Object> fieldGetter;
+    private transient Set<Object> valuesToMatch;
+
+    /**
+     * The trigger queue of the session the rule delivers to, set by Bind. Triggers are delivered to this queue rather
+     * than to the handler, which may go on to serve another session. Null while the session is suspended, when the
+     * rule's triggers are only added to the trigger log.
+     */
+    transient volatile TriggerQueue queue;
+
+    /**
+     * The ID of the user the session the rule delivers to is authenticated as, or null, set by Bind
+     */
+    transient volatile Integer userID;
+
     public ListenRule(ConnectionHandler handler, RequestType listenForType, String fieldNameToMatch, Object objectToMatch) {
         this.handler = handler;
         this.listenForType = listenForType;
@@ -80,6 +104,18 @@ public class ListenRule implements Serializable {
         return this.id;
     }
 
+    /**
+     * Bind the rule to the session it delivers its triggers to, called by the server before the rule is added
+     * @param handler The handler serving the session
+     * @param queue The session's trigger queue
+     * @param user The user the session is authenticated as, or null
+     */
+    public void Bind(ConnectionHandler handler, TriggerQueue queue, User user) {
+        this.handler = handler;
+        this.queue = queue;
+        this.userID = user == null ? null : user.UserID;
+    }
+
     public void setId(int id) throws IDAlreadySetException {
         if (this.id != -1) {
             throw new IDAlreadySetException();
@@ -88,32 +124,76 @@ public class ListenRule implements Serializable {
         this.id = id;
     }
 
+    public RequestType getListenForType() {
+        return this.listenForType;
+    }
+
+    public String getFieldNameToMatch() {
+        return this.fieldNameToMatch;
+    }
+
+    public Object getObjectToMatch() {
+        return this.objectToMatch;
+    }
+
+    public Object[] getObjectsToMatch() {
+        return this.objectsToMatch;
+    }
+
+    /**
+     * Look up the field this rule matches and prepare the values it matches, so that checking a request does not need
+     * reflection. Called when the rule is registered, rules which have not been compiled are compiled when they are
+     * first checked.
+     * @throws NoSuchFieldException Thrown if the data of the request type this rule listens for has no such field
+     */
+    public void Compile() throws NoSuchFieldException {
+        if (this.fieldNameToMatch == null) {
+            return;
+        }
+
+        if (this.objectToMatch == null) {
+            this.valuesToMatch = this.objectsToMatch == null ? new HashSet<>() : new HashSet<>(Arrays.asList(this.objectsToMatch));
+        }
+
+        this.fieldGetter = TriggerFields.Get(this.listenForType, this.fieldNameToMatch);
+    }
+
+    /**
+     * Get the getter for the field this rule matches
+     * @return The getter, or null if the rule matches every request of its type
+     * @throws NoSuchFieldException Thrown if the data of the request type this rule listens for has no such field
+     */
+    public Function<Object, Object> getFieldGetter() throws NoSuchFieldException {
+        if (this.fieldNameToMatch != null && this.fieldGetter == null) {
+            this.Compile();
+        }
+
+        return this.fieldGetter;
+    }
+
     /**
      * Checks if a request matches the listen rule's criteria, and send the request to the client if it does
      * @param type The type of request
      * @param data The data object to compare to
      * @return True if the listen rule criteria is met, False if not.
+     * @throws NoSuchFieldException Thrown if the data of the request type this rule listens for has no such field
      */
-    public boolean CheckRequest(RequestType type, Object data) throws NoSuchFieldException, IllegalAccessException {
+    public boolean CheckRequest(RequestType type, Object data) throws NoSuchFieldException {
+        if (type != listenForType) {
+            return false;
+        }
+
         if (fieldNameToMatch == null) {
-            return type == listenForType;
+            return true;
         }
 
+        Object value = this.getFieldGetter().apply(data);
+
         if (objectToMatch != null) {
-            return type == listenForType && data.getClass()  // Compare request type to the type we are listening for and get the class object of data
-                    .getField(fieldNameToMatch)              // Get the field we are comparing
-                    .get(data).equals(objectToMatch);        // Get the data from the field in the instance of data and compare to objectToMatch
+            return objectToMatch.equals(value);
         }
         else {
-            boolean contains = false;
-            for (Object toMatch : objectsToMatch) {
-                if (data.getClass().getField(fieldNameToMatch).get(data).equals(toMatch)) {
-                    contains = true;
-                    break;
-                }
-            }
-
-            return type == listenForType && contains;
+            return valuesToMatch.contains(value);
         }
     }
 }
\ No newline at end of file
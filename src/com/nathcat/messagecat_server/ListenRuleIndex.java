@@ -0,0 +1,457 @@
+package com.nathcat.messagecat_server;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+
+/**
+ * Holds the listen rules in operation on the server, indexed by the request type they listen for and then by the
+ * field and value they match, so that finding the rules triggered by a request only touches the rules which can match
+ * it rather than every rule on the server. Each field is read from the request data once, with the getter compiled
+ * for the rules matching it.
+ *
+ * The registry is safe to use from every handler thread at once. Rules are also kept by ID and by the trigger queue of
+ * the session they deliver to, so removing a rule, or every rule of a session when it ends, does not scan the other
+ * rules.
+ *
+ * The rules of a session which can be resumed with a ticket are suspended when it ends rather than removed. They stay
+ * in the index without a trigger queue, so requests which trigger them are still added to the trigger log and the
+ * client can replay them once it has resumed the session.
+ *
+ * @author Nathan "Nathcat" Baines
+ */
+public class ListenRuleIndex {
+    /**
+     * The rules listening for one type of request
+     */
+    private static class TypeIndex {
+        /**
+         * Rules which match every request of the type, in the order they were added. A set so that removing a rule
+         * does not cost more the more rules share the bucket.
+         */
+        final Set<ListenRule> any = new LinkedHashSet<>();
+
+        /**
+         * Rules which match a field of the request data, by field name
+         */
+        final Map<String, FieldIndex> byField = new HashMap<>();
+
+        boolean IsEmpty() {
+            return this.any.isEmpty() && this.byField.isEmpty();
+        }
+    }
+
+    /**
+     * The rules matching one field of the request data
+     */
+    private static class FieldIndex {
+        /**
+         * Reads the field from the request data
+         */
+        final Function<Object, Object> getter;
+
+        /**
+         * The rules, by the value they match, each in the order they were added
+         */
+        final Map<Object, Set<ListenRule>> byValue = new HashMap<>();
+
+        FieldIndex(Function<Object, Object> getter) {
+            this.getter = getter;
+        }
+    }
+
+    /**
+     * The next ID to assign to a rule, IDs are never reused
+     */
+    private final AtomicInteger nextId = new AtomicInteger(0);
+
+    /**
+     * Incremented whenever a rule is added or removed
+     */
+    private final AtomicLong version = new AtomicLong(0);
+
+    /**
+     * Every rule, by ID
+     */
+    private final Map<Integer, ListenRule> byId = new ConcurrentHashMap<>();
+
+    /**
+     * The rules which deliver their triggers to each session, by the session's trigger queue, guarded by the lock
+     */
+    private final Map<TriggerQueue, Set<ListenRule>> bySession = new HashMap<>();
+
+    /**
+     * Guards the type indexes and the session sets, the type indexes are read by many requests at once and changed
+     * rarely
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final Map<RequestType, TypeIndex> types = new EnumMap<>(RequestType.class);
+
+    /**
+     * Allocate an ID for a new rule
+     * @return An ID which has not been given to any other rule
+     */
+    public int NextId() {
+        return this.nextId.getAndIncrement();
+    }
+
+    /**
+     * Add a rule, which must already have an ID and be bound to its session
+     * @param rule The rule to add
+     * @return Whether the rule was added, it is not if its session has ended or a rule with its ID is already held
+     * @throws NoSuchFieldException Thrown if the rule matches a field which the data of its request type does not have,
+     *                              in which case it is not added
+     */
+    public boolean Add(ListenRule rule) throws NoSuchFieldException {
+        Function<Object, Object> getter = rule.getFieldGetter();
+        TriggerQueue queue = rule.queue;
+
+        // The rule is indexed before the write lock is released, so a concurrent Remove always finds it in the index.
+        // A session's queue is closed before its rules are removed, so a rule added after that is refused here.
+        this.lock.writeLock().lock();
+        try {
+            if (queue == null || queue.IsClosed() || this.byId.putIfAbsent(rule.getId(), rule) != null) {
+                return false;
+            }
+
+            this.version.incrementAndGet();
+            this.bySession.computeIfAbsent(queue, q -> new HashSet<>()).add(rule);
+            this.Index(rule, getter);
+            return true;
+
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove the rule with the given ID
+     * @param id The ID of the rule
+     * @return Whether a rule was removed
+     */
+    public boolean Remove(int id) {
+        this.lock.writeLock().lock();
+        try {
+            ListenRule rule = this.byId.remove(id);
+            if (rule == null) {
+                return false;
+            }
+
+            Set<ListenRule> sessionRules = this.bySession.get(rule.queue);
+            if (sessionRules != null) {
+                sessionRules.remove(rule);
+                if (sessionRules.isEmpty()) {
+                    this.bySession.remove(rule.queue);
+                }
+            }
+
+            this.Unindex(rule);
+            this.version.incrementAndGet();
+            return true;
+
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove every rule which delivers its triggers to a session, taking time proportional to the number of rules the
+     * session has rather than the number on the server. The session's queue must already be closed, so that no more
+     * rules can be added for it.
+     * @param queue The session's trigger queue
+     */
+    public void RemoveSession(TriggerQueue queue) {
+        this.lock.writeLock().lock();
+        try {
+            Set<ListenRule> sessionRules = this.bySession.remove(queue);
+            if (sessionRules == null) {
+                return;
+            }
+
+            for (ListenRule rule : sessionRules) {
+                if (this.byId.remove(rule.getId(), rule)) {
+                    this.Unindex(rule);
+                }
+            }
+
+            this.version.incrementAndGet();
+
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Suspend the rules of a session which has ended but can be resumed, detaching them from its trigger queue. The
+     * rules stay in the index, and their triggers are only added to the trigger log until they are resumed or removed.
+     * @param queue The session's trigger queue
+     * @return The suspended rules, in order of ID
+     */
+    public List<ListenRule> Suspend(TriggerQueue queue) {
+        List<ListenRule> result;
+
+        this.lock.writeLock().lock();
+        try {
+            Set<ListenRule> sessionRules = this.bySession.remove(queue);
+            if (sessionRules == null) {
+                return new ArrayList<>();
+            }
+
+            for (ListenRule rule : sessionRules) {
+                rule.queue = null;
+            }
+
+            result = new ArrayList<>(sessionRules);
+
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+
+        result.sort(Comparator.comparingInt(ListenRule::getId));
+        return result;
+    }
+
+    /**
+     * Resume suspended rules, delivering their triggers to a new session. Rules which have been removed from the index
+     * in the meantime are added again.
+     * @param rules The rules, as returned by Suspend
+     * @param queue The new session's trigger queue
+     * @return The rules which were resumed, none are if the session has already ended
+     */
+    public List<ListenRule> Resume(List<ListenRule> rules, TriggerQueue queue) {
+        List<ListenRule> resumed = new ArrayList<>();
+
+        this.lock.writeLock().lock();
+        try {
+            if (queue.IsClosed()) {
+                // Nothing will resume the rules now, so they are not kept for the trigger log any longer
+                this.RemoveSuspended(rules);
+                return resumed;
+            }
+
+            for (ListenRule rule : rules) {
+                ListenRule indexed = this.byId.putIfAbsent(rule.getId(), rule);
+                if (indexed == null) {
+                    try {
+                        this.Index(rule, rule.getFieldGetter());
+
+                    } catch (NoSuchFieldException e) {
+                        // The rule was accepted when it was first added, so it can always be indexed again
+                        this.byId.remove(rule.getId());
+                        continue;
+                    }
+                }
+                else if (indexed != rule || rule.queue != null) {
+                    continue;
+                }
+
+                rule.queue = queue;
+                this.bySession.computeIfAbsent(queue, q -> new HashSet<>()).add(rule);
+                resumed.add(rule);
+            }
+
+            this.version.incrementAndGet();
+
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+
+        return resumed;
+    }
+
+    /**
+     * Remove suspended rules whose session can no longer be resumed
+     * @param rules The rules, as returned by Suspend
+     */
+    public void RemoveSuspended(List<ListenRule> rules) {
+        this.lock.writeLock().lock();
+        try {
+            for (ListenRule rule : rules) {
+                if (rule.queue == null && this.byId.remove(rule.getId(), rule)) {
+                    this.Unindex(rule);
+                }
+            }
+
+            this.version.incrementAndGet();
+
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Get the rules which deliver their triggers to a session
+     * @param queue The session's trigger queue
+     * @return The rules, in order of ID
+     */
+    public List<ListenRule> GetSessionRules(TriggerQueue queue) {
+        List<ListenRule> result;
+
+        this.lock.readLock().lock();
+        try {
+            Set<ListenRule> sessionRules = this.bySession.get(queue);
+            result = sessionRules == null ? new ArrayList<>() : new ArrayList<>(sessionRules);
+
+        } finally {
+            this.lock.readLock().unlock();
+        }
+
+        result.sort(Comparator.comparingInt(ListenRule::getId));
+        return result;
+    }
+
+    /**
+     * Get the number of rules
+     * @return The number of rules
+     */
+    public int Size() {
+        return this.byId.size();
+    }
+
+    /**
+     * Find the rules triggered by a request, equivalent to calling ListenRule.CheckRequest on every rule
+     * @param type The type of the request
+     * @param data The data of the request
+     * @return The rules triggered by the request
+     */
+    public List<ListenRule> Match(RequestType type, Object data) {
+        this.lock.readLock().lock();
+        try {
+            TypeIndex index = this.types.get(type);
+            if (index == null) {
+                return new ArrayList<>();
+            }
+
+            List<ListenRule> result = new ArrayList<>(index.any);
+            if (data == null) {
+                return result;
+            }
+
+            for (FieldIndex field : index.byField.values()) {
+                Object value = field.getter.apply(data);
+                if (value != null) {
+                    Set<ListenRule> matched = field.byValue.get(value);
+                    if (matched != null) {
+                        result.addAll(matched);
+                    }
+                }
+            }
+
+            return result;
+
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Get a number which changes whenever a rule is added or removed
+     * @return The version of the rules
+     */
+    public long GetVersion() {
+        return this.version.get();
+    }
+
+    /**
+     * Summarise the rules for the other servers in the cluster
+     * @return The request types, fields and values the rules listen for
+     */
+    public SubscriptionSummary Summary() {
+        SubscriptionSummary summary = new SubscriptionSummary();
+
+        this.lock.readLock().lock();
+        try {
+            for (Map.Entry<RequestType, TypeIndex> type : this.types.entrySet()) {
+                if (!type.getValue().any.isEmpty()) {
+                    summary.AddAny(type.getKey());
+                }
+
+                for (Map.Entry<String, FieldIndex> field : type.getValue().byField.entrySet()) {
+                    summary.AddValues(type.getKey(), field.getKey(), field.getValue().byValue.keySet());
+                }
+            }
+
+        } finally {
+            this.lock.readLock().unlock();
+        }
+
+        return summary;
+    }
+
+    /**
+     * Add a rule to the type indexes, the write lock must be held
+     */
+    private void Index(ListenRule rule, Function<Object, Object> getter) {
+        TypeIndex index = this.types.computeIfAbsent(rule.getListenForType(), type -> new TypeIndex());
+        if (rule.getFieldNameToMatch() == null) {
+            index.any.add(rule);
+            return;
+        }
+
+        FieldIndex field = index.byField.computeIfAbsent(rule.getFieldNameToMatch(), name -> new FieldIndex(getter));
+        for (Object value : ValuesOf(rule)) {
+            field.byValue.computeIfAbsent(value, v -> new LinkedHashSet<>()).add(rule);
+        }
+    }
+
+    /**
+     * Remove a rule from the type indexes, the rule must be in them and the write lock must be held
+     */
+    private void Unindex(ListenRule rule) {
+        TypeIndex index = this.types.get(rule.getListenForType());
+
+        if (rule.getFieldNameToMatch() == null) {
+            index.any.remove(rule);
+        }
+        else {
+            FieldIndex field = index.byField.get(rule.getFieldNameToMatch());
+            for (Object value : ValuesOf(rule)) {
+                Set<ListenRule> matched = field.byValue.get(value);
+                matched.remove(rule);
+                if (matched.isEmpty()) {
+                    field.byValue.remove(value);
+                }
+            }
+
+            if (field.byValue.isEmpty()) {
+                index.byField.remove(rule.getFieldNameToMatch());
+            }
+        }
+
+        if (index.IsEmpty()) {
+            this.types.remove(rule.getListenForType());
+        }
+    }
+
+    /**
+     * Get the distinct values a rule matches
+     */
+    private static Set<Object> ValuesOf(ListenRule rule) {
+        Set<Object> values = new LinkedHashSet<>();
+        if (rule.getObjectToMatch() != null) {
+            values.add(rule.getObjectToMatch());
+        }
+        else if (rule.getObjectsToMatch() != null) {
+            for (Object value : rule.getObjectsToMatch()) {
+                if (value != null) {
+                    values.add(value);
+                }
+            }
+        }
+
+        return values;
+    }
+}
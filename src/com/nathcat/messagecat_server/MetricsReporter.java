@@ -0,0 +1,73 @@
+package com.nathcat.messagecat_server;
+
+import org.json.simple.JSONObject;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Periodically outputs the metrics of the server's components to the console
+ *
+ * @author Nathan "Nathcat" Baines
+ */
+public class MetricsReporter extends Thread {
+    /**
+     * The components to report on, keyed by the name they are reported under
+     */
+    private final LinkedHashMap<String, MetricsSource> sources = new LinkedHashMap<>();
+
+    /**
+     * The time between reports in milliseconds
+     */
+    private final long interval;
+
+    /**
+     * Constructor method
+     * @param interval The time between reports in milliseconds
+     */
+    public MetricsReporter(long interval) {
+        this.interval = interval;
+        // Make this thread a daemon to the program
+        // This means that this thread will quit when the program quits
+        this.setDaemon(true);
+    }
+
+    /**
+     * Add a component to report on
+     * @param name The name to report the component's metrics under
+     * @param source The component
+     */
+    public synchronized void Add(String name, MetricsSource source) {
+        this.sources.put(name, source);
+    }
+
+    /**
+     * Get the metrics of every component
+     * @return A JSON object containing each component's metrics under its name
+     */
+    public synchronized JSONObject GetMetrics() {
+        JSONObject metrics = new JSONObject();
+        for (Map.Entry<String, MetricsSource> source : this.sources.entrySet()) {
+            metrics.put(source.getKey(), source.getValue().GetMetrics());
+        }
+
+        return metrics;
+    }
+
+    /**
+     * This method will be executed in a separate thread once Thread.start() method is called on this object
+     */
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                Thread.sleep(this.interval);
+
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            System.out.println("Metrics: " + this.GetMetrics().toJSONString());
+        }
+    }
+}
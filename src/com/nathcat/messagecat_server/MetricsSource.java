@@ -0,0 +1,16 @@
+package com.nathcat.messagecat_server;
+
+import org.json.simple.JSONObject;
+
+/**
+ * A component of the server which reports metrics to the MetricsReporter
+ *
+ * @author Nathan "Nathcat" Baines
+ */
+public interface MetricsSource {
+    /**
+     * Get a snapshot of this component's metrics
+     * @return The metrics, keyed by name
+     */
+    JSONObject GetMetrics();
+}
@@ -0,0 +1,28 @@
+package com.nathcat.messagecat_server;
+
+import java.io.Serializable;
+
+/**
+ * An object sent on a multiplexed blocking connection, tagged with the stream it belongs to so that listen rule
+ * triggers can be told apart from responses to the client's requests.
+ *
+ * @author Nathan "Nathcat" Baines
+ */
+public class MultiplexedObject implements Serializable {
+    private static final long serialVersionUID = 3571029405611583224L;
+
+    /**
+     * The stream the object belongs to
+     */
+    public final FrameType type;
+
+    /**
+     * The object being sent
+     */
+    public final Object object;
+
+    public MultiplexedObject(FrameType type, Object object) {
+        this.type = type;
+        this.object = object;
+    }
+}
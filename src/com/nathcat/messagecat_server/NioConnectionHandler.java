@@ -0,0 +1,479 @@
+package com.nathcat.messagecat_server;
+
+import com.nathcat.RSA.*;
+import org.json.simple.JSONObject;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Serves a connection of the NIO transport. This handler does not run as its own thread, its channel is owned by an
+ * EventLoop which decodes incoming frames, and the frames are then processed in order on the transport's worker pool
+ * using the request handlers inherited from ConnectionHandler. Listen rule triggers are sent on the same channel as
+ * Trigger frames rather than through a second socket.
+ *
+ * Workers are shared by every connection, so they never wait for a pipelined session's in flight requests. A request
+ * which cannot be handled yet is parked instead, and the connection stops reading until it has been handled.
+ *
+ * @author Nathan "Nathcat" Baines
+ */
+public class NioConnectionHandler extends ConnectionHandler {
+    /**
+     * The channel of this connection
+     */
+    final SocketChannel channel;
+
+    /**
+     * The key of the channel in the event loop's selector, only accessed on the event loop thread
+     */
+    SelectionKey key;
+
+    /**
+     * The event loop which owns the channel
+     */
+    private final EventLoop eventLoop;
+
+    /**
+     * The worker pool which processes frames
+     */
+    private final ExecutorService workers;
+
+    /**
+     * The header of the frame currently being received
+     */
+    private final ByteBuffer header = ByteBuffer.allocate(Frame.HEADER_LENGTH);
+
+    /**
+     * The payload of the frame currently being received, null while the header is being received
+     */
+    private ByteBuffer payload;
+
+    /**
+     * Frames waiting to be written to the channel
+     */
+    private final ConcurrentLinkedQueue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Whether the event loop has been asked to flush the write queue
+     */
+    private final AtomicBoolean writeScheduled = new AtomicBoolean(false);
+
+    /**
+     * Work waiting to be run on the worker pool, run one at a time in the order it was received
+     */
+    private final ConcurrentLinkedQueue<Runnable> inbox = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Whether a worker is currently running the inbox
+     */
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+
+    /**
+     * Whether the connection has been closed
+     */
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    /**
+     * A pipelined request which could not be handled because the session had too many requests in flight, the inbox is
+     * not run until it has been handled
+     */
+    private final AtomicReference<JSONObject> parked = new AtomicReference<>();
+
+    /**
+     * Set when the inbox has stopped on the parked request, the next in flight request to finish runs it again
+     */
+    private final AtomicBoolean waiting = new AtomicBoolean(false);
+
+    /**
+     * Whether reading from the channel is paused while a request is parked
+     */
+    private volatile boolean readPaused = false;
+
+    /**
+     * Constructor method
+     * @param channel The channel of this connection, in non-blocking mode
+     * @param eventLoop The event loop which will own the channel
+     * @param workers The worker pool which will process frames
+     * @param threadNum The connection ID, used in debug messages
+     */
+    public NioConnectionHandler(SocketChannel channel, EventLoop eventLoop, ExecutorService workers, int threadNum) {
+        super(threadNum, "NioConnectionHandler");
+        this.channel = channel;
+        this.eventLoop = eventLoop;
+        this.workers = workers;
+    }
+
+    /**
+     * Begin the handshake, the channel must already have been registered with the event loop
+     */
+    public void Start() {
+        this.admitted.set(true);
+        this.triggerQueue = new TriggerQueue(this, this::Close, this.server.triggerDispatcher);
+        this.busy = true;
+        this.authenticated = false;
+        this.Enqueue(this::BeginHandshake);
+    }
+
+    /**
+     * First step of the handshake, send the server's public key to the client
+     */
+    private void BeginHandshake() {
+        try {
+            this.keyPair = this.server.keyPairs.Take();
+            this.Send(new KeyPair(this.keyPair.pub, null));
+
+        } catch (NoSuchAlgorithmException | IOException e) {
+            this.DebugLog("Handshake failed! (" + e.getMessage() + ")");
+            this.Close();
+        }
+    }
+
+    /**
+     * Handle a complete frame received from the client
+     * @param payload The frame's payload
+     */
+    private void HandleFrame(byte[] payload) {
+        if (this.closed.get()) {
+            return;
+        }
+
+        try {
+            Object received = Frame.Decode(payload);
+
+            if (this.clientKeyPair == null) {
+                // Second step of the handshake, receive the client's public key and send the connection handler identifier
+                this.Send(this.AcceptClientHello(received));
+                this.EnableFeatures();
+                this.OpenTriggers();
+            }
+            else if (this.pipelined) {
+                JSONObject request = (JSONObject) this.Decrypt(received);
+                if (request == null) {
+                    this.Close();
+                }
+                else if (this.inFlight.tryAcquire(this.InFlightPermits(request))) {
+                    this.HandlePipelined(request);
+                }
+                else {
+                    // Stop reading rather than waiting, the worker is shared with other connections
+                    this.parked.set(request);
+                    this.SetReadPaused(true);
+                }
+            }
+            else {
+                this.HandleReceived(received);
+            }
+
+        } catch (Exception e) {
+            this.DebugLog("Exception in main protocol: " + e.getMessage());
+            this.Close();
+        }
+    }
+
+    /**
+     * Read from the channel and queue any complete frames for processing. Called by the event loop.
+     * @param buffer The event loop's read buffer
+     */
+    void OnReadable(ByteBuffer buffer) {
+        buffer.clear();
+
+        try {
+            if (this.channel.read(buffer) == -1) {
+                this.Close();
+                return;
+            }
+
+        } catch (IOException e) {
+            this.Close();
+            return;
+        }
+
+        buffer.flip();
+
+        while (buffer.hasRemaining()) {
+            if (this.payload == null) {
+                while (this.header.hasRemaining() && buffer.hasRemaining()) {
+                    this.header.put(buffer.get());
+                }
+
+                if (this.header.hasRemaining()) {
+                    return;
+                }
+
+                this.header.flip();
+                int length = this.header.getInt();
+                this.header.clear();
+
+                if (length < 0 || length > Frame.MAX_PAYLOAD_LENGTH) {
+                    this.DebugLog("Invalid frame length " + length);
+                    this.Close();
+                    return;
+                }
+
+                this.payload = ByteBuffer.allocate(length);
+            }
+
+            int count = Math.min(this.payload.remaining(), buffer.remaining());
+            ByteBuffer chunk = buffer.duplicate();
+            chunk.limit(chunk.position() + count);
+            this.payload.put(chunk);
+            buffer.position(buffer.position() + count);
+
+            if (!this.payload.hasRemaining()) {
+                byte[] complete = this.payload.array();
+                this.payload = null;
+                this.Enqueue(() -> this.HandleFrame(complete));
+            }
+        }
+    }
+
+    /**
+     * Write as much of the write queue to the channel as it will accept. Called by the event loop.
+     */
+    void OnWritable() {
+        do {
+            if (this.key == null || !this.key.isValid()) {
+                return;
+            }
+
+            try {
+                ByteBuffer buffer;
+                while ((buffer = this.writeQueue.peek()) != null) {
+                    this.channel.write(buffer);
+
+                    if (buffer.hasRemaining()) {
+                        // The socket buffer is full, wait for the selector to say the channel is writable again
+                        this.key.interestOps(this.ReadInterest() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+
+                    this.writeQueue.poll();
+                }
+
+            } catch (IOException e) {
+                this.Close();
+                return;
+            }
+
+            this.key.interestOps(this.ReadInterest());
+            this.writeScheduled.set(false);
+
+        } while (!this.writeQueue.isEmpty() && this.writeScheduled.compareAndSet(false, true));
+    }
+
+    /**
+     * Queue a frame to be written to the channel by the event loop
+     * @param frame The frame to write
+     * @throws IOException Thrown if the connection has been closed
+     */
+    private void Write(ByteBuffer frame) throws IOException {
+        if (this.closed.get()) {
+            throw new IOException("Connection closed");
+        }
+
+        this.writeQueue.add(frame);
+
+        if (this.writeScheduled.compareAndSet(false, true)) {
+            this.eventLoop.Execute(this::OnWritable);
+        }
+    }
+
+    /**
+     * Run a task on the worker pool, after any tasks previously queued for this connection have finished
+     * @param task The task to run
+     */
+    private void Enqueue(Runnable task) {
+        this.inbox.add(task);
+
+        if (this.draining.compareAndSet(false, true)) {
+            this.workers.execute(this::Drain);
+        }
+    }
+
+    /**
+     * Pause or resume reading from the channel
+     * @param paused Whether reading should be paused
+     */
+    private void SetReadPaused(boolean paused) {
+        this.readPaused = paused;
+        this.eventLoop.Execute(() -> {
+            if (this.key != null && this.key.isValid()) {
+                this.key.interestOps((this.key.interestOps() & SelectionKey.OP_WRITE) | this.ReadInterest());
+            }
+        });
+    }
+
+    /**
+     * Get the interest the channel should have in reading
+     */
+    private int ReadInterest() {
+        return this.readPaused ? 0 : SelectionKey.OP_READ;
+    }
+
+    /**
+     * Run the parked request again once an in flight request has finished, if the inbox has stopped on it
+     */
+    @Override
+    protected void InFlightReleased() {
+        if (this.waiting.compareAndSet(true, false)) {
+            this.workers.execute(this::Drain);
+        }
+    }
+
+    /**
+     * Handle the parked request if the session now has room for it
+     * @return Whether there is no longer a parked request
+     */
+    private boolean TryHandleParked() {
+        JSONObject request = this.parked.get();
+        if (request == null) {
+            return true;
+        }
+
+        if (this.closed.get()) {
+            this.parked.set(null);
+            return true;
+        }
+
+        int permits = this.InFlightPermits(request);
+        if (!this.inFlight.tryAcquire(permits)) {
+            return false;
+        }
+
+        if (!this.parked.compareAndSet(request, null)) {
+            // Handled by another worker, which has been asked to run the inbox
+            this.inFlight.release(permits);
+            return true;
+        }
+
+        this.SetReadPaused(false);
+        try {
+            this.HandlePipelined(request);
+
+        } catch (Exception e) {
+            this.DebugLog("Exception in main protocol: " + e.getMessage());
+            this.Close();
+        }
+
+        return true;
+    }
+
+    /**
+     * Run the tasks in the inbox, called on the worker pool. Stops while a request is parked, leaving the inbox marked
+     * as being run so that it is only started again once the request has been handled.
+     */
+    private void Drain() {
+        while (true) {
+            if (!this.TryHandleParked()) {
+                this.waiting.set(true);
+
+                // An in flight request which finished before waiting was set did not start the inbox again
+                if (!this.TryHandleParked() || !this.waiting.compareAndSet(true, false)) {
+                    return;
+                }
+            }
+
+            Runnable task = this.inbox.poll();
+            if (task == null) {
+                break;
+            }
+
+            task.run();
+        }
+
+        this.draining.set(false);
+
+        // A task may have been added after the inbox was found to be empty
+        if (!this.inbox.isEmpty() && this.draining.compareAndSet(false, true)) {
+            this.workers.execute(this::Drain);
+        }
+    }
+
+    /**
+     * Send an object to the client as a Message frame
+     * @param obj The object to send
+     * @throws IOException Thrown if the object cannot be serialized or the connection is closed
+     */
+    @Override
+    public void Send(Object obj) throws IOException {
+        this.Write(Frame.Encode(FrameType.Message, obj));
+    }
+
+    /**
+     * Send an object to the client as a Trigger frame
+     * @param obj The object to send
+     * @throws IOException Thrown if the object cannot be serialized or the connection is closed
+     */
+    @Override
+    public void LrSend(Object obj) throws IOException {
+        this.Write(Frame.Encode(FrameType.Trigger, obj));
+    }
+
+    /**
+     * Send several objects to the client as Trigger frames, written to the channel together
+     * @param objs The objects to send, in order
+     * @throws IOException Thrown if an object cannot be serialized or the connection is closed
+     */
+    @Override
+    public void LrSendAll(List<Object> objs) throws IOException {
+        List<ByteBuffer> frames = new ArrayList<>(objs.size());
+        int length = 0;
+        for (Object obj : objs) {
+            ByteBuffer frame = Frame.Encode(FrameType.Trigger, obj);
+            frames.add(frame);
+            length += frame.remaining();
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        for (ByteBuffer frame : frames) {
+            buffer.put(frame);
+        }
+
+        buffer.flip();
+        this.Write(buffer);
+    }
+
+    /**
+     * Close the connection after a pipelined request failed, NIO handlers serve a single connection so it can be closed
+     * straight away
+     */
+    @Override
+    protected void Abort() {
+        this.Close();
+    }
+
+    /**
+     * Close the channel and end the session
+     */
+    @Override
+    public void Close() {
+        if (!this.closed.compareAndSet(false, true)) {
+            return;
+        }
+
+        this.eventLoop.Execute(() -> {
+            if (this.key != null) {
+                this.key.cancel();
+            }
+
+            try {
+                this.channel.close();
+
+            } catch (IOException e) {
+                this.DebugLog("Failed to close channel (" + e.getMessage() + ")");
+            }
+        });
+
+        this.server.connections.Unregister(this);
+        this.EndSession();
+    }
+}
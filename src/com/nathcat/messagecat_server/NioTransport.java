@@ -0,0 +1,94 @@
+package com.nathcat.messagecat_server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking transport, a small fixed number of event loops own every connection's channel and a fixed worker pool
+ * processes the requests, so the number of threads does not grow with the number of clients.
+ *
+ * @author Nathan "Nathcat" Baines
+ */
+public class NioTransport {
+    /**
+     * The server instance
+     */
+    private final Server server;
+
+    /**
+     * The event loops which connections are spread across
+     */
+    private final EventLoop[] eventLoops;
+
+    /**
+     * The worker pool which processes requests
+     */
+    private final ExecutorService workers;
+
+    /**
+     * Used to pick the event loop for the next connection
+     */
+    private final AtomicInteger nextEventLoop = new AtomicInteger(0);
+
+    /**
+     * Constructor method, starts the event loops and worker pool
+     * @param server The server instance
+     * @param eventLoopCount The number of event loop threads
+     * @param workerCount The number of worker threads
+     * @throws IOException Thrown if a selector cannot be opened
+     */
+    public NioTransport(Server server, int eventLoopCount, int workerCount) throws IOException {
+        this.server = server;
+        this.eventLoops = new EventLoop[eventLoopCount];
+
+        for (int i = 0; i < eventLoopCount; i++) {
+            this.eventLoops[i] = new EventLoop(i);
+            this.eventLoops[i].start();
+        }
+
+        AtomicInteger workerNum = new AtomicInteger(0);
+        this.workers = Executors.newFixedThreadPool(workerCount, runnable -> {
+            Thread thread = new Thread(runnable, "NioWorker-" + workerNum.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Open the server socket, backed by a channel so that accepted sockets can be handed to the event loops
+     * @param port The port to listen on
+     * @return The server socket
+     * @throws IOException Thrown if the socket cannot be opened
+     */
+    public ServerSocket OpenServerSocket(int port) throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        return serverChannel.socket();
+    }
+
+    /**
+     * Hand an accepted channel to one of the event loops and begin the handshake
+     * @param channel The accepted channel
+     * @throws IOException Thrown if the channel cannot be configured
+     */
+    public void Register(SocketChannel channel) throws IOException {
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+        EventLoop eventLoop = this.eventLoops[Math.floorMod(this.nextEventLoop.getAndIncrement(), this.eventLoops.length)];
+
+        NioConnectionHandler handler = new NioConnectionHandler(channel, eventLoop, this.workers, this.server.connections.NextID());
+        handler.server = this.server;
+        this.server.connections.Register(handler);
+
+        eventLoop.Register(handler);
+        handler.Start();
+    }
+}
@@ -0,0 +1,284 @@
+package com.nathcat.messagecat_server;
+
+import org.json.simple.JSONObject;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses encoded payloads with DEFLATE for connections which agreed the "deflate" feature during the handshake.
+ * Only payloads of at least the threshold size are compressed, smaller ones are cheaper to send as they are.
+ *
+ * A payload is laid out as
+ * <pre>
+ *     byte flag           - STORED or DEFLATED
+ *     int length          - only if DEFLATED, the length of the original payload
+ *     byte[] data         - the original payload if STORED, or the zlib stream if DEFLATED
+ * </pre>
+ *
+ * @author Nathan "Nathcat" Baines
+ */
+public class PayloadCompressor implements MetricsSource {
+    public static final byte STORED = 0;
+    public static final byte DEFLATED = 1;
+
+    /**
+     * The metrics group of listen rule triggers, responses are grouped by the type of the request they answer
+     */
+    public static final String TRIGGERS = "Trigger";
+
+    /**
+     * The metrics group of payloads which are neither responses nor triggers
+     */
+    public static final String OTHER = "Other";
+
+    /**
+     * The largest payload which will be decompressed, so that a small payload cannot expand to exhaust the memory
+     */
+    public static final int MAX_LENGTH = 16 * 1024 * 1024;
+
+    /**
+     * Output buffers larger than this are not kept for reuse
+     */
+    private static final int MAX_BUFFER_LENGTH = 1024 * 1024;
+
+    private static final int HEADER_LENGTH = 5;
+
+    /**
+     * A deflater and its output buffer
+     */
+    private static class Compression {
+        final Deflater deflater;
+        byte[] buffer = new byte[8192];
+
+        Compression(int level) {
+            this.deflater = new Deflater(level);
+        }
+    }
+
+    /**
+     * Deflaters, inflaters and their output buffers are reused, as creating them allocates native memory. The pools are
+     * bounded rather than kept by each thread, since with a thread per connection every connection would otherwise
+     * keep its own until it is collected. One taken while the pool is empty is created, and ended if the pool is full
+     * when it is returned.
+     */
+    private final BlockingQueue<Compression> deflaters;
+    private final BlockingQueue<Inflater> inflaters;
+
+    private final int threshold;
+    private final int level;
+
+    // Metrics
+    private final Map<String, TypeMetrics> types = new ConcurrentHashMap<>();
+    private final LongAdder decompressed = new LongAdder();
+    private final LongAdder decompressNanos = new LongAdder();
+
+    /**
+     * Compression metrics for one group of payloads
+     */
+    private static class TypeMetrics {
+        final LongAdder compressed = new LongAdder();
+        final LongAdder incompressible = new LongAdder();
+        final LongAdder skipped = new LongAdder();
+        final LongAdder bytesIn = new LongAdder();
+        final LongAdder bytesOut = new LongAdder();
+        final LongAdder nanos = new LongAdder();
+    }
+
+    /**
+     * Constructor method
+     * @param threshold The smallest payload, in bytes, which is compressed
+     * @param level The DEFLATE compression level, from 1 (fastest) to 9 (smallest)
+     * @param poolSize The most deflaters and inflaters kept for reuse, about the number of threads which compress at once
+     */
+    public PayloadCompressor(int threshold, int level, int poolSize) {
+        this.threshold = threshold;
+        this.level = level;
+        this.deflaters = new ArrayBlockingQueue<>(poolSize);
+        this.inflaters = new ArrayBlockingQueue<>(poolSize);
+    }
+
+    /**
+     * Compress an encoded payload if it is large enough
+     * @param payload The encoded payload
+     * @param group What the payload is, the name of the type of request it answers, TRIGGERS or OTHER, used to group
+     *              the metrics
+     * @return The payload, prefixed with the header
+     */
+    public byte[] Compress(byte[] payload, String group) {
+        TypeMetrics metrics = this.types.computeIfAbsent(group, g -> new TypeMetrics());
+
+        if (payload.length < this.threshold) {
+            metrics.skipped.increment();
+            return Stored(payload);
+        }
+
+        long start = System.nanoTime();
+
+        Compression compression = this.deflaters.poll();
+        if (compression == null) {
+            compression = new Compression(this.level);
+        }
+
+        byte[] result;
+        try {
+            Deflater deflater = compression.deflater;
+            deflater.reset();
+            deflater.setInput(payload);
+            deflater.finish();
+
+            // Compressing is only worth it if the result is smaller, so the output is limited to the size of the payload
+            byte[] buffer = Buffer(compression, HEADER_LENGTH + payload.length);
+            int length = HEADER_LENGTH;
+            while (!deflater.finished() && length < HEADER_LENGTH + payload.length) {
+                length += deflater.deflate(buffer, length, HEADER_LENGTH + payload.length - length);
+            }
+
+            if (deflater.finished() && length < HEADER_LENGTH + payload.length) {
+                buffer[0] = DEFLATED;
+                buffer[1] = (byte) (payload.length >>> 24);
+                buffer[2] = (byte) (payload.length >>> 16);
+                buffer[3] = (byte) (payload.length >>> 8);
+                buffer[4] = (byte) payload.length;
+                result = Arrays.copyOf(buffer, length);
+                metrics.compressed.increment();
+
+            } else {
+                result = Stored(payload);
+                metrics.incompressible.increment();
+            }
+
+        } finally {
+            if (!this.deflaters.offer(compression)) {
+                compression.deflater.end();
+            }
+        }
+
+        metrics.nanos.add(System.nanoTime() - start);
+        metrics.bytesIn.add(payload.length);
+        metrics.bytesOut.add(result.length);
+        return result;
+    }
+
+    /**
+     * Recover an encoded payload created by Compress
+     * @param payload The payload, including the header
+     * @return The encoded payload
+     * @throws IOException Thrown if the payload is malformed
+     */
+    public byte[] Decompress(byte[] payload) throws IOException {
+        if (payload.length == 0) {
+            throw new IOException("Empty payload");
+        }
+
+        if (payload[0] == STORED) {
+            return Arrays.copyOfRange(payload, 1, payload.length);
+        }
+
+        if (payload[0] != DEFLATED || payload.length < HEADER_LENGTH) {
+            throw new IOException("Malformed payload header");
+        }
+
+        int length = ((payload[1] & 0xff) << 24) | ((payload[2] & 0xff) << 16) | ((payload[3] & 0xff) << 8) | (payload[4] & 0xff);
+        if (length < 0 || length > MAX_LENGTH) {
+            throw new IOException("Invalid payload length " + length);
+        }
+
+        long start = System.nanoTime();
+
+        Inflater inflater = this.inflaters.poll();
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+
+        byte[] result = new byte[length];
+        int inflated = 0;
+        try {
+            inflater.reset();
+            inflater.setInput(payload, HEADER_LENGTH, payload.length - HEADER_LENGTH);
+
+            while (inflated < length) {
+                int n = inflater.inflate(result, inflated, length - inflated);
+                if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+
+                inflated += n;
+            }
+
+            if (inflated != length || !inflater.finished()) {
+                throw new IOException("Compressed payload does not match its length");
+            }
+
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed payload", e);
+
+        } finally {
+            if (!this.inflaters.offer(inflater)) {
+                inflater.end();
+            }
+        }
+
+        this.decompressed.increment();
+        this.decompressNanos.add(System.nanoTime() - start);
+        return result;
+    }
+
+    private static byte[] Stored(byte[] payload) {
+        byte[] result = new byte[payload.length + 1];
+        result[0] = STORED;
+        System.arraycopy(payload, 0, result, 1, payload.length);
+        return result;
+    }
+
+    /**
+     * Get a deflater's output buffer, grown to at least the given length
+     */
+    private static byte[] Buffer(Compression compression, int length) {
+        byte[] buffer = compression.buffer;
+        if (buffer.length < length) {
+            buffer = new byte[Math.max(length, buffer.length * 2)];
+            if (buffer.length <= MAX_BUFFER_LENGTH) {
+                compression.buffer = buffer;
+            }
+        }
+
+        return buffer;
+    }
+
+    @Override
+    public JSONObject GetMetrics() {
+        JSONObject metrics = new JSONObject();
+        metrics.put("threshold", this.threshold);
+
+        JSONObject types = new JSONObject();
+        for (Map.Entry<String, TypeMetrics> entry : this.types.entrySet()) {
+            TypeMetrics type = entry.getValue();
+            long bytesIn = type.bytesIn.sum();
+            long attempts = type.compressed.sum() + type.incompressible.sum();
+
+            JSONObject typeMetrics = new JSONObject();
+            typeMetrics.put("compressed", type.compressed.sum());
+            typeMetrics.put("incompressible", type.incompressible.sum());
+            typeMetrics.put("skipped", type.skipped.sum());
+            typeMetrics.put("ratio", bytesIn == 0 ? 1.0 : type.bytesOut.sum() / (double) bytesIn);
+            typeMetrics.put("averageCompressNanos", attempts == 0 ? 0 : type.nanos.sum() / attempts);
+            types.put(entry.getKey(), typeMetrics);
+        }
+
+        metrics.put("types", types);
+
+        long decompressed = this.decompressed.sum();
+        metrics.put("decompressed", decompressed);
+        metrics.put("averageDecompressNanos", decompressed == 0 ? 0 : this.decompressNanos.sum() / decompressed);
+        return metrics;
+    }
+}
@@ -1,22 +1,46 @@
 package com.nathcat.messagecat_server;
 
-import java.io.Serializable;
-import java.util.Arrays;
+import java.io.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
- * Queue data structure implemented using an internal linked list
+ * Bounded queue data structure implemented using a lock-free ring buffer. Any number of threads may push and pop
+ * concurrently, and both operations are O(1).
+ *
+ * Each slot of the ring has a sequence number which says whether the slot is ready to be written or read at a given
+ * position, so a thread claims a position with a single compare-and-set and the sequence number publishes the data
+ * to other threads.
  *
  * @author Nathan "Nathcat" Baines
  */
 public class Queue implements Cloneable, Serializable {
-    private Node startNode = null;  // The start node of the linked list
-    private int maxLength = -1;     // The maximum length of the queue
-    private int length = 0;         // The current length of the queue
+    // Queues are stored in MessageStore.bin, so the serialized form is kept the same as the old linked list queue
+    private static final long serialVersionUID = 1559842845157375625L;
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("startNode", Node.class),
+            new ObjectStreamField("maxLength", int.class),
+            new ObjectStreamField("length", int.class)
+    };
+
+    /**
+     * The capacity used when no capacity is given
+     */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private int capacity;                          // The maximum length of the queue
+    private AtomicReferenceArray<Object> buffer;   // The slots of the ring
+    private AtomicLongArray sequences;             // The sequence number of each slot
+    private AtomicLong head;                       // The position of the front of the queue
+    private AtomicLong tail;                       // The position after the back of the queue
 
     /**
-     * Represents a node of the linked list
+     * Represents a node of the linked list used by the serialized form of the queue
      */
     private static class Node implements Cloneable, Serializable {
+        private static final long serialVersionUID = -2578089237364762618L;
+
         public final Object data;  // The data contained by the node
         public Node nextNode;      // The next node in the linked list
 
@@ -42,97 +66,176 @@ public class Queue implements Cloneable, Serializable {
         }
     }
 
-    public Queue() {}
+    public Queue() {
+        this(DEFAULT_CAPACITY);
+    }
 
     public Queue(int maxLength) {
-        this.maxLength = maxLength;
+        this.Initialise(maxLength);
     }
 
     /**
-     * Push a new object to the end of the queue
-     * @param data The object to push
+     * Create an empty ring
+     * @param capacity The maximum length of the queue
      */
-    public void Push(Object data) {
-        if (length >= maxLength && maxLength != -1) {
-            this.Pop();
+    private void Initialise(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Queue capacity must be positive");
         }
 
-        if (this.startNode == null) {
-            this.startNode = new Node(data, null);
-            length++;
-            return;
+        this.capacity = capacity;
+        this.buffer = new AtomicReferenceArray<>(capacity);
+        this.sequences = new AtomicLongArray(capacity);
+        this.head = new AtomicLong(0);
+        this.tail = new AtomicLong(0);
+
+        for (int i = 0; i < capacity; i++) {
+            this.sequences.set(i, i);
         }
+    }
+
+    /**
+     * Try to push a new object to the end of the queue
+     * @param data The object to push
+     * @return False if the queue is full
+     */
+    public boolean Offer(Object data) {
+        long position = this.tail.get();
+
+        while (true) {
+            int slot = (int) (position % this.capacity);
+            long difference = this.sequences.get(slot) - position;
+
+            if (difference == 0) {
+                // The slot is free for this position, try to claim it
+                if (this.tail.compareAndSet(position, position + 1)) {
+                    this.buffer.set(slot, data);
+                    this.sequences.set(slot, position + 1);
+                    return true;
+                }
+            }
+            else if (difference < 0) {
+                // The slot still holds the object from one lap ago
+                return false;
+            }
 
-        Node currentNode = this.startNode;
-        while (currentNode.nextNode != null) {
-            currentNode = currentNode.nextNode;
+            position = this.tail.get();
         }
+    }
 
-        currentNode.nextNode = new Node(data, null);
-        this.length++;
+    /**
+     * Push a new object to the end of the queue, removing the object at the front if the queue is full
+     * @param data The object to push
+     */
+    public void Push(Object data) {
+        while (!this.Offer(data)) {
+            this.Pop();
+        }
     }
 
     /**
      * Remove the object from the front of the queue
-     * @return The object that was at the front of the queue
+     * @return The object that was at the front of the queue, or null if the queue is empty
      */
     public Object Pop() {
-        if (this.startNode == null) {
-            return null;
-        }
+        long position = this.head.get();
+
+        while (true) {
+            int slot = (int) (position % this.capacity);
+            long difference = this.sequences.get(slot) - (position + 1);
 
-        Object data = this.startNode.data;
-        this.startNode = this.startNode.nextNode;
-        this.length--;
-        return data;
+            if (difference == 0) {
+                // The slot has been written for this position, try to claim it
+                if (this.head.compareAndSet(position, position + 1)) {
+                    Object data = this.buffer.get(slot);
+                    this.buffer.set(slot, null);
+                    this.sequences.set(slot, position + this.capacity);
+                    return data;
+                }
+            }
+            else if (difference < 0) {
+                // Nothing has been written to this position yet
+                return null;
+            }
+
+            position = this.head.get();
+        }
     }
 
     /**
      * Get an object from a given index
      * @param index The index of the object to get
-     * @return The object at the given index
+     * @return The object at the given index, or null if there is no object at that index
      */
     public Object Get(int index) {
-        Node currentNode = this.startNode;
-        if (currentNode == null) {
+        if (index < 0 || index >= this.capacity) {
             return null;
         }
 
-        for (int i = 0; i < index; i++) {
-            currentNode = currentNode.nextNode;
-            if (currentNode == null) {
-                return null;
-            }
+        long position = this.head.get() + index;
+        int slot = (int) (position % this.capacity);
+
+        if (this.sequences.get(slot) != position + 1) {
+            return null;
         }
 
-        return currentNode.data;
+        Object data = this.buffer.get(slot);
+
+        // Make sure the slot was not popped and reused while it was being read
+        return this.sequences.get(slot) == position + 1 ? data : null;
+    }
+
+    /**
+     * Get the number of objects in the queue
+     * @return The number of objects in the queue
+     */
+    public int Size() {
+        long size = this.tail.get() - this.head.get();
+        return (int) Math.max(0, Math.min(size, this.capacity));
+    }
+
+    /**
+     * Get the maximum number of objects the queue can hold
+     * @return The capacity of the queue
+     */
+    public int Capacity() {
+        return this.capacity;
     }
 
     @Override
     public String toString() {
-        if (this.startNode == null) {
-            return "";
-        }
-
         StringBuilder sb = new StringBuilder();
-        Node currentNode = this.startNode;
-        sb.append(this.startNode.data);
-        while (currentNode.nextNode != null) {
-            currentNode = currentNode.nextNode;
-            sb.append(currentNode.data).append(" ");
+        int size = this.Size();
+
+        for (int i = 0; i < size; i++) {
+            Object data = this.Get(i);
+            if (data != null) {
+                sb.append(data).append(" ");
+            }
         }
 
         return sb.toString();
     }
 
     /**
-     * Create an identical copy of this object
+     * Create a copy of this queue containing the same objects
      * @return The clone of this object
      */
     @Override
     public Object clone() {
         try {
-            return super.clone();
+            Queue copy = (Queue) super.clone();
+            copy.Initialise(this.capacity);
+
+            int size = this.Size();
+            for (int i = 0; i < size; i++) {
+                Object data = this.Get(i);
+                if (data != null) {
+                    copy.Offer(data);
+                }
+            }
+
+            return copy;
 
         } catch (CloneNotSupportedException e) {
             e.printStackTrace();
@@ -140,4 +243,55 @@ public class Queue implements Cloneable, Serializable {
 
         return null;
     }
+
+    /**
+     * Write the queue in the serialized form of the old linked list queue
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        Node startNode = null;
+        Node lastNode = null;
+        int length = 0;
+
+        int size = this.Size();
+        for (int i = 0; i < size; i++) {
+            Object data = this.Get(i);
+            if (data == null) {
+                continue;
+            }
+
+            Node node = new Node(data, null);
+            if (lastNode == null) {
+                startNode = node;
+            }
+            else {
+                lastNode.nextNode = node;
+            }
+
+            lastNode = node;
+            length++;
+        }
+
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("startNode", startNode);
+        fields.put("maxLength", this.capacity);
+        fields.put("length", length);
+        out.writeFields();
+    }
+
+    /**
+     * Read a queue from the serialized form of the old linked list queue, queues which were written without a maximum
+     * length are given enough capacity for their contents
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        Node startNode = (Node) fields.get("startNode", null);
+        int maxLength = fields.get("maxLength", -1);
+        int length = fields.get("length", 0);
+
+        this.Initialise(maxLength == -1 ? Math.max(DEFAULT_CAPACITY, length) : maxLength);
+
+        for (Node node = startNode; node != null; node = node.nextNode) {
+            this.Push(node.data);
+        }
+    }
 }
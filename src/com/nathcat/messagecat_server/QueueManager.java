@@ -1,88 +1,226 @@
 package com.nathcat.messagecat_server;
 
+import org.json.simple.JSONObject;
+
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
- * Handles a connection queue
+ * Handles a connection queue, handing each queued connection to an idle handler as soon as one is available.
+ * The manager also owns the handler pool, which starts with the core number of handlers, grows towards the maximum
+ * while connections are waiting and no handler is idle, and shrinks back to the core size as handlers sit idle.
  *
  * @author Nathan "Nathcat" Baines
  */
-public class QueueManager extends Thread{
+public class QueueManager extends Thread implements MetricsSource {
+    /**
+     * An object in the queue, along with the time it was submitted
+     */
+    private static class QueuedObject {
+        public final Object object;
+        public final long submitTime;
+
+        public QueuedObject(Object object) {
+            this.object = object;
+            this.submitTime = System.nanoTime();
+        }
+    }
+
     /**
      * The server instance
      */
     private final Server server;
 
     /**
-     * The queue assigned to this manager
+     * The queue assigned to this manager, this is the server's accept backlog
+     */
+    private final Queue queue;
+
+    /**
+     * Counts the objects in the queue, the manager waits on this while the queue is empty
+     */
+    private final Semaphore queued = new Semaphore(0);
+
+    /**
+     * The handlers currently in the pool
      */
-    public Queue queue;
+    private final Set<Handler> pool = ConcurrentHashMap.newKeySet();
 
     /**
-     * The handler pool assigned to this manager
+     * Handlers from the pool which are currently idle, handlers park themselves at the front of this when they finish
+     * a task. Taking from the front means the least recently used handlers collect at the back and are the ones to
+     * time out when there is less work.
      */
-    private final Handler[] pool;
+    private final BlockingDeque<Handler> freeHandlers = new LinkedBlockingDeque<>();
+
+    /**
+     * The number of handlers the pool will not shrink below
+     */
+    private final int coreSize;
+
+    /**
+     * The number of handlers the pool will not grow above
+     */
+    private final int maxSize;
+
+    /**
+     * The time in milliseconds a handler above the core size may be idle before it is removed from the pool
+     */
+    public final long idleTimeout;
+
+    // Metrics
+    private final AtomicLong assignedCount = new AtomicLong(0);
+    private final AtomicLong totalWaitTime = new AtomicLong(0);
+    private final AtomicLong maxWaitTime = new AtomicLong(0);
 
     /**
      * Constructor method
      * @param server The Server object
-     * @param queue The queue assigned to this manager
-     * @param pool The pool assigned to this manager
+     * @param coreSize The number of handlers the pool will not shrink below
+     * @param maxSize The number of handlers the pool will not grow above
+     * @param idleTimeout The time in milliseconds a handler above the core size may be idle before it is removed
+     * @param backlogCapacity The maximum number of objects which may be waiting in the queue
      */
-    public QueueManager(Server server, Queue queue, Handler[] pool) {
+    public QueueManager(Server server, int coreSize, int maxSize, long idleTimeout, int backlogCapacity) {
         this.server = server;
-        this.queue = queue;
-        this.pool = pool;
+        this.queue = new Queue(backlogCapacity);
+        this.coreSize = coreSize;
+        this.maxSize = maxSize;
+        this.idleTimeout = idleTimeout;
         // Make this thread a daemon to the program
         // This means that this thread will quit when the program quits
         this.setDaemon(true);
     }
 
     /**
-     * This method will be executed in a separate thread once Thread.start() method is called on this object
+     * Add an object to the back of the queue, the manager will be woken immediately if it is waiting
+     * @param obj The object to add
+     * @return False if the queue is full
      */
-    @Override
-    public void run() {
-        while (true) {
-            // Get the object at the front of the queue
-            Object frontObj = this.queue.Pop();
+    public boolean Submit(Object obj) {
+        if (!this.queue.Offer(new QueuedObject(obj))) {
+            return false;
+        }
 
-            // Check if the front object is null or not
-            if (frontObj == null) {
-                try {
-                    Thread.sleep(1000);
+        this.queued.release();
+        return true;
+    }
 
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
+    /**
+     * Return a handler to the free handler pool, called by the handler itself once it becomes idle
+     * @param handler The handler which is now idle
+     */
+    public void Release(Handler handler) {
+        this.freeHandlers.offerFirst(handler);
+    }
 
-                continue;
-            }
+    /**
+     * Remove an idle handler from the pool, called by the handler itself once it has been idle for the idle timeout
+     * @param handler The handler which has timed out
+     * @return True if the handler has been removed and should finish, false if it should keep waiting for a task,
+     *         either because the pool is at its core size or because it is being assigned a task
+     */
+    public synchronized boolean Retire(Handler handler) {
+        if (this.pool.size() <= this.coreSize || !this.freeHandlers.remove(handler)) {
+            return false;
+        }
 
-            // Check if any of the handlers in the queue are not busy
-            boolean threadAvailable = false;
-            for (int i = 0; i < this.pool.length; i++) {
-                // If the current handler is not busy, assign it to the front object
-                if (!this.pool[i].busy) {
-                    threadAvailable = true;
-                    this.pool[i].queueObject = frontObj;
+        this.pool.remove(handler);
+        this.server.connections.Unregister(handler);
+        return true;
+    }
 
-                    synchronized (this.pool[i]) {
-                        this.pool[i].notify();
-                    }
+    /**
+     * Create a new handler and add it to the pool, it will place itself in the free pool once it has started
+     * @return False if the pool is already at its maximum size or the handler could not be created
+     */
+    private synchronized boolean Grow() {
+        if (this.pool.size() >= this.maxSize) {
+            return false;
+        }
 
-                    break;
-                }
-            }
+        try {
+            ConnectionHandler handler = new ConnectionHandler(null, this.server.connections.NextID());
+            handler.server = this.server;
+            this.server.connections.Register(handler);
+            this.pool.add(handler);
+            handler.start();
+            return true;
 
-            // If no handler is available, push the object back into the queue
-            if (!threadAvailable) {
-                this.queue.Push(frontObj);
-            }
+        } catch (NoSuchAlgorithmException | IOException e) {
+            this.server.DebugLog("Failed to create handler! (" + e.getMessage() + ")");
+            return false;
+        }
+    }
+
+    /**
+     * Get the handlers currently in the pool
+     * @return The handlers in the pool
+     */
+    public Set<Handler> GetPool() {
+        return this.pool;
+    }
+
+    @Override
+    public JSONObject GetMetrics() {
+        long assigned = this.assignedCount.get();
+
+        JSONObject metrics = new JSONObject();
+        metrics.put("poolSize", this.pool.size());
+        metrics.put("idleHandlers", this.freeHandlers.size());
+        metrics.put("queueDepth", this.queue.Size());
+        metrics.put("assigned", assigned);
+        metrics.put("averageWaitMs", assigned == 0 ? 0.0 : this.totalWaitTime.get() / 1e6 / assigned);
+        // The maximum is reset on each report, so it covers the time since the previous report
+        metrics.put("maxWaitMs", this.maxWaitTime.getAndSet(0) / 1e6);
+        return metrics;
+    }
 
+    /**
+     * This method will be executed in a separate thread once Thread.start() method is called on this object
+     */
+    @Override
+    public void run() {
+        this.server.DebugLog("Creating handlers (" + this.coreSize + " core handlers, up to " + this.maxSize + ")");
+        for (int i = 0; i < this.coreSize; i++) {
+            this.Grow();
+        }
+
+        while (true) {
             try {
-                Thread.sleep(1000);
+                // Block until there is an object at the front of the queue
+                this.queued.acquire();
+                QueuedObject frontObj;
+                while ((frontObj = (QueuedObject) this.queue.Pop()) == null) {
+                    // Another producer has claimed the front position but not yet written to it
+                    Thread.onSpinWait();
+                }
+
+                // If no handler is idle, add one to the pool, if there is room
+                if (this.freeHandlers.isEmpty()) {
+                    this.Grow();
+                }
+
+                // Block until a handler is idle, and hand the object to it
+                boolean assigned = false;
+                while (!assigned) {
+                    assigned = this.freeHandlers.takeFirst().Assign(frontObj.object);
+                }
+
+                long waitTime = System.nanoTime() - frontObj.submitTime;
+                this.assignedCount.incrementAndGet();
+                this.totalWaitTime.addAndGet(waitTime);
+                this.maxWaitTime.accumulateAndGet(waitTime, Math::max);
 
             } catch (InterruptedException e) {
                 e.printStackTrace();
+                return;
             }
         }
     }
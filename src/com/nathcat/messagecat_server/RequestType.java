@@ -98,11 +98,12 @@ public enum RequestType {
      */
     AddChat,
     /**
-     * Register a listen rule with the server
+     * Register a listen rule with the server. Rules which match a field the data of their request type does not have
+     * are rejected.
      * {
      *     "type": AddListenRule,
      *     "data": com.nathcat.messagecat_server.ListenRule
-     * } -> int listenRuleID
+     * } -> int listenRuleID / "failed"
      */
     AddListenRule,
     /**
@@ -169,5 +170,45 @@ public enum RequestType {
      *     "keyPair": com.nathcat.RSA.KeyPair privateKey
      * } -> "done" / "failed"
      */
-    SendChatInvite
+    SendChatInvite,
+    /**
+     * Get a ticket which can be presented in the handshake to resume this session after reconnecting, only available
+     * to authenticated sessions using the "aes-gcm" feature. See "Connecting a client".
+     * {
+     *     "type": GetResumptionTicket
+     * } -> byte[] ticket / "failed"
+     */
+    GetResumptionTicket,
+    /**
+     * Handle several requests in one round trip. The requests are handled in order, except that consecutive read
+     * requests (GetUser, GetFriendship, GetFriendRequests, GetChat, GetChatInvite, GetPublicKey, GetMessageQueue,
+     * SearchUsers and ReplayTriggers) may be handled concurrently. Requests which change the session (Authenticate, AddListenRule, RemoveListenRule,
+     * GetResumptionTicket and Batch) cannot be batched and give "failed".
+     * {
+     *     "type": Batch,
+     *     "data": org.json.simple.JSONArray of requests
+     * } -> org.json.simple.JSONArray of responses, in the same order as the requests
+     */
+    Batch,
+    /**
+     * Search for users by the start of their display name, one page at a time. The page size is limited by the
+     * server, and the cursor from each page is passed in the next request to get the page after it.
+     * {
+     *     "type": SearchUsers,
+     *     "data": com.nathcat.messagecat_database_entities.User, // Contains only the display name prefix
+     *     "cursor": String, // Optional, the cursor from the previous page
+     *     "pageSize": int // Optional, the most users to return
+     * } -> org.json.simple.JSONObject {"users": User[], "cursor": String / null if this is the last page} / "failed"
+     */
+    SearchUsers,
+    /**
+     * Get the listen rule triggers the authenticated user missed, such as while reconnecting. Triggers carry the
+     * "epoch" and "offset" of the last trigger the client received. See "Making requests".
+     * {
+     *     "type": ReplayTriggers,
+     *     "epoch": long, // Optional, the epoch of the last trigger received
+     *     "offset": long // Optional, the offset of the last trigger received
+     * } -> org.json.simple.JSONObject {"epoch": long, "triggers": JSONArray, "complete": boolean} / "failed"
+     */
+    ReplayTriggers
 }
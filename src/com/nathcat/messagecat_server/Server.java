@@ -1,6 +1,9 @@
 package com.nathcat.messagecat_server;
 
+import com.nathcat.messagecat_database.ConnectionLogger;
 import com.nathcat.messagecat_database.Database;
+import com.nathcat.messagecat_database.MessageLog;
+import com.nathcat.messagecat_database.MessageStore;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
@@ -8,12 +11,17 @@ import org.json.simple.parser.ParseException;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This is Server object, it will initialise the Server and prepare the program to receive connections.
@@ -25,24 +33,98 @@ public class Server {
     private final int maxThreadCount;
 
     /**
-     * The pool of connection handlers
+     * How connections are executed, either "pool" (a fixed pool of handler threads) or "virtual" (one virtual
+     * thread per connection). Only applies to the blocking transport.
      */
-    public final Handler[] connectionHandlerPool;
+    public final String executionMode;
 
     /**
-     * The queue manager handling the incoming connections queue
+     * The transport used for connections, either "blocking" (a thread blocks on each connection's socket) or "nio"
+     * (a few event loop threads own every connection)
+     */
+    public final String transport;
+
+    /**
+     * The queue manager handling the incoming connections queue and the pool of connection handlers, this is null
+     * unless the blocking transport is used in pool execution mode
      */
     public final QueueManager connectionHandlerQueueManager;
 
+    /**
+     * The NIO transport, this is null unless the nio transport is used
+     */
+    public final NioTransport nioTransport;
+
+    /**
+     * The handlers serving connections, keyed by connection ID
+     */
+    public final ConnectionRegistry connections = new ConnectionRegistry();
+
+    /**
+     * Thread.startVirtualThread(Runnable), or null if the runtime does not support virtual threads
+     */
+    private static final Method startVirtualThread = GetStartVirtualThread();
+
+    /**
+     * Reports the metrics of the server's components
+     */
+    public final MetricsReporter metrics;
+
+    /**
+     * Limits the number of concurrent sessions
+     */
+    public final AdmissionController admission;
+
+    /**
+     * Supplies the RSA key pairs used in handshakes
+     */
+    public final KeyPairPool keyPairs;
+
+    /**
+     * Issues and redeems session resumption tickets
+     */
+    public final TicketStore tickets;
+
+    /**
+     * Compresses large payloads for connections using the "deflate" feature
+     */
+    public final PayloadCompressor compressor;
+
+    /**
+     * Handles pipelined requests, which may run concurrently with other requests of the same session
+     */
+    public final ExecutorService requestWorkers;
+
+    /**
+     * The most pipelined requests a session may have being handled at once
+     */
+    public final int maxInFlight;
+
+    /**
+     * The most users returned in one page of a SearchUsers request
+     */
+    public final int searchPageSize;
+
+    /**
+     * Sends listen rule triggers to the clients in the background
+     */
+    public final TriggerDispatcher triggerDispatcher;
+
+    /**
+     * Shares requests which can trigger listen rules with the other servers in the cluster, or null if the server is
+     * not part of a cluster
+     */
+    public final ClusterBus cluster;
+
     /**
      * The database instance
      */
     public final Database db;
 
     /**
-     * The list of listen rules in operation on the server
+     * The listen rules in operation on the server
      */
-    public final ArrayList<ListenRule> listenRules = new ArrayList<>();
+    public final ListenRuleIndex listenRules = new ListenRuleIndex();
 
     /**
      * Main entry point for the application
@@ -56,7 +138,7 @@ public class Server {
 
         // Attempt to open the server socket
         try {
-            serverSocket = new ServerSocket(server.port);
+            serverSocket = server.nioTransport != null ? server.nioTransport.OpenServerSocket(server.port) : new ServerSocket(server.port);
 
         } catch (IOException e) {
             server.DebugLog("Failed to create server socket! (" + e.getMessage() + ")");
@@ -65,6 +147,16 @@ public class Server {
 
         assert serverSocket != null;
 
+        if (server.cluster != null) {
+            try {
+                server.cluster.Start();
+
+            } catch (IOException e) {
+                server.DebugLog("Failed to start cluster bus! (" + e.getMessage() + ")");
+                System.exit(1);
+            }
+        }
+
         // Add a shutdown hook so that the server socket is correctly closed when the program is terminated
         Runtime.getRuntime().addShutdownHook(new ShutdownProcess(serverSocket, server));
 
@@ -77,10 +169,20 @@ public class Server {
                 clientSocket = serverSocket.accept();
                 server.DebugLog("Received connection: " + clientSocket.getInetAddress().toString());
 
+                // Turn the connection away straight away if the server is already at its session limit
+                if (!server.admission.TryAdmit()) {
+                    server.DebugLog("Server is busy, rejecting connection: " + clientSocket.getInetAddress().toString());
+                    server.admission.Reject(clientSocket, server.nioTransport != null);
+                    continue;
+                }
+
                 server.db.AddConnection(clientSocket.getInetAddress().toString(), new Date().toString());
 
-                // Push the connection to the queue
-                server.connectionHandlerQueueManager.queue.Push(new CloneableObject(clientSocket));
+                if (!server.Dispatch(clientSocket)) {
+                    server.DebugLog("Connection could not be queued, rejecting connection: " + clientSocket.getInetAddress().toString());
+                    server.admission.Release();
+                    server.admission.Reject(clientSocket, server.nioTransport != null);
+                }
 
             } catch (IOException e) {
                 server.DebugLog("An error occurred when accepting a connection: " + e.getMessage());
@@ -100,37 +202,259 @@ public class Server {
         // Define the constant fields
         this.port = Integer.parseInt((String) config.get("port"));
         this.maxThreadCount = Integer.parseInt((String) config.get("maxThreadCount"));
+        this.executionMode = config.containsKey("executionMode") ? (String) config.get("executionMode") : "pool";
+        this.transport = config.containsKey("transport") ? (String) config.get("transport") : "blocking";
 
-        this.DebugLog("Starting database");
-        this.db = new Database();
+        long metricsInterval = config.containsKey("metricsInterval") ? Long.parseLong((String) config.get("metricsInterval")) : 0;
+        this.metrics = new MetricsReporter(metricsInterval);
+
+        int maxSessions = config.containsKey("maxSessions") ? Integer.parseInt((String) config.get("maxSessions")) : Integer.MAX_VALUE;
+        long retryAfter = config.containsKey("retryAfter") ? Long.parseLong((String) config.get("retryAfter")) : 1000;
+        this.admission = new AdmissionController(maxSessions, retryAfter);
+        this.metrics.Add("admission", this.admission);
+
+        int keyPoolSize = config.containsKey("keyPoolSize") ? Integer.parseInt((String) config.get("keyPoolSize")) : 64;
+        int keyPoolThreads = config.containsKey("keyPoolThreads") ? Integer.parseInt((String) config.get("keyPoolThreads")) : 1;
+        this.keyPairs = new KeyPairPool(keyPoolSize, keyPoolThreads);
+        this.metrics.Add("keyPairPool", this.keyPairs);
+
+        long ticketLifetime = config.containsKey("ticketLifetime") ? Long.parseLong((String) config.get("ticketLifetime")) : 86400000;
+        TicketStore tickets = null;
+        try {
+            tickets = new TicketStore(ticketLifetime, this.listenRules);
+
+        } catch (NoSuchAlgorithmException e) {
+            this.DebugLog("Failed to create ticket key! (" + e.getMessage() + ")");
+            System.exit(1);
+        }
+
+        this.tickets = tickets;
+        this.metrics.Add("tickets", this.tickets);
 
-        this.DebugLog("Creating thread pools");
+        int requestWorkerThreads = config.containsKey("requestWorkerThreads") ? Integer.parseInt((String) config.get("requestWorkerThreads")) : 32;
 
-        // Create the thread pools
-        connectionHandlerPool = new Handler[this.maxThreadCount];
+        // Compression runs on the connection handlers and the request workers, so a deflater is kept for each of them
+        int compressionThreshold = config.containsKey("compressionThreshold") ? Integer.parseInt((String) config.get("compressionThreshold")) : 1024;
+        int compressionLevel = config.containsKey("compressionLevel") ? Integer.parseInt((String) config.get("compressionLevel")) : 1;
+        this.compressor = new PayloadCompressor(compressionThreshold, compressionLevel, this.maxThreadCount + requestWorkerThreads);
+        this.metrics.Add("compression", this.compressor);
 
-        this.DebugLog("Creating handlers (" + this.maxThreadCount + " handlers to create)");
-        // Populate the thread pools with handlers
-        for (int i = 0; i < this.maxThreadCount; i++) {
+        this.maxInFlight = config.containsKey("maxInFlight") ? Integer.parseInt((String) config.get("maxInFlight")) : 16;
+
+        AtomicInteger requestWorkerNum = new AtomicInteger(0);
+        this.requestWorkers = Executors.newFixedThreadPool(requestWorkerThreads, runnable -> {
+            Thread thread = new Thread(runnable, "RequestWorker-" + requestWorkerNum.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        this.searchPageSize = config.containsKey("searchPageSize") ? Integer.parseInt((String) config.get("searchPageSize")) : 50;
+
+        int triggerQueueCapacity = config.containsKey("triggerQueueCapacity") ? Integer.parseInt((String) config.get("triggerQueueCapacity")) : 256;
+        TriggerDispatcher.OverflowPolicy triggerOverflowPolicy = config.containsKey("triggerOverflowPolicy") ? TriggerDispatcher.ParsePolicy((String) config.get("triggerOverflowPolicy")) : TriggerDispatcher.OverflowPolicy.DropOldest;
+        int triggerBatchSize = config.containsKey("triggerBatchSize") ? Integer.parseInt((String) config.get("triggerBatchSize")) : 32;
+        long triggerBatchWindow = config.containsKey("triggerBatchWindow") ? Long.parseLong((String) config.get("triggerBatchWindow")) : 0;
+        int triggerWriterThreads = config.containsKey("triggerWriterThreads") ? Integer.parseInt((String) config.get("triggerWriterThreads")) : 8;
+
+        int triggerLogCapacity = config.containsKey("triggerLogCapacity") ? Integer.parseInt((String) config.get("triggerLogCapacity")) : 1000;
+        long triggerLogRetention = config.containsKey("triggerLogRetention") ? Long.parseLong((String) config.get("triggerLogRetention")) : 3600000;
+        TriggerLog triggerLog = triggerLogCapacity > 0 ? new TriggerLog(triggerLogCapacity, triggerLogRetention) : null;
+        if (triggerLog != null) {
+            this.metrics.Add("triggerLog", triggerLog);
+        }
+
+        this.triggerDispatcher = new TriggerDispatcher(triggerQueueCapacity, triggerOverflowPolicy, triggerBatchSize, triggerBatchWindow, triggerLog, triggerWriterThreads);
+        this.metrics.Add("triggers", this.triggerDispatcher);
+
+        if (config.containsKey("clusterPort")) {
+            int clusterPort = Integer.parseInt((String) config.get("clusterPort"));
+            List<String> clusterPeers = new ArrayList<>();
+            if (config.containsKey("clusterPeers")) {
+                for (String peer : ((String) config.get("clusterPeers")).split(",")) {
+                    if (!peer.isBlank()) {
+                        clusterPeers.add(peer.strip());
+                    }
+                }
+            }
+
+            if (!config.containsKey("clusterSecret")) {
+                this.DebugLog("clusterSecret must be set when clusterPort is!");
+                System.exit(1);
+            }
+
+            String clusterSecret = (String) config.get("clusterSecret");
+            String clusterBindAddress = config.containsKey("clusterBindAddress") ? (String) config.get("clusterBindAddress") : "127.0.0.1";
+            int clusterQueueCapacity = config.containsKey("clusterQueueCapacity") ? Integer.parseInt((String) config.get("clusterQueueCapacity")) : 10000;
+            long clusterSummaryInterval = config.containsKey("clusterSummaryInterval") ? Long.parseLong((String) config.get("clusterSummaryInterval")) : 100;
+            this.cluster = new ClusterBus(this.listenRules, this.triggerDispatcher, clusterPort, clusterBindAddress, clusterSecret, clusterPeers, clusterQueueCapacity, clusterSummaryInterval);
+            this.metrics.Add("cluster", this.cluster);
+        }
+        else {
+            this.cluster = null;
+        }
+
+        int connectionLogCapacity = config.containsKey("connectionLogCapacity") ? Integer.parseInt((String) config.get("connectionLogCapacity")) : 10000;
+        int connectionLogBatchSize = config.containsKey("connectionLogBatchSize") ? Integer.parseInt((String) config.get("connectionLogBatchSize")) : 100;
+        long connectionLogInterval = config.containsKey("connectionLogInterval") ? Long.parseLong((String) config.get("connectionLogInterval")) : 1000;
+        int messageSnapshotInterval = config.containsKey("messageSnapshotInterval") ? Integer.parseInt((String) config.get("messageSnapshotInterval")) : MessageStore.DEFAULT_SNAPSHOT_INTERVAL;
+        MessageLog.Durability messageDurability = config.containsKey("messageDurability") ? MessageLog.ParseDurability((String) config.get("messageDurability")) : MessageLog.Durability.Group;
+        int messageGroupCommitSize = config.containsKey("messageGroupCommitSize") ? Integer.parseInt((String) config.get("messageGroupCommitSize")) : MessageLog.DEFAULT_GROUP_COMMIT_SIZE;
+        long messageGroupCommitWindow = config.containsKey("messageGroupCommitWindow") ? Long.parseLong((String) config.get("messageGroupCommitWindow")) : MessageLog.DEFAULT_GROUP_COMMIT_WINDOW;
+
+        this.DebugLog("Starting database");
+        this.db = new Database(connectionLogCapacity, connectionLogBatchSize, connectionLogInterval, messageSnapshotInterval, messageDurability, messageGroupCommitSize, messageGroupCommitWindow);
+
+        ConnectionLogger connectionLogger = this.db.GetConnectionLogger();
+        this.metrics.Add("connectionLog", () -> {
+            JSONObject metrics = new JSONObject();
+            metrics.put("pending", connectionLogger.GetPending());
+            metrics.put("written", connectionLogger.GetWritten());
+            metrics.put("dropped", connectionLogger.GetDropped());
+            metrics.put("failed", connectionLogger.GetFailed());
+            return metrics;
+        });
+
+        MessageStore messageStore = this.db.GetMessageStore();
+        this.metrics.Add("messageStore", () -> {
+            MessageLog log = messageStore.GetLog();
+            long syncs = log.GetSyncs();
+
+            JSONObject metrics = new JSONObject();
+            metrics.put("durability", log.durability.toString());
+            metrics.put("writes", messageStore.GetWrites());
+            metrics.put("failedWrites", messageStore.GetFailedWrites());
+            metrics.put("meanWriteLatencyMicros", messageStore.GetMeanWriteLatency());
+            metrics.put("maxWriteLatencyMicros", messageStore.GetMaxWriteLatency());
+            metrics.put("syncs", syncs);
+            metrics.put("failedSyncs", log.GetFailedSyncs());
+            metrics.put("meanBatchSize", syncs == 0 ? 0 : (double) log.GetSyncedRecords() / syncs);
+            metrics.put("maxBatchSize", log.GetMaxBatchSize());
+            return metrics;
+        });
+
+        if (this.transport.contentEquals("nio")) {
+            // Connections are owned by the event loops, so there is no pool or queue
+            connectionHandlerQueueManager = null;
+
+            int eventLoopThreads = config.containsKey("eventLoopThreads") ? Integer.parseInt((String) config.get("eventLoopThreads")) : Runtime.getRuntime().availableProcessors();
+            int workerThreads = config.containsKey("workerThreads") ? Integer.parseInt((String) config.get("workerThreads")) : this.maxThreadCount;
+
+            this.DebugLog("Starting NIO transport (" + eventLoopThreads + " event loops, " + workerThreads + " workers)");
+            NioTransport nioTransport = null;
             try {
-                connectionHandlerPool[i] = new ConnectionHandler(null, i);
-                connectionHandlerPool[i].server = this;
-                connectionHandlerPool[i].start();
+                nioTransport = new NioTransport(this, eventLoopThreads, workerThreads);
 
-            } catch (NoSuchAlgorithmException | IOException e) {
-                this.DebugLog("Failed to create handler pools! (" + e.getMessage() + ")");
+            } catch (IOException e) {
+                this.DebugLog("Failed to start NIO transport! (" + e.getMessage() + ")");
                 System.exit(1);
             }
+
+            this.nioTransport = nioTransport;
+        }
+        else if (this.executionMode.contentEquals("virtual")) {
+            // Handlers are created as connections arrive, so there is no pool or queue
+            connectionHandlerQueueManager = null;
+            this.nioTransport = null;
+
+            if (startVirtualThread == null) {
+                this.DebugLog("Virtual threads are not supported by this runtime, using one platform thread per connection");
+            }
+        }
+        else {
+            this.nioTransport = null;
+
+            int coreThreadCount = config.containsKey("coreThreadCount") ? Integer.parseInt((String) config.get("coreThreadCount")) : this.maxThreadCount;
+            long idleTimeout = config.containsKey("idleTimeout") ? Long.parseLong((String) config.get("idleTimeout")) : 60000;
+            int maxBacklog = config.containsKey("maxBacklog") ? Integer.parseInt((String) config.get("maxBacklog")) : Queue.DEFAULT_CAPACITY;
+
+            this.DebugLog("Starting queue managers");
+            // Start the queue managers, the connection handler queue manager creates and owns the handler pool
+            connectionHandlerQueueManager = new QueueManager(this, coreThreadCount, this.maxThreadCount, idleTimeout, maxBacklog);
+            connectionHandlerQueueManager.start();
+            this.metrics.Add("connectionHandlerPool", connectionHandlerQueueManager);
         }
 
-        this.DebugLog("Starting queue managers");
-        // Start the queue managers
-        connectionHandlerQueueManager = new QueueManager(this, new Queue(), this.connectionHandlerPool);
-        connectionHandlerQueueManager.start();
+        if (metricsInterval > 0) {
+            this.metrics.start();
+        }
 
         this.DebugLog("Initial setup complete");
     }
 
+    /**
+     * Hand an accepted connection to whatever will serve it, according to the transport and execution mode
+     * @param socket The connection socket
+     * @return False if the connection could not be handed over, e.g. because the backlog is full
+     */
+    private boolean Dispatch(Socket socket) {
+        if (this.nioTransport != null) {
+            // Hand the connection's channel to the event loops
+            try {
+                this.nioTransport.Register(socket.getChannel());
+                return true;
+
+            } catch (IOException e) {
+                this.DebugLog("Failed to register channel! (" + e.getMessage() + ")");
+                return false;
+            }
+        }
+        else if (this.executionMode.contentEquals("virtual")) {
+            // Give the connection its own handler
+            return this.StartConnectionThread(socket);
+        }
+        else {
+            // Push the connection to the queue
+            return this.connectionHandlerQueueManager.Submit(new CloneableObject(socket));
+        }
+    }
+
+    /**
+     * Create a handler for a single connection and run it on its own virtual thread (virtual execution mode only)
+     * @param socket The connection socket
+     * @return False if the handler could not be created
+     */
+    private boolean StartConnectionThread(Socket socket) {
+        ConnectionHandler handler;
+        try {
+            handler = new ConnectionHandler(socket, this.connections.NextID());
+            handler.server = this;
+
+        } catch (NoSuchAlgorithmException | IOException e) {
+            this.DebugLog("Failed to create connection handler! (" + e.getMessage() + ")");
+            return false;
+        }
+
+        this.connections.Register(handler);
+
+        if (startVirtualThread == null) {
+            handler.start();
+            return true;
+        }
+
+        try {
+            startVirtualThread.invoke(null, handler);
+
+        } catch (ReflectiveOperationException e) {
+            this.DebugLog("Failed to start virtual thread, using a platform thread (" + e.getMessage() + ")");
+            handler.start();
+        }
+
+        return true;
+    }
+
+    /**
+     * Find Thread.startVirtualThread(Runnable), which only exists on Java 21 and later
+     * @return The method, or null if it is not available
+     */
+    private static Method GetStartVirtualThread() {
+        try {
+            return Thread.class.getMethod("startVirtualThread", Runnable.class);
+
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
     /**
      * Get the server config file located at Assets/Server_Config.json
      * @return A JSON object parsed from the file's contents
@@ -185,17 +509,25 @@ class ShutdownProcess extends Thread {
     public void run() {
         try {
             //this.s.DebugLog(this.s.authenticationHandlerQueueManager.queue.toString());
-            this.s.DebugLog(this.s.connectionHandlerQueueManager.queue.toString());
+            this.s.DebugLog(this.s.metrics.GetMetrics().toJSONString());
+
+            // Write the connection records which have not been written yet
+            this.s.db.GetConnectionLogger().Flush();
+
+            // Write a snapshot of the message store so its log does not have to be replayed on the next start
+            this.s.db.SaveKeyAndMessageStore();
             //this.s.DebugLog(this.s.requestHandlerQueueManager.queue.toString());
 
             //for (Handler h : this.s.authenticationHandlerPool) {
             //    System.out.print(h.busy + " ");
             //}
             //System.out.println();
-            for (Handler h : this.s.connectionHandlerPool) {
-                System.out.print(h.busy + " ");
+            if (this.s.connectionHandlerQueueManager != null) {
+                for (Handler h : this.s.connectionHandlerQueueManager.GetPool()) {
+                    System.out.print(h.busy + " ");
+                }
+                System.out.println();
             }
-            System.out.println();
             //for (Handler h : this.s.requestHandlerPool) {
             //    System.out.print(h.busy + " ");
             //}
@@ -0,0 +1,139 @@
+package com.nathcat.messagecat_server;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * Symmetric AES-GCM cipher for a single session. The session key is sent to the client during the handshake,
+ * encrypted with the client's RSA public key, and every object after the handshake is then encrypted with this cipher
+ * instead of RSA.
+ *
+ * A sealed object is laid out as
+ * <pre>
+ *     byte[12] iv         - a random nonce, never reused with the same key
+ *     byte[] ciphertext   - the serialized object encrypted with AES-GCM, followed by the 16 byte authentication tag
+ * </pre>
+ *
+ * @author Nathan "Nathcat" Baines
+ */
+public class SessionCipher {
+    public static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    public static final int KEY_LENGTH = 256;   // Bits
+    public static final int IV_LENGTH = 12;     // Bytes
+    public static final int TAG_LENGTH = 128;   // Bits
+
+    private static final SecureRandom random = new SecureRandom();
+
+    /**
+     * Cipher instances are not thread safe and are expensive to create, so each thread keeps its own and initialises it
+     * for every object
+     */
+    private static final ThreadLocal<Cipher> ciphers = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance(TRANSFORMATION);
+
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES-GCM is not available", e);
+        }
+    });
+
+    private final SecretKey key;
+
+    /**
+     * Create a cipher from an existing key
+     * @param key The raw AES key
+     */
+    public SessionCipher(byte[] key) {
+        this.key = new SecretKeySpec(key, "AES");
+    }
+
+    /**
+     * Create a cipher with a new random key
+     * @return The new cipher
+     * @throws NoSuchAlgorithmException Thrown if AES is not available
+     */
+    public static SessionCipher Generate() throws NoSuchAlgorithmException {
+        KeyGenerator generator = KeyGenerator.getInstance("AES");
+        generator.init(KEY_LENGTH, random);
+        return new SessionCipher(generator.generateKey().getEncoded());
+    }
+
+    /**
+     * Get the raw key, to be sent to the client
+     * @return The raw AES key
+     */
+    public byte[] GetKey() {
+        return this.key.getEncoded();
+    }
+
+    /**
+     * Serialize and encrypt an object
+     * @param obj The object to encrypt
+     * @return The sealed object
+     * @throws IOException Thrown if the object cannot be serialized
+     * @throws GeneralSecurityException Thrown if the object cannot be encrypted
+     */
+    public byte[] Seal(Object obj) throws IOException, GeneralSecurityException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bytes);
+        oos.writeObject(obj);
+        oos.close();
+
+        return this.SealBytes(bytes.toByteArray());
+    }
+
+    /**
+     * Encrypt bytes which have already been encoded, e.g. by the WireCodec
+     * @param plain The bytes to encrypt
+     * @return The sealed bytes
+     * @throws GeneralSecurityException Thrown if the bytes cannot be encrypted
+     */
+    public byte[] SealBytes(byte[] plain) throws GeneralSecurityException {
+        byte[] iv = new byte[IV_LENGTH];
+        random.nextBytes(iv);
+
+        Cipher cipher = ciphers.get();
+        cipher.init(Cipher.ENCRYPT_MODE, this.key, new GCMParameterSpec(TAG_LENGTH, iv));
+
+        byte[] sealed = new byte[IV_LENGTH + cipher.getOutputSize(plain.length)];
+        System.arraycopy(iv, 0, sealed, 0, IV_LENGTH);
+        cipher.doFinal(plain, 0, plain.length, sealed, IV_LENGTH);
+        return sealed;
+    }
+
+    /**
+     * Decrypt and deserialize an object
+     * @param sealed The sealed object
+     * @return The object
+     * @throws IOException Thrown if the decrypted object cannot be deserialized
+     * @throws ClassNotFoundException Thrown if the serialized class cannot be found
+     * @throws GeneralSecurityException Thrown if the object cannot be decrypted, or has been tampered with
+     */
+    public Object Open(byte[] sealed) throws IOException, ClassNotFoundException, GeneralSecurityException {
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(this.OpenBytes(sealed)));
+        return ois.readObject();
+    }
+
+    /**
+     * Decrypt sealed bytes without decoding them
+     * @param sealed The sealed bytes
+     * @return The decrypted bytes
+     * @throws GeneralSecurityException Thrown if the bytes cannot be decrypted, or have been tampered with
+     */
+    public byte[] OpenBytes(byte[] sealed) throws GeneralSecurityException {
+        if (sealed.length < IV_LENGTH) {
+            throw new GeneralSecurityException("Sealed object is too short");
+        }
+
+        Cipher cipher = ciphers.get();
+        cipher.init(Cipher.DECRYPT_MODE, this.key, new GCMParameterSpec(TAG_LENGTH, sealed, 0, IV_LENGTH));
+        return cipher.doFinal(sealed, IV_LENGTH, sealed.length - IV_LENGTH);
+    }
+}
@@ -0,0 +1,88 @@
+package com.nathcat.messagecat_server;
+
+import java.io.Serializable;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * A summary of the listen rules registered on a server, which other servers in the cluster use to decide which
+ * requests are worth forwarding to it. A request matches the summary if it could trigger at least one of the rules.
+ *
+ * @author Nathan "Nathcat" Baines
+ */
+public class SubscriptionSummary implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The request types which some rule listens for regardless of the request data
+     */
+    private final Set<RequestType> any = EnumSet.noneOf(RequestType.class);
+
+    /**
+     * For each request type, the values some rule matches, by field name
+     */
+    private final Map<RequestType, Map<String, Set<Object>>> fields = new EnumMap<>(RequestType.class);
+
+    /**
+     * Record that a rule listens for every request of a type
+     * @param type The type of request
+     */
+    void AddAny(RequestType type) {
+        this.any.add(type);
+    }
+
+    /**
+     * Record that some rules listen for requests of a type whose data has one of a set of values in a field
+     * @param type The type of request
+     * @param fieldName The name of the field
+     * @param values The values
+     */
+    void AddValues(RequestType type, String fieldName, Set<Object> values) {
+        this.fields.computeIfAbsent(type, t -> new HashMap<>()).computeIfAbsent(fieldName, name -> new HashSet<>()).addAll(values);
+    }
+
+    /**
+     * Check whether a request could trigger any of the summarised rules
+     * @param type The type of the request
+     * @param data The data of the request
+     * @return Whether the request could trigger a rule
+     */
+    public boolean Matches(RequestType type, Object data) {
+        if (this.any.contains(type)) {
+            return true;
+        }
+
+        Map<String, Set<Object>> typeFields = this.fields.get(type);
+        if (typeFields == null || data == null) {
+            return false;
+        }
+
+        for (Map.Entry<String, Set<Object>> field : typeFields.entrySet()) {
+            Function<Object, Object> getter;
+            try {
+                getter = TriggerFields.Get(type, field.getKey());
+
+            } catch (NoSuchFieldException e) {
+                // Rules matching fields this server does not know of can never be triggered by it
+                continue;
+            }
+
+            Object value = getter.apply(data);
+            if (value != null && field.getValue().contains(value)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "SubscriptionSummary {any=" + this.any + ", fields=" + this.fields + "}";
+    }
+}
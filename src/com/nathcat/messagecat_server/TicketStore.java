@@ -0,0 +1,274 @@
+package com.nathcat.messagecat_server;
+
+import com.nathcat.messagecat_database_entities.User;
+import org.json.simple.JSONObject;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Issues and redeems session resumption tickets. A ticket is given to an authenticated client, and lets it reconnect
+ * without a full handshake or authentication. It is sealed with a key known only to this server instance, and
+ * contains the authenticated user and the session key, so no database lookup is needed to resume the session.
+ * The listen rules the client had registered are suspended when the session ends rather than removed, so the requests
+ * which trigger them are still added to the trigger log, until the ticket is redeemed or expires.
+ *
+ * Tickets can only be redeemed once, resuming a session issues a new ticket.
+ *
+ * @author Nathan "Nathcat" Baines
+ */
+public class TicketStore implements MetricsSource {
+    /**
+     * What the server remembers about a ticket it has issued. The hand-off of the session's listen rules, either to the
+     * suspended list as the session ends or to the session which redeems the ticket, is made while holding the entry.
+     */
+    private static class Entry {
+        /**
+         * The handler serving the session, or null once the session has ended
+         */
+        public volatile ConnectionHandler handler;
+
+        /**
+         * The listen rules registered by the session, suspended once the session has ended
+         */
+        public volatile List<ListenRule> listenRules = new ArrayList<>();
+
+        /**
+         * The time in milliseconds after which the ticket cannot be redeemed
+         */
+        public final long expiresAt;
+
+        public Entry(ConnectionHandler handler, long expiresAt) {
+            this.handler = handler;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * A session restored from a ticket
+     */
+    public static class Session {
+        public final User user;
+        public final byte[] sessionKey;
+        public final List<ListenRule> listenRules;
+
+        public Session(User user, byte[] sessionKey, List<ListenRule> listenRules) {
+            this.user = user;
+            this.sessionKey = sessionKey;
+            this.listenRules = listenRules;
+        }
+    }
+
+    private static final SecureRandom random = new SecureRandom();
+
+    /**
+     * The time in milliseconds between sweeps of expired tickets
+     */
+    private static final long SWEEP_INTERVAL = 60000;
+
+    /**
+     * Seals tickets, the key is created when the server starts so tickets do not outlive the server
+     */
+    private final SessionCipher ticketCipher;
+
+    /**
+     * The time in milliseconds a ticket may be redeemed for after it is issued
+     */
+    private final long lifetime;
+
+    /**
+     * Tickets which have been issued and not yet redeemed, by ticket ID
+     */
+    private final ConcurrentHashMap<Long, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * The server's listen rules, which the rules of suspended sessions are kept in
+     */
+    private final ListenRuleIndex listenRules;
+
+    private final AtomicLong lastSweep = new AtomicLong(System.currentTimeMillis());
+
+    // Metrics
+    private final AtomicLong issued = new AtomicLong(0);
+    private final AtomicLong resumed = new AtomicLong(0);
+    private final AtomicLong rejected = new AtomicLong(0);
+
+    /**
+     * Constructor method
+     * @param lifetime The time in milliseconds a ticket may be redeemed for after it is issued
+     * @param listenRules The server's listen rules
+     * @throws NoSuchAlgorithmException Thrown if the ticket key cannot be created
+     */
+    public TicketStore(long lifetime, ListenRuleIndex listenRules) throws NoSuchAlgorithmException {
+        this.ticketCipher = SessionCipher.Generate();
+        this.lifetime = lifetime;
+        this.listenRules = listenRules;
+    }
+
+    /**
+     * Issue a ticket for an authenticated session, the session must be using a session cipher
+     * @param handler The handler serving the session
+     * @return The sealed ticket, to be given to the client
+     * @throws IOException Thrown if the ticket cannot be serialized
+     * @throws GeneralSecurityException Thrown if the ticket cannot be sealed
+     */
+    public byte[] Issue(ConnectionHandler handler) throws IOException, GeneralSecurityException {
+        this.Sweep();
+
+        long id = random.nextLong();
+        long expiresAt = System.currentTimeMillis() + this.lifetime;
+        this.entries.put(id, new Entry(handler, expiresAt));
+
+        // A session only has one live ticket
+        if (handler.ticketId != null) {
+            this.entries.remove(handler.ticketId);
+        }
+
+        handler.ticketId = id;
+
+        JSONObject ticket = new JSONObject();
+        ticket.put("id", id);
+        ticket.put("expiresAt", expiresAt);
+        ticket.put("user", handler.user);
+        ticket.put("sessionKey", handler.sessionCipher.GetKey());
+
+        this.issued.incrementAndGet();
+        return this.ticketCipher.Seal(ticket);
+    }
+
+    /**
+     * Suspend the listen rules of a session which has ended, so they keep logging triggers and can be restored when its
+     * ticket is redeemed. Called by the handler as its session ends, before its listen rules are removed.
+     * @param handler The handler whose session has ended
+     * @param queue The session's trigger queue, or null if it has none
+     */
+    public void Suspend(ConnectionHandler handler, TriggerQueue queue) {
+        if (handler.ticketId == null) {
+            return;
+        }
+
+        Entry entry = this.entries.get(handler.ticketId);
+        if (entry == null) {
+            // The ticket has been redeemed, which took the session's rules, or replaced by a new one
+            return;
+        }
+
+        synchronized (entry) {
+            if (entry.handler != handler) {
+                return;
+            }
+
+            if (queue != null) {
+                entry.listenRules = this.listenRules.Suspend(queue);
+            }
+
+            entry.handler = null;
+        }
+
+        // Expired tickets are otherwise only swept when one is issued, and their rules cost every request they match
+        this.Sweep();
+    }
+
+    /**
+     * Redeem a ticket. If the session the ticket belongs to is still open, for example because the client reconnected
+     * before the server noticed the old connection had dropped, its rules are taken from it and the old connection is
+     * closed. The entry is only forgotten once its rules have been taken, so a session which ends meanwhile either
+     * suspends its rules first or finds they have already been taken, and never removes them.
+     * @param sealed The sealed ticket presented by the client
+     * @return The session to restore, or null if the ticket is invalid, expired or has already been redeemed
+     */
+    public Session Redeem(byte[] sealed) {
+        JSONObject ticket;
+        try {
+            ticket = (JSONObject) this.ticketCipher.Open(sealed);
+
+        } catch (IOException | ClassNotFoundException | GeneralSecurityException | ClassCastException e) {
+            this.rejected.incrementAndGet();
+            return null;
+        }
+
+        Long id = (Long) ticket.get("id");
+        Entry entry = this.entries.get(id);
+        if (entry == null) {
+            this.rejected.incrementAndGet();
+            return null;
+        }
+
+        synchronized (entry) {
+            // Another redemption or a sweep may have taken the entry while this one waited for it
+            if (this.entries.get(id) != entry) {
+                this.rejected.incrementAndGet();
+                return null;
+            }
+
+            if (entry.expiresAt < System.currentTimeMillis()) {
+                this.entries.remove(id);
+                if (entry.handler == null) {
+                    this.listenRules.RemoveSuspended(entry.listenRules);
+                }
+
+                this.rejected.incrementAndGet();
+                return null;
+            }
+
+            ConnectionHandler oldHandler = entry.handler;
+            entry.handler = null;
+
+            // A pooled handler may be serving another client by now, only one still serving the session is closed. It
+            // cannot end the session while the entry is held, since it suspends its rules first.
+            if (oldHandler != null && id.equals(oldHandler.ticketId)) {
+                // The old session's rules are suspended before it is closed, closing it would remove them from the server
+                TriggerQueue queue = oldHandler.triggerQueue;
+                if (queue != null) {
+                    entry.listenRules = this.listenRules.Suspend(queue);
+                }
+
+                oldHandler.Abort();
+            }
+
+            this.entries.remove(id);
+        }
+
+        this.resumed.incrementAndGet();
+        return new Session((User) ticket.get("user"), (byte[]) ticket.get("sessionKey"), entry.listenRules);
+    }
+
+    /**
+     * Forget tickets which have expired and remove the rules of their sessions, at most once every sweep interval
+     */
+    private void Sweep() {
+        long now = System.currentTimeMillis();
+        long last = this.lastSweep.get();
+
+        if (now - last < SWEEP_INTERVAL || !this.lastSweep.compareAndSet(last, now)) {
+            return;
+        }
+
+        this.entries.values().removeIf(entry -> {
+            synchronized (entry) {
+                if (entry.handler != null || entry.expiresAt >= now) {
+                    return false;
+                }
+
+                this.listenRules.RemoveSuspended(entry.listenRules);
+                return true;
+            }
+        });
+    }
+
+    @Override
+    public JSONObject GetMetrics() {
+        JSONObject metrics = new JSONObject();
+        metrics.put("outstanding", this.entries.size());
+        metrics.put("issued", this.issued.get());
+        metrics.put("resumed", this.resumed.get());
+        metrics.put("rejected", this.rejected.get());
+        return metrics;
+    }
+}
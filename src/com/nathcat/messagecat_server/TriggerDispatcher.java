@@ -0,0 +1,163 @@
+package com.nathcat.messagecat_server;
+
+import org.json.simple.JSONObject;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Delivers listen rule triggers in the background, so that the client whose request triggered the rules does not wait
+ * for them to be sent. Each session has its own bounded TriggerQueue, and the queues are written out by a shared pool
+ * of writer threads, one queue at a time per session. Triggers which are waiting together are sent in batches, with
+ * a single flush, and the writers can be told to wait a short time for a batch to fill.
+ *
+ * @author Nathan "Nathcat" Baines
+ */
+public class TriggerDispatcher implements MetricsSource {
+    /**
+     * What to do when a trigger is queued for a session whose queue is full
+     */
+    public enum OverflowPolicy {
+        /**
+         * Drop the oldest trigger in the queue
+         */
+        DropOldest,
+        /**
+         * Close the session's connection, the client can reconnect and fetch what it missed
+         */
+        Disconnect,
+        /**
+         * Keep only the latest trigger of each listen rule in the queue, marking it with the number of earlier
+         * triggers it replaced, then drop the oldest trigger if the queue is still full
+         */
+        Coalesce
+    }
+
+    /**
+     * The most triggers each session may have waiting to be sent
+     */
+    public final int capacity;
+
+    public final OverflowPolicy overflowPolicy;
+
+    /**
+     * The most triggers sent to a session in one batch
+     */
+    public final int batchSize;
+
+    /**
+     * How long to wait for a batch to fill after the first trigger of the batch is queued, in milliseconds. If zero,
+     * only triggers which are already waiting are batched.
+     */
+    public final long batchWindow;
+
+    /**
+     * Keeps the requests sent to each user so they can be replayed, or null if they are not kept
+     */
+    public final TriggerLog log;
+
+    /**
+     * The threads which write triggers to the sessions
+     */
+    final ScheduledExecutorService writers;
+
+    // Metrics
+    final LongAdder delivered = new LongAdder();
+    final LongAdder batches = new LongAdder();
+    final LongAdder failed = new LongAdder();
+    final LongAdder errors = new LongAdder();
+    final LongAdder dropped = new LongAdder();
+    final LongAdder coalesced = new LongAdder();
+    final LongAdder disconnected = new LongAdder();
+
+    /**
+     * Constructor method
+     * @param capacity The most triggers each session may have waiting to be sent
+     * @param overflowPolicy What to do when a trigger is queued for a session whose queue is full
+     * @param batchSize The most triggers sent to a session in one batch
+     * @param batchWindow How long to wait for a batch to fill, in milliseconds
+     * @param log Keeps the requests sent to each user so they can be replayed, or null if they should not be kept
+     * @param threadCount The number of writer threads
+     */
+    public TriggerDispatcher(int capacity, OverflowPolicy overflowPolicy, int batchSize, long batchWindow, TriggerLog log, int threadCount) {
+        this.capacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+        this.batchSize = batchSize;
+        this.batchWindow = batchWindow;
+        this.log = log;
+
+        AtomicInteger threadNum = new AtomicInteger(0);
+        this.writers = Executors.newScheduledThreadPool(threadCount, runnable -> {
+            Thread thread = new Thread(runnable, "TriggerWriter-" + threadNum.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Queue a request to be sent to the clients whose listen rules it triggered, without waiting for it to be sent, and
+     * add it to the trigger log of each of their users
+     * @param rules The rules the request triggered
+     * @param request The request, which must not be changed afterwards
+     */
+    public void Dispatch(List<ListenRule> rules, JSONObject request) {
+        // A request is logged once for each user, however many of the user's rules it triggers
+        Map<Integer, Long> offsets = null;
+
+        for (ListenRule rule : rules) {
+            // The rule may have been matched just before its session ended. The rules of a suspended session have no
+            // queue, and their triggers are only logged so the client can replay them when it resumes the session.
+            TriggerQueue queue = rule.queue;
+            if (queue != null && queue.IsClosed()) {
+                continue;
+            }
+
+            long offset = -1;
+            Integer userID = rule.userID;
+            if (this.log != null && userID != null) {
+                if (offsets == null) {
+                    offsets = new HashMap<>();
+                }
+
+                offset = offsets.computeIfAbsent(userID, id -> this.log.Append(id, request));
+            }
+
+            if (queue != null) {
+                queue.Offer(rule, request, offset);
+            }
+        }
+    }
+
+    /**
+     * Parse an overflow policy from the server config
+     * @param name The name of the policy, "dropOldest", "disconnect" or "coalesce"
+     * @return The policy
+     * @throws IllegalArgumentException Thrown if there is no such policy
+     */
+    public static OverflowPolicy ParsePolicy(String name) {
+        switch (name) {
+            case "dropOldest": return OverflowPolicy.DropOldest;
+            case "disconnect": return OverflowPolicy.Disconnect;
+            case "coalesce": return OverflowPolicy.Coalesce;
+            default: throw new IllegalArgumentException("Unknown trigger overflow policy " + name);
+        }
+    }
+
+    @Override
+    public JSONObject GetMetrics() {
+        JSONObject metrics = new JSONObject();
+        metrics.put("delivered", this.delivered.sum());
+        metrics.put("batches", this.batches.sum());
+        metrics.put("failed", this.failed.sum());
+        metrics.put("errors", this.errors.sum());
+        metrics.put("dropped", this.dropped.sum());
+        metrics.put("coalesced", this.coalesced.sum());
+        metrics.put("disconnected", this.disconnected.sum());
+        return metrics;
+    }
+}
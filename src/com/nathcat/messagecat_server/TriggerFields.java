@@ -0,0 +1,74 @@
+package com.nathcat.messagecat_server;
+
+import com.nathcat.messagecat_database_entities.ChatInvite;
+import com.nathcat.messagecat_database_entities.FriendRequest;
+import com.nathcat.messagecat_database_entities.Message;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Getters for the fields of the data of the requests which can trigger listen rules, so that listen rules can read the
+ * field they match without reflection. A listen rule's field is looked up once, when the rule is registered.
+ *
+ * @author Nathan "Nathcat" Baines
+ */
+public class TriggerFields {
+    /**
+     * The getters for each request type, by field name
+     */
+    private static final Map<RequestType, Map<String, Function<Object, Object>>> getters = new EnumMap<>(RequestType.class);
+
+    static {
+        Map<String, Function<Object, Object>> message = new HashMap<>();
+        message.put("SenderID", Getter(Message.class, m -> m.SenderID));
+        message.put("ChatID", Getter(Message.class, m -> m.ChatID));
+        message.put("TimeSent", Getter(Message.class, m -> m.TimeSent));
+        message.put("Content", Getter(Message.class, m -> m.Content));
+
+        Map<String, Function<Object, Object>> friendRequest = new HashMap<>();
+        friendRequest.put("FriendRequestID", Getter(FriendRequest.class, fr -> fr.FriendRequestID));
+        friendRequest.put("SenderID", Getter(FriendRequest.class, fr -> fr.SenderID));
+        friendRequest.put("RecipientID", Getter(FriendRequest.class, fr -> fr.RecipientID));
+        friendRequest.put("TimeSent", Getter(FriendRequest.class, fr -> fr.TimeSent));
+
+        Map<String, Function<Object, Object>> chatInvite = new HashMap<>();
+        chatInvite.put("ChatInviteID", Getter(ChatInvite.class, ci -> ci.ChatInviteID));
+        chatInvite.put("ChatID", Getter(ChatInvite.class, ci -> ci.ChatID));
+        chatInvite.put("SenderID", Getter(ChatInvite.class, ci -> ci.SenderID));
+        chatInvite.put("RecipientID", Getter(ChatInvite.class, ci -> ci.RecipientID));
+        chatInvite.put("TimeSent", Getter(ChatInvite.class, ci -> ci.TimeSent));
+        chatInvite.put("PrivateKeyID", Getter(ChatInvite.class, ci -> ci.PrivateKeyID));
+
+        getters.put(RequestType.SendMessage, message);
+        getters.put(RequestType.SendFriendRequest, friendRequest);
+        getters.put(RequestType.AcceptFriendRequest, friendRequest);
+        getters.put(RequestType.SendChatInvite, chatInvite);
+        getters.put(RequestType.AcceptChatInvite, chatInvite);
+    }
+
+    /**
+     * Get the getter for a field of the data of a type of request
+     * @param type The type of request
+     * @param fieldName The name of the field
+     * @return A function which returns the value of the field, or null if it is given data of another class
+     * @throws NoSuchFieldException Thrown if the type of request cannot trigger listen rules, or its data has no such
+     *                              field
+     */
+    public static Function<Object, Object> Get(RequestType type, String fieldName) throws NoSuchFieldException {
+        Map<String, Function<Object, Object>> fields = getters.get(type);
+        Function<Object, Object> getter = fields == null ? null : fields.get(fieldName);
+
+        if (getter == null) {
+            throw new NoSuchFieldException(type + " has no field " + fieldName);
+        }
+
+        return getter;
+    }
+
+    private static <T> Function<Object, Object> Getter(Class<T> dataClass, Function<T, Object> getter) {
+        return data -> dataClass.isInstance(data) ? getter.apply(dataClass.cast(data)) : null;
+    }
+}
@@ -0,0 +1,238 @@
+package com.nathcat.messagecat_server;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the requests which triggered each user's listen rules for a while after they are sent, numbered with
+ * increasing offsets, so that a client which reconnects can fetch the triggers it missed with a ReplayTriggers
+ * request rather than fetching every chat again. Offsets are shared by every user, so a user's offsets increase but
+ * are not consecutive.
+ *
+ * The log is kept in memory, so it does not survive a server restart. Offsets are only meaningful together with the
+ * epoch of the log, which changes when the server restarts, so a client can tell that the log it last saw is gone.
+ *
+ * @author Nathan "Nathcat" Baines
+ */
+public class TriggerLog implements MetricsSource {
+    /**
+     * The time in milliseconds between sweeps of users whose log has expired
+     */
+    private static final long SWEEP_INTERVAL = 60000;
+
+    /**
+     * A request kept in a user's log
+     */
+    private static class Record {
+        final long offset;
+        final long time;
+        final JSONObject request;
+
+        Record(long offset, long time, JSONObject request) {
+            this.offset = offset;
+            this.time = time;
+            this.request = request;
+        }
+    }
+
+    /**
+     * The log of one user, guarded by itself
+     */
+    private static class UserLog {
+        final ArrayDeque<Record> records = new ArrayDeque<>();
+
+        /**
+         * The offset of the newest record which has been forgotten, a client which last saw an older one has missed it
+         */
+        long forgotten;
+
+        /**
+         * Set when the log is swept away, after which nothing more may be added to it
+         */
+        boolean removed = false;
+
+        UserLog(long forgotten) {
+            this.forgotten = forgotten;
+        }
+
+        /**
+         * Forget records which are too old or do not fit in the log
+         */
+        void Trim(int capacity, long expiry) {
+            while (!this.records.isEmpty() && (this.records.size() > capacity || this.records.peek().time < expiry)) {
+                this.forgotten = this.records.poll().offset;
+            }
+        }
+    }
+
+    /**
+     * Identifies this log, a client's offsets are from a different log if its epoch differs
+     */
+    public final long epoch = System.currentTimeMillis();
+
+    /**
+     * The most requests kept for each user
+     */
+    private final int capacity;
+
+    /**
+     * The time in milliseconds a request is kept for
+     */
+    private final long retention;
+
+    private final ConcurrentHashMap<Integer, UserLog> logs = new ConcurrentHashMap<>();
+
+    /**
+     * The offset of the next request added to any log
+     */
+    private final AtomicLong nextOffset = new AtomicLong(0);
+
+    /**
+     * The next offset when a log was last swept away, records before it may have been forgotten for users who have no
+     * log
+     */
+    private volatile long swept = 0;
+
+    private final AtomicLong lastSweep = new AtomicLong(System.currentTimeMillis());
+
+    // Metrics
+    private final LongAdder appended = new LongAdder();
+    private final LongAdder replayed = new LongAdder();
+    private final LongAdder incomplete = new LongAdder();
+
+    /**
+     * Constructor method
+     * @param capacity The most requests kept for each user
+     * @param retention The time in milliseconds a request is kept for
+     */
+    public TriggerLog(int capacity, long retention) {
+        this.capacity = capacity;
+        this.retention = retention;
+    }
+
+    /**
+     * Add a request which triggered one or more of a user's listen rules to the user's log
+     * @param userID The ID of the user
+     * @param request The request, which must not be changed afterwards
+     * @return The offset of the request in the user's log
+     */
+    public long Append(int userID, JSONObject request) {
+        this.Sweep();
+
+        long now = System.currentTimeMillis();
+        while (true) {
+            UserLog log = this.logs.computeIfAbsent(userID, id -> new UserLog(this.swept - 1));
+
+            synchronized (log) {
+                if (log.removed) {
+                    // Swept away since it was looked up, look it up again
+                    continue;
+                }
+
+                long offset = this.nextOffset.getAndIncrement();
+                log.records.add(new Record(offset, now, request));
+                log.Trim(this.capacity, now - this.retention);
+                this.appended.increment();
+                return offset;
+            }
+        }
+    }
+
+    /**
+     * Get the requests in a user's log after the last one a client received
+     * @param userID The ID of the user
+     * @param epoch The epoch of the log the client last received a trigger from
+     * @param offset The offset of the last trigger the client received, or -1 if it has received none
+     * @return A JSONObject containing the epoch of the log, the requests in order, each with its "offset", and whether
+     *         they are every request the client missed
+     */
+    public JSONObject Replay(int userID, long epoch, long offset) {
+        JSONArray triggers = new JSONArray();
+
+        // An offset from another log, or which has not been given out, says nothing about what the client has seen
+        boolean complete = epoch == this.epoch && offset < this.nextOffset.get();
+        if (!complete) {
+            offset = -1;
+        }
+
+        UserLog log = this.logs.get(userID);
+        if (log != null) {
+            synchronized (log) {
+                log.Trim(this.capacity, System.currentTimeMillis() - this.retention);
+                complete &= offset >= log.forgotten;
+
+                for (Record record : log.records) {
+                    if (record.offset > offset) {
+                        triggers.add(Build(record, this.epoch));
+                    }
+                }
+            }
+        }
+        else {
+            complete &= offset >= this.swept - 1;
+        }
+
+        this.replayed.add(triggers.size());
+        if (!complete) {
+            this.incomplete.increment();
+        }
+
+        JSONObject response = new JSONObject();
+        response.put("epoch", this.epoch);
+        response.put("triggers", triggers);
+        response.put("complete", complete);
+        return response;
+    }
+
+    /**
+     * Create the object sent to the client for a request in the log, which is shared so it is copied
+     */
+    private static JSONObject Build(Record record, long epoch) {
+        JSONObject trigger = new JSONObject();
+        trigger.putAll(record.request);
+        trigger.put("epoch", epoch);
+        trigger.put("offset", record.offset);
+        return trigger;
+    }
+
+    /**
+     * Forget the logs of users who have not been sent a trigger for longer than the retention time, at most once
+     * every sweep interval
+     */
+    private void Sweep() {
+        long now = System.currentTimeMillis();
+        long last = this.lastSweep.get();
+
+        if (now - last < SWEEP_INTERVAL || !this.lastSweep.compareAndSet(last, now)) {
+            return;
+        }
+
+        long next = this.nextOffset.get();
+        this.logs.values().removeIf(log -> {
+            synchronized (log) {
+                log.Trim(this.capacity, now - this.retention);
+                if (log.records.isEmpty()) {
+                    log.removed = true;
+                    this.swept = next;
+                }
+
+                return log.removed;
+            }
+        });
+    }
+
+    @Override
+    public JSONObject GetMetrics() {
+        JSONObject metrics = new JSONObject();
+        metrics.put("users", this.logs.size());
+        metrics.put("appended", this.appended.sum());
+        metrics.put("replayed", this.replayed.sum());
+        metrics.put("incomplete", this.incomplete.sum());
+        return metrics;
+    }
+}
@@ -0,0 +1,336 @@
+package com.nathcat.messagecat_server;
+
+import com.nathcat.RSA.PublicKeyException;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The listen rule triggers waiting to be sent to one session. Triggers are encrypted and written by the
+ * TriggerDispatcher's writer threads in the order they were queued, in batches of the triggers which are waiting
+ * together. The queue is bounded, with the dispatcher's overflow policy deciding what happens when it is full.
+ * Triggers queued before the session's trigger channel is open are held until Open is called.
+ *
+ * @author Nathan "Nathcat" Baines
+ */
+public class TriggerQueue {
+    /**
+     * The most batches written in one go before the writer thread is given to another session
+     */
+    private static final int MAX_DRAIN = 4;
+
+    /**
+     * A trigger waiting to be sent
+     */
+    private static class Entry {
+        final int ruleId;
+        final JSONObject request;
+
+        /**
+         * The offset of the request in the trigger log, or -1 if it is not in the log
+         */
+        final long offset;
+
+        /**
+         * The number of earlier triggers of the same rule this one replaced
+         */
+        int coalesced = 0;
+
+        Entry(int ruleId, JSONObject request, long offset) {
+            this.ruleId = ruleId;
+            this.request = request;
+            this.offset = offset;
+        }
+
+        /**
+         * Create the object sent to the client, copying the request since it is shared by every session it triggers
+         */
+        JSONObject Build(TriggerLog log) {
+            JSONObject trigger = new JSONObject();
+            trigger.putAll(this.request);
+            trigger.put("triggerID", this.ruleId);
+            if (this.offset >= 0) {
+                trigger.put("epoch", log.epoch);
+                trigger.put("offset", this.offset);
+            }
+
+            if (this.coalesced > 0) {
+                trigger.put("coalesced", this.coalesced);
+            }
+
+            return trigger;
+        }
+    }
+
+    private final ConnectionHandler handler;
+    private final TriggerDispatcher dispatcher;
+
+    /**
+     * The session's connection, closed if the queue overflows under the Disconnect policy. It is captured when the
+     * session starts since a pooled handler may be serving another connection by the time the queue overflows.
+     */
+    private final Closeable connection;
+
+    private final ArrayDeque<Entry> pending = new ArrayDeque<>();
+
+    /**
+     * Whether a writer thread has been asked to drain the queue, guarded by this
+     */
+    private boolean draining = false;
+
+    /**
+     * The drain which is waiting for the batch window to pass, or null if none is, guarded by this
+     */
+    private ScheduledFuture<?> delayedDrain = null;
+
+    /**
+     * Whether the session's trigger channel is open, before which triggers are queued but not sent, guarded by this
+     */
+    private boolean open = false;
+
+    /**
+     * Whether the session has ended, after which nothing more is sent
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * Held while a batch is taken from the queue and sent, so that batches are sent in order and Close can wait for a
+     * batch being sent to finish
+     */
+    private final Object sendLock = new Object();
+
+    /**
+     * Constructor method
+     * @param handler The handler serving the session
+     * @param connection Closes the session's connection, so that the handler ends the session
+     * @param dispatcher The server's trigger dispatcher
+     */
+    public TriggerQueue(ConnectionHandler handler, Closeable connection, TriggerDispatcher dispatcher) {
+        this.handler = handler;
+        this.connection = connection;
+        this.dispatcher = dispatcher;
+    }
+
+    /**
+     * Queue a trigger to be sent to the session, without waiting for it to be sent
+     * @param rule The rule which was triggered
+     * @param request The request which triggered it, which must not be changed afterwards
+     * @param offset The offset of the request in the trigger log, or -1 if it is not in the log
+     */
+    public void Offer(ListenRule rule, JSONObject request, long offset) {
+        boolean start;
+        boolean abort = false;
+
+        synchronized (this) {
+            if (this.closed) {
+                return;
+            }
+
+            if (this.pending.size() >= this.dispatcher.capacity) {
+                switch (this.dispatcher.overflowPolicy) {
+                    case Disconnect:
+                        this.dispatcher.disconnected.increment();
+                        this.closed = true;
+                        this.pending.clear();
+                        abort = true;
+                        break;
+
+                    case Coalesce:
+                        this.Coalesce();
+                        if (this.pending.size() >= this.dispatcher.capacity) {
+                            // Every queued trigger is from a different rule, so fall back to dropping the oldest
+                            this.pending.poll();
+                            this.dispatcher.dropped.increment();
+                        }
+                        break;
+
+                    case DropOldest:
+                        this.pending.poll();
+                        this.dispatcher.dropped.increment();
+                        break;
+                }
+            }
+
+            if (!abort) {
+                this.pending.add(new Entry(rule.getId(), request, offset));
+            }
+
+            start = !abort && this.open && !this.draining;
+            this.draining |= start;
+
+            if (start && this.dispatcher.batchWindow > 0) {
+                // Give the batch time to fill
+                this.delayedDrain = this.dispatcher.writers.schedule(this::Drain, this.dispatcher.batchWindow, TimeUnit.MILLISECONDS);
+                start = false;
+            }
+            else if (this.delayedDrain != null && this.pending.size() >= this.dispatcher.batchSize) {
+                // The batch is full, so there is no need to wait any longer
+                start = this.delayedDrain.cancel(false);
+                this.delayedDrain = null;
+            }
+        }
+
+        if (abort) {
+            // Closing the connection also unblocks a writer stuck sending to the client, so this is not done while
+            // waiting for the writer to finish
+            try {
+                this.connection.close();
+
+            } catch (IOException ignored) {}
+        }
+        else if (start) {
+            this.dispatcher.writers.execute(this::Drain);
+        }
+    }
+
+    /**
+     * Start sending triggers, called once the session's trigger channel is open. Triggers queued before then are sent
+     * now.
+     */
+    public void Open() {
+        boolean start;
+        synchronized (this) {
+            this.open = true;
+            start = !this.closed && !this.draining && !this.pending.isEmpty();
+            this.draining |= start;
+        }
+
+        if (start) {
+            this.dispatcher.writers.execute(this::Drain);
+        }
+    }
+
+    /**
+     * Check whether the session has ended
+     * @return Whether the queue has been closed
+     */
+    public boolean IsClosed() {
+        return this.closed;
+    }
+
+    /**
+     * Replace the queued triggers of each rule with the latest one, keeping the order of the latest triggers
+     */
+    private void Coalesce() {
+        Map<Integer, Entry> latest = new LinkedHashMap<>();
+        for (Entry entry : this.pending) {
+            Entry previous = latest.remove(entry.ruleId);
+            if (previous != null) {
+                entry.coalesced += previous.coalesced + 1;
+            }
+
+            latest.put(entry.ruleId, entry);
+        }
+
+        this.dispatcher.coalesced.add(this.pending.size() - latest.size());
+        this.pending.clear();
+        this.pending.addAll(latest.values());
+    }
+
+    /**
+     * Send queued triggers, called on a writer thread
+     */
+    private void Drain() {
+        boolean finished = false;
+        try {
+            for (int i = 0; i < MAX_DRAIN; i++) {
+                synchronized (this.sendLock) {
+                    List<Entry> batch = new ArrayList<>();
+                    synchronized (this) {
+                        this.delayedDrain = null;
+                        while (batch.size() < this.dispatcher.batchSize && !this.pending.isEmpty()) {
+                            batch.add(this.pending.poll());
+                        }
+
+                        if (batch.isEmpty()) {
+                            this.draining = false;
+                            finished = true;
+                            return;
+                        }
+                    }
+
+                    if (this.closed) {
+                        finished = true;
+                        return;
+                    }
+
+                    try {
+                        this.Send(batch);
+                        this.dispatcher.delivered.add(batch.size());
+                        this.dispatcher.batches.increment();
+
+                    } catch (PublicKeyException | IOException | GeneralSecurityException e) {
+                        this.dispatcher.failed.add(batch.size());
+
+                    } catch (RuntimeException e) {
+                        this.dispatcher.failed.add(batch.size());
+                        this.dispatcher.errors.increment();
+                    }
+                }
+            }
+
+            // Let other sessions use the writer thread before sending the rest
+            this.dispatcher.writers.execute(this::Drain);
+            finished = true;
+
+        } finally {
+            if (!finished) {
+                // Let the next trigger start the queue again rather than leaving it stuck
+                synchronized (this) {
+                    this.draining = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Send a batch of triggers. Clients using the "trigger-batch" feature receive them as a single JSONArray, other
+     * clients receive them one by one, with a single flush.
+     */
+    private void Send(List<Entry> batch) throws PublicKeyException, IOException, GeneralSecurityException {
+        if (batch.size() == 1) {
+            this.handler.LrSend(this.handler.Encrypt(batch.get(0).Build(this.dispatcher.log), PayloadCompressor.TRIGGERS));
+        }
+        else if (this.handler.triggerBatches) {
+            JSONArray triggers = new JSONArray();
+            for (Entry entry : batch) {
+                triggers.add(entry.Build(this.dispatcher.log));
+            }
+
+            this.handler.LrSend(this.handler.Encrypt(triggers, PayloadCompressor.TRIGGERS));
+        }
+        else {
+            List<Object> triggers = new ArrayList<>(batch.size());
+            for (Entry entry : batch) {
+                triggers.add(this.handler.Encrypt(entry.Build(this.dispatcher.log), PayloadCompressor.TRIGGERS));
+            }
+
+            this.handler.LrSendAll(triggers);
+        }
+    }
+
+    /**
+     * Discard the queued triggers and stop sending, called when the session ends. Waits for a trigger which is being
+     * sent to finish, so that nothing from this session is sent once the handler is serving another.
+     */
+    public void Close() {
+        synchronized (this) {
+            this.closed = true;
+            this.pending.clear();
+        }
+
+        synchronized (this.sendLock) {
+            // Nothing to do, a writer which saw the queue open has now finished sending
+        }
+    }
+}
@@ -0,0 +1,474 @@
+package com.nathcat.messagecat_server;
+
+import com.nathcat.messagecat_database_entities.*;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.io.*;
+import java.lang.reflect.Array;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Compact binary encoding for requests and responses, used instead of Java object serialization by sessions which
+ * agree on the "binary" feature during the handshake. Every value is written as a one byte tag followed by its
+ * fields in a fixed order, so no class descriptors or field names are sent. Integers are written as zig-zag varints.
+ *
+ * An encoded object starts with the codec version, followed by a single value:
+ * <pre>
+ *     NULL, TRUE, FALSE
+ *     INT, LONG              - zig-zag varint
+ *     DOUBLE                 - 8 bytes
+ *     STRING, BYTES          - varint length, then UTF-8 / raw bytes
+ *     REQUEST_TYPE           - varint ordinal, RequestType values must only ever be added to the end of the enum
+ *     JSON_OBJECT            - varint size, then alternating key and value
+ *     JSON_ARRAY             - varint size, then the values
+ *     ARRAY                  - component tag (0 for Object), varint length, then the values
+ *     USER ... FRIENDSHIP    - the entity's fields in declaration order, strings and the message content as values
+ *     SERIALIZED             - varint length, then the value in Java serialization, for any other class
+ * </pre>
+ *
+ * @author Nathan "Nathcat" Baines
+ */
+public class WireCodec {
+    /**
+     * The version of the encoding, any change to the layout of a tag must come with a new version
+     */
+    public static final byte VERSION = 1;
+
+    private static final byte NULL = 0;
+    private static final byte TRUE = 1;
+    private static final byte FALSE = 2;
+    private static final byte INT = 3;
+    private static final byte LONG = 4;
+    private static final byte DOUBLE = 5;
+    private static final byte STRING = 6;
+    private static final byte BYTES = 7;
+    private static final byte REQUEST_TYPE = 8;
+    private static final byte JSON_OBJECT = 9;
+    private static final byte JSON_ARRAY = 10;
+    private static final byte ARRAY = 11;
+    private static final byte USER = 12;
+    private static final byte MESSAGE = 13;
+    private static final byte CHAT = 14;
+    private static final byte CHAT_INVITE = 15;
+    private static final byte FRIEND_REQUEST = 16;
+    private static final byte FRIENDSHIP = 17;
+    private static final byte SERIALIZED = 127;
+
+    private static final RequestType[] requestTypes = RequestType.values();
+
+    /**
+     * Encode a value
+     * @param obj The value to encode
+     * @return The encoded bytes
+     * @throws IOException Thrown if a value of a class without a tag cannot be serialized
+     */
+    public static byte[] Encode(Object obj) throws IOException {
+        Writer out = new Writer();
+        out.Byte(VERSION);
+        Write(out, obj);
+        return out.ToArray();
+    }
+
+    /**
+     * Decode a value
+     * @param bytes The encoded bytes
+     * @return The value
+     * @throws IOException Thrown if the bytes are malformed or were encoded with an unsupported version
+     */
+    public static Object Decode(byte[] bytes) throws IOException {
+        Reader in = new Reader(bytes);
+        byte version = in.Byte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported wire codec version " + version);
+        }
+
+        Object obj = Read(in);
+        if (in.position != bytes.length) {
+            throw new IOException("Trailing bytes after encoded value");
+        }
+
+        return obj;
+    }
+
+    private static void Write(Writer out, Object obj) throws IOException {
+        if (obj == null) {
+            out.Byte(NULL);
+        }
+        else if (obj instanceof Boolean) {
+            out.Byte((Boolean) obj ? TRUE : FALSE);
+        }
+        else if (obj instanceof Integer) {
+            out.Byte(INT);
+            out.VarLong((Integer) obj);
+        }
+        else if (obj instanceof Long) {
+            out.Byte(LONG);
+            out.VarLong((Long) obj);
+        }
+        else if (obj instanceof Double) {
+            out.Byte(DOUBLE);
+            out.Long(Double.doubleToLongBits((Double) obj));
+        }
+        else if (obj instanceof String) {
+            out.Byte(STRING);
+            out.String((String) obj);
+        }
+        else if (obj instanceof byte[]) {
+            out.Byte(BYTES);
+            out.Bytes((byte[]) obj);
+        }
+        else if (obj instanceof RequestType) {
+            out.Byte(REQUEST_TYPE);
+            out.VarLong(((RequestType) obj).ordinal());
+        }
+        else if (obj instanceof JSONObject) {
+            JSONObject json = (JSONObject) obj;
+            out.Byte(JSON_OBJECT);
+            out.VarLong(json.size());
+            for (Object entry : json.entrySet()) {
+                Write(out, ((Map.Entry<?, ?>) entry).getKey());
+                Write(out, ((Map.Entry<?, ?>) entry).getValue());
+            }
+        }
+        else if (obj instanceof JSONArray) {
+            JSONArray json = (JSONArray) obj;
+            out.Byte(JSON_ARRAY);
+            out.VarLong(json.size());
+            for (Object element : json) {
+                Write(out, element);
+            }
+        }
+        else if (obj instanceof Object[] && TagOf(obj.getClass().getComponentType()) != SERIALIZED) {
+            Object[] array = (Object[]) obj;
+            out.Byte(ARRAY);
+            out.Byte(TagOf(obj.getClass().getComponentType()));
+            out.VarLong(array.length);
+            for (Object element : array) {
+                Write(out, element);
+            }
+        }
+        else if (obj instanceof User) {
+            User user = (User) obj;
+            out.Byte(USER);
+            out.VarLong(user.UserID);
+            Write(out, user.Username);
+            Write(out, user.Password);
+            Write(out, user.DisplayName);
+            Write(out, user.DateCreated);
+            Write(out, user.ProfilePicturePath);
+        }
+        else if (obj instanceof Message) {
+            Message message = (Message) obj;
+            out.Byte(MESSAGE);
+            out.VarLong(message.SenderID);
+            out.VarLong(message.ChatID);
+            out.VarLong(message.TimeSent);
+            Write(out, message.Content);
+        }
+        else if (obj instanceof Chat) {
+            Chat chat = (Chat) obj;
+            out.Byte(CHAT);
+            out.VarLong(chat.ChatID);
+            Write(out, chat.Name);
+            Write(out, chat.Description);
+            out.VarLong(chat.PublicKeyID);
+        }
+        else if (obj instanceof ChatInvite) {
+            ChatInvite invite = (ChatInvite) obj;
+            out.Byte(CHAT_INVITE);
+            out.VarLong(invite.ChatInviteID);
+            out.VarLong(invite.ChatID);
+            out.VarLong(invite.SenderID);
+            out.VarLong(invite.RecipientID);
+            out.VarLong(invite.TimeSent);
+            out.VarLong(invite.PrivateKeyID);
+        }
+        else if (obj instanceof FriendRequest) {
+            FriendRequest request = (FriendRequest) obj;
+            out.Byte(FRIEND_REQUEST);
+            out.VarLong(request.FriendRequestID);
+            out.VarLong(request.SenderID);
+            out.VarLong(request.RecipientID);
+            out.VarLong(request.TimeSent);
+        }
+        else if (obj instanceof Friendship) {
+            Friendship friendship = (Friendship) obj;
+            out.Byte(FRIENDSHIP);
+            out.VarLong(friendship.FriendshipID);
+            out.VarLong(friendship.UserID);
+            out.VarLong(friendship.FriendID);
+            Write(out, friendship.DateEstablished);
+        }
+        else {
+            // Anything else, e.g. key pairs, listen rules and message queues, falls back to Java serialization
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream oos = new ObjectOutputStream(bytes);
+            oos.writeObject(obj);
+            oos.close();
+
+            out.Byte(SERIALIZED);
+            out.Bytes(bytes.toByteArray());
+        }
+    }
+
+    private static Object Read(Reader in) throws IOException {
+        byte tag = in.Byte();
+
+        switch (tag) {
+            case NULL: return null;
+            case TRUE: return true;
+            case FALSE: return false;
+            case INT: return (int) in.VarLong();
+            case LONG: return in.VarLong();
+            case DOUBLE: return Double.longBitsToDouble(in.Long());
+            case STRING: return in.String();
+            case BYTES: return in.Bytes();
+
+            case REQUEST_TYPE: {
+                int ordinal = (int) in.VarLong();
+                if (ordinal < 0 || ordinal >= requestTypes.length) {
+                    throw new IOException("Unknown request type " + ordinal);
+                }
+
+                return requestTypes[ordinal];
+            }
+
+            case JSON_OBJECT: {
+                int size = in.Length();
+                JSONObject json = new JSONObject();
+                for (int i = 0; i < size; i++) {
+                    json.put(Read(in), Read(in));
+                }
+
+                return json;
+            }
+
+            case JSON_ARRAY: {
+                int size = in.Length();
+                JSONArray json = new JSONArray();
+                for (int i = 0; i < size; i++) {
+                    json.add(Read(in));
+                }
+
+                return json;
+            }
+
+            case ARRAY: {
+                Class<?> componentType = ClassOf(in.Byte());
+                int length = in.Length();
+                Object[] array = (Object[]) Array.newInstance(componentType, length);
+                for (int i = 0; i < length; i++) {
+                    Object element = Read(in);
+                    if (element != null && !componentType.isInstance(element)) {
+                        throw new IOException("Array element does not match the array type");
+                    }
+
+                    array[i] = element;
+                }
+
+                return array;
+            }
+
+            case USER:
+                return new User((int) in.VarLong(), ReadString(in), ReadString(in), ReadString(in), ReadString(in), ReadString(in));
+
+            case MESSAGE:
+                return new Message((int) in.VarLong(), (int) in.VarLong(), in.VarLong(), Read(in));
+
+            case CHAT:
+                return new Chat((int) in.VarLong(), ReadString(in), ReadString(in), (int) in.VarLong());
+
+            case CHAT_INVITE:
+                return new ChatInvite((int) in.VarLong(), (int) in.VarLong(), (int) in.VarLong(), (int) in.VarLong(), in.VarLong(), (int) in.VarLong());
+
+            case FRIEND_REQUEST:
+                return new FriendRequest((int) in.VarLong(), (int) in.VarLong(), (int) in.VarLong(), in.VarLong());
+
+            case FRIENDSHIP:
+                return new Friendship((int) in.VarLong(), (int) in.VarLong(), (int) in.VarLong(), ReadString(in));
+
+            case SERIALIZED:
+                try {
+                    ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(in.Bytes()));
+                    return ois.readObject();
+
+                } catch (ClassNotFoundException e) {
+                    throw new IOException("Unknown serialized class (" + e.getMessage() + ")");
+                }
+
+            default:
+                throw new IOException("Unknown tag " + tag);
+        }
+    }
+
+    private static String ReadString(Reader in) throws IOException {
+        Object obj = Read(in);
+        if (obj != null && !(obj instanceof String)) {
+            throw new IOException("Expected a string");
+        }
+
+        return (String) obj;
+    }
+
+    /**
+     * Get the tag of an array component type
+     */
+    private static byte TagOf(Class<?> componentType) {
+        if (componentType == Object.class) return NULL;
+        if (componentType == String.class) return STRING;
+        if (componentType == User.class) return USER;
+        if (componentType == Message.class) return MESSAGE;
+        if (componentType == Chat.class) return CHAT;
+        if (componentType == ChatInvite.class) return CHAT_INVITE;
+        if (componentType == FriendRequest.class) return FRIEND_REQUEST;
+        if (componentType == Friendship.class) return FRIENDSHIP;
+        return SERIALIZED;
+    }
+
+    /**
+     * Get the array component type of a tag
+     */
+    private static Class<?> ClassOf(byte tag) throws IOException {
+        switch (tag) {
+            case NULL: return Object.class;
+            case STRING: return String.class;
+            case USER: return User.class;
+            case MESSAGE: return Message.class;
+            case CHAT: return Chat.class;
+            case CHAT_INVITE: return ChatInvite.class;
+            case FRIEND_REQUEST: return FriendRequest.class;
+            case FRIENDSHIP: return Friendship.class;
+            default: throw new IOException("Unknown array type " + tag);
+        }
+    }
+
+    /**
+     * Growable output buffer
+     */
+    private static class Writer {
+        private byte[] buffer = new byte[128];
+        private int length = 0;
+
+        private void Reserve(int count) {
+            if (this.length + count > this.buffer.length) {
+                byte[] larger = new byte[Math.max(this.buffer.length * 2, this.length + count)];
+                System.arraycopy(this.buffer, 0, larger, 0, this.length);
+                this.buffer = larger;
+            }
+        }
+
+        public void Byte(byte b) {
+            this.Reserve(1);
+            this.buffer[this.length++] = b;
+        }
+
+        public void Long(long value) {
+            this.Reserve(8);
+            for (int i = 7; i >= 0; i--) {
+                this.buffer[this.length++] = (byte) (value >>> (i * 8));
+            }
+        }
+
+        public void VarLong(long value) {
+            // Zig-zag so that small negative numbers such as the -1 used for unset IDs stay small
+            long zigZag = (value << 1) ^ (value >> 63);
+
+            this.Reserve(10);
+            while ((zigZag & ~0x7FL) != 0) {
+                this.buffer[this.length++] = (byte) ((zigZag & 0x7F) | 0x80);
+                zigZag >>>= 7;
+            }
+
+            this.buffer[this.length++] = (byte) zigZag;
+        }
+
+        public void Bytes(byte[] bytes) {
+            this.VarLong(bytes.length);
+            this.Reserve(bytes.length);
+            System.arraycopy(bytes, 0, this.buffer, this.length, bytes.length);
+            this.length += bytes.length;
+        }
+
+        public void String(String s) {
+            this.Bytes(s.getBytes(StandardCharsets.UTF_8));
+        }
+
+        public byte[] ToArray() {
+            byte[] bytes = new byte[this.length];
+            System.arraycopy(this.buffer, 0, bytes, 0, this.length);
+            return bytes;
+        }
+    }
+
+    /**
+     * Input buffer which checks every read against the end of the bytes
+     */
+    private static class Reader {
+        private final byte[] buffer;
+        private int position = 0;
+
+        public Reader(byte[] buffer) {
+            this.buffer = buffer;
+        }
+
+        public byte Byte() throws IOException {
+            if (this.position >= this.buffer.length) {
+                throw new EOFException("Unexpected end of encoded value");
+            }
+
+            return this.buffer[this.position++];
+        }
+
+        public long Long() throws IOException {
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | (this.Byte() & 0xFF);
+            }
+
+            return value;
+        }
+
+        public long VarLong() throws IOException {
+            long zigZag = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = this.Byte();
+                zigZag |= (long) (b & 0x7F) << shift;
+
+                if ((b & 0x80) == 0) {
+                    return (zigZag >>> 1) ^ -(zigZag & 1);
+                }
+            }
+
+            throw new IOException("Malformed varint");
+        }
+
+        /**
+         * Read a length, which must fit in the remaining bytes so a malformed length cannot cause a huge allocation
+         */
+        public int Length() throws IOException {
+            long length = this.VarLong();
+            if (length < 0 || length > this.buffer.length - this.position) {
+                throw new IOException("Invalid length " + length);
+            }
+
+            return (int) length;
+        }
+
+        public byte[] Bytes() throws IOException {
+            int length = this.Length();
+            byte[] bytes = new byte[length];
+            System.arraycopy(this.buffer, this.position, bytes, 0, length);
+            this.position += length;
+            return bytes;
+        }
+
+        public String String() throws IOException {
+            int length = this.Length();
+            String s = new String(this.buffer, this.position, length, StandardCharsets.UTF_8);
+            this.position += length;
+            return s;
+        }
+    }
+}